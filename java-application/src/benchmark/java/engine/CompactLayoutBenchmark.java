@@ -0,0 +1,152 @@
+package engine;
+
+import logic.Settings;
+import logic.Updater;
+import logic.UpdaterLogic;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the step time of {@link CompactUpdater} (9 bytes per particle)
+ * with {@link MultithreadedUpdater} (the float arrays of {@link Particles}, 20 bytes per particle)
+ * for large numbers of particles, where the step time is dominated by memory bandwidth.
+ * <p>
+ * It also prints how far the velocities and positions of the compact layout deviate
+ * from the float layout after a single step from the same state.
+ * The largest deviations come from nearly overlapping particles, where the quantization of the positions
+ * changes the direction of the (strongest) repulsion.
+ * <p>
+ * Arguments (all optional): numbers of particles (comma-separated), density (particles per pixel<sup>2</sup>), steps.
+ * Run with <code>gradle compactLayoutBenchmark</code>, or e.g.
+ * <code>gradle compactLayoutBenchmark --args="1000000,4000000 0.002 20"</code>.
+ */
+public class CompactLayoutBenchmark {
+
+    private static final int WARMUP_STEPS = 5;
+
+    public static void main(String[] args) {
+
+        int[] counts = parseInts(args.length > 0 ? args[0] : "250000,1000000,4000000");
+        float density = args.length > 1 ? Float.parseFloat(args[1]) : 0.002f;
+        int steps = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        UpdaterLogic updaterLogic = UpdaterLogic.create(false);
+
+        System.out.printf("%-10s %-10s %-10s %-8s %-12s %-12s %-12s%n",
+                "n", "layout", "ms/step", "MB", "mean |dv|", "max |dv|", "max |dx|");
+
+        for (int n : counts) {
+
+            float size = (float) Math.sqrt(n / density);
+            Settings s = createSettings(size);
+
+            Updater reference = new MultithreadedUpdater(pool);
+            Updater compact = new CompactUpdater(pool);
+            spawn(reference, n, size);
+            spawn(compact, n, size);
+
+            // deviation after a single step from the same state
+            reference.updateVelocities(s, updaterLogic);
+            reference.updatePositions(s, updaterLogic);
+            compact.updateVelocities(s, updaterLogic);
+            compact.updatePositions(s, updaterLogic);
+            float[] deviation = deviation(reference, compact, n);
+
+            double referenceMillis = measure(reference, s, updaterLogic, steps);
+            double compactMillis = measure(compact, s, updaterLogic, steps);
+
+            System.out.printf(Locale.ROOT, "%-10d %-10s %-10.2f %-8.1f%n",
+                    n, "float", referenceMillis, n * 20 / 1e6);
+            System.out.printf(Locale.ROOT, "%-10d %-10s %-10.2f %-8.1f %-12.5f %-12.5f %-12.5f%n",
+                    n, "compact", compactMillis, n * 9 / 1e6, deviation[0], deviation[1], deviation[2]);
+        }
+
+        pool.shutdown();
+    }
+
+    private static double measure(Updater updater, Settings s, UpdaterLogic updaterLogic, int steps) {
+
+        for (int i = 0; i < WARMUP_STEPS; i++) {
+            updater.updateVelocities(s, updaterLogic);
+            updater.updatePositions(s, updaterLogic);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            updater.updateVelocities(s, updaterLogic);
+            updater.updatePositions(s, updaterLogic);
+        }
+        return (System.nanoTime() - start) / 1e6 / steps;
+    }
+
+    /**
+     * @return the mean and the largest difference of a velocity component,
+     *         and the largest difference of a position component, by particle id.
+     */
+    private static float[] deviation(Updater a, Updater b, int n) {
+
+        float[] positionsA = a.getPositions();
+        float[] velocitiesA = a.getVelocities();
+        float[] positionsB = b.getPositions();
+        float[] velocitiesB = b.getVelocities();
+
+        double sumVelocity = 0;
+        float maxVelocity = 0;
+        float maxPosition = 0;
+        for (int id = 0; id < n; id++) {
+            int i = a.getIndex(id);
+            int j = b.getIndex(id);
+            for (int k = 0; k < 2; k++) {
+                float velocityDeviation = Math.abs(velocitiesA[i * 2 + k] - velocitiesB[j * 2 + k]);
+                sumVelocity += velocityDeviation;
+                maxVelocity = Math.max(maxVelocity, velocityDeviation);
+                maxPosition = Math.max(maxPosition, Math.abs(positionsA[i * 2 + k] - positionsB[j * 2 + k]));
+            }
+        }
+        return new float[]{(float) (sumVelocity / (2.0 * n)), maxVelocity, maxPosition};
+    }
+
+    private static Settings createSettings(float size) {
+
+        Random random = new Random(42);
+
+        Settings s = new Settings();
+        s.setRange(size, size);
+        s.setWrap(true);
+        s.setDt(0.02f);
+        s.setMatrix(new Matrix(6, (i, j) -> random.nextFloat() * 2 - 1));
+
+        return s;
+    }
+
+    private static void spawn(Updater updater, int n, float size) {
+
+        Random random = new Random(42);
+
+        int[] types = new int[n];
+        float[] positions = new float[n * 2];
+        float[] velocities = new float[n * 2];
+
+        for (int i = 0; i < n; i++) {
+            types[i] = random.nextInt(6);
+            positions[i * 2] = random.nextFloat() * size;
+            positions[i * 2 + 1] = random.nextFloat() * size;
+        }
+
+        updater.setTypes(types);
+        updater.setPositions(positions);
+        updater.setVelocities(velocities);
+    }
+
+    private static int[] parseInts(String s) {
+        String[] parts = s.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,179 @@
+package engine;
+
+import logic.Settings;
+import logic.UpdaterLogic;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the cell sizes rMax / k of {@link MultithreadedUpdater} for several particle densities.
+ * <p>
+ * For every density and k, it prints the average time of a step and how many candidate pairs
+ * are tested per particle (compared to the pairs that actually are closer than rMax).
+ * <p>
+ * Arguments (all optional): densities (particles per pixel<sup>2</sup>, comma-separated), values of k (comma-separated),
+ * world size, steps.
+ * Run with <code>gradle gridResolutionBenchmark</code>, or e.g.
+ * <code>gradle gridResolutionBenchmark --args="0.002,0.01 1,2,3 1000 50"</code>.
+ */
+public class GridResolutionBenchmark {
+
+    private static final int WARMUP_STEPS = 20;
+
+    public static void main(String[] args) {
+
+        float[] densities = parseFloats(args.length > 0 ? args[0] : "0.001,0.002,0.005,0.01");
+        int[] subdivisions = parseInts(args.length > 1 ? args[1] : "1,2,3");
+        float size = args.length > 2 ? Float.parseFloat(args[2]) : 1000;
+        int steps = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        UpdaterLogic updaterLogic = UpdaterLogic.create(false);
+
+        System.out.printf("%-10s %-8s %-3s %-12s %-18s %-18s%n",
+                "density", "n", "k", "ms/step", "candidates/part.", "in rMax/part.");
+
+        for (float density : densities) {
+
+            int n = (int) (density * size * size);
+
+            for (int k : subdivisions) {
+
+                Settings s = createSettings(size);
+
+                MultithreadedUpdater updater = new MultithreadedUpdater(pool);
+                updater.setSubdivisions(k);
+                spawn(updater, n, size);
+
+                for (int i = 0; i < WARMUP_STEPS; i++) {
+                    updater.updateVelocities(s, updaterLogic);
+                    updater.updatePositions(s, updaterLogic);
+                }
+
+                long start = System.nanoTime();
+                for (int i = 0; i < steps; i++) {
+                    updater.updateVelocities(s, updaterLogic);
+                    updater.updatePositions(s, updaterLogic);
+                }
+                double millisPerStep = (System.nanoTime() - start) / 1e6 / steps;
+
+                long[] pairs = countPairs(updater, s, k);
+
+                System.out.printf(Locale.ROOT, "%-10.4f %-8d %-3d %-12.2f %-18.1f %-18.1f%n",
+                        density, n, k, millisPerStep, pairs[0] / (double) n, pairs[1] / (double) n);
+            }
+        }
+
+        pool.shutdown();
+    }
+
+    private static Settings createSettings(float size) {
+
+        Random random = new Random(42);
+
+        Settings s = new Settings();
+        s.setRange(size, size);
+        s.setWrap(true);
+        s.setDt(0.02f);
+        s.setMatrix(new Matrix(6, (i, j) -> random.nextFloat() * 2 - 1));
+
+        return s;
+    }
+
+    private static void spawn(MultithreadedUpdater updater, int n, float size) {
+
+        Random random = new Random(42);
+
+        int[] types = new int[n];
+        float[] positions = new float[n * 2];
+        float[] velocities = new float[n * 2];
+
+        for (int i = 0; i < n; i++) {
+            types[i] = random.nextInt(6);
+            positions[i * 2] = random.nextFloat() * size;
+            positions[i * 2 + 1] = random.nextFloat() * size;
+        }
+
+        updater.setTypes(types);
+        updater.setPositions(positions);
+        updater.setVelocities(velocities);
+    }
+
+    /**
+     * @return the number of candidate pairs that the stencil yields
+     *         and the number of pairs that are closer than rMax, for the current positions.
+     */
+    private static long[] countPairs(MultithreadedUpdater updater, Settings s, int k) {
+
+        float[] positions = updater.getPositions();
+
+        CellList cellList = new CellList();
+        cellList.setSubdivisions(k);
+        cellList.resize(s.getRangeX(), s.getRangeY(), s.getRMax(), positions.length / 2, 1);
+        cellList.build(positions);
+
+        int[] ranges = new int[cellList.getMaxNeighborRanges() * 2];
+        float rMaxSquared = s.getRMax() * s.getRMax();
+
+        long candidates = 0;
+        long interacting = 0;
+
+        for (int cellY = 0; cellY < cellList.ny; cellY++) {
+            for (int cellX = 0; cellX < cellList.nx; cellX++) {
+
+                int cell = cellList.getCellIndex(cellX, cellY);
+                int nRanges = cellList.getNeighborRanges(cellX, cellY, s.isWrap(), ranges);
+
+                for (int i = cellList.cellStart[cell]; i < cellList.cellStart[cell + 1]; i++) {
+
+                    int index = cellList.cellParticles[i];
+
+                    for (int range = 0; range < nRanges; range++) {
+
+                        candidates += ranges[range * 2 + 1] - ranges[range * 2];
+
+                        for (int j = ranges[range * 2]; j < ranges[range * 2 + 1]; j++) {
+                            int index2 = cellList.cellParticles[j];
+                            float dx = nearestImage(positions[index2 * 2] - positions[index * 2], s.getRangeX());
+                            float dy = nearestImage(positions[index2 * 2 + 1] - positions[index * 2 + 1], s.getRangeY());
+                            if (index2 != index && dx * dx + dy * dy < rMaxSquared) {
+                                interacting++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return new long[]{candidates, interacting};
+    }
+
+    private static float nearestImage(float d, float range) {
+        if (d > range / 2) {
+            return d - range;
+        } else if (d < -range / 2) {
+            return d + range;
+        }
+        return d;
+    }
+
+    private static int[] parseInts(String s) {
+        String[] parts = s.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static float[] parseFloats(String s) {
+        String[] parts = s.split(",");
+        float[] values = new float[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Float.parseFloat(parts[i].trim());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,255 @@
+package engine;
+
+import logic.Settings;
+import logic.Updater;
+import logic.UpdaterLogic;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Shows where the updaters stop scaling: sweeps the number of particles, the number of threads,
+ * the density and the spawn pattern (see {@link Spawner#spawn}), and writes one CSV line per combination.
+ * <p>
+ * Clustered patterns (sphere, two spheres, ...) put most particles into few cells,
+ * so the work per chunk of cells gets uneven and the threads wait for the slowest chunk.
+ * The column <code>max_cell_load</code> (the fullest cell compared to the average of the occupied cells)
+ * shows how clustered the particles were, <code>efficiency</code> what that cost.
+ * <p>
+ * Columns:
+ * <ul>
+ *     <li><code>steps_per_s</code>: steps per second, over at most <code>steps</code> steps
+ *         or {@link #MAX_SECONDS} seconds, whichever ends first</li>
+ *     <li><code>pair_tests_per_s</code>: distance tests per second, i.e. the candidate pairs of the cells
+ *         that are searched with a cell size of rMax</li>
+ *     <li><code>interactions_per_s</code>: pairs that are actually closer than rMax, per second</li>
+ *     <li><code>efficiency</code>: the speedup over the first thread count of the sweep, divided by the ratio of the thread counts
+ *         (1 is perfect scaling)</li>
+ * </ul>
+ * The pairs are counted on the positions after the measured steps, and not timed.
+ * <p>
+ * Arguments (all optional): numbers of particles (comma-separated), numbers of threads (comma-separated),
+ * densities (particles per pixel<sup>2</sup>, comma-separated), spawn modes (comma-separated),
+ * updaters (indices as in {@link Updaters#create}, comma-separated), steps, CSV file (default: standard output),
+ * updater options (see {@link UpdaterOptions#parse}, comma-separated, default: <code>default</code>).
+ * Run with <code>gradle scalingBenchmark</code>, or e.g.
+ * <code>gradle scalingBenchmark --args="1000,100000,1000000 1,2,4,8 0.002 0,2,7 0,1 20 scaling.csv"</code>,
+ * or <code>gradle scalingBenchmark --args="100000 1,4 0.002 0 0 20 - default,half,ghost,sort=morton:subdivisions=2"</code>
+ * to compare the options of the grid updater (<code>-</code> writes to standard output).
+ */
+public class ScalingBenchmark {
+
+    private static final int WARMUP_STEPS = 5;
+
+    /**
+     * Limits the measured steps of a single combination, so that large numbers of particles
+     * with few threads don't take forever.
+     */
+    private static final double MAX_SECONDS = 10;
+
+    public static void main(String[] args) throws IOException {
+
+        int[] counts = parseInts(args.length > 0 ? args[0] : "1000,10000,100000,1000000,5000000");
+        int[] threadCounts = parseInts(args.length > 1 ? args[1] : defaultThreadCounts());
+        float[] densities = parseFloats(args.length > 2 ? args[2] : "0.002");
+        int[] spawnModes = parseInts(args.length > 3 ? args[3] : "0,2,7");
+        int[] updaterIndices = parseInts(args.length > 4 ? args[4] : "0");
+        int steps = args.length > 5 ? Integer.parseInt(args[5]) : 20;
+        PrintStream out = args.length > 6 && !args[6].equals("-") ? new PrintStream(Files.newOutputStream(Path.of(args[6]))) : System.out;
+        UpdaterOptions[] optionSets = parseOptions(args.length > 7 ? args[7] : "default");
+
+        UpdaterLogic updaterLogic = UpdaterLogic.create(false);
+
+        out.println("updater,options,spawn,density,n,threads,steps,steps_per_s,pair_tests_per_s,interactions_per_s,efficiency,max_cell_load");
+
+        for (int updaterIndex : updaterIndices) {
+            for (UpdaterOptions options : optionSets) {
+                for (int spawnMode : spawnModes) {
+                    for (float density : densities) {
+                        for (int n : counts) {
+
+                            // steps per second with the first thread count of the sweep, for the efficiency
+                            double baseRate = Double.NaN;
+
+                            for (int threads : threadCounts) {
+
+                                float size = (float) Math.sqrt(n / density);
+                                Settings s = createSettings(size);
+
+                                ForkJoinPool pool = new ForkJoinPool(threads);
+                                Updater updater = Updaters.create(updaterIndex, pool, new StepProfiler(), options);
+                                Particles particles = Spawner.spawn(n, s.getMatrix().size(), spawnMode, size, size, new SplittableRandom(42));
+                                updater.setTypes(particles.types);
+                                updater.setPositions(particles.positions);
+                                updater.setVelocities(particles.velocities);
+
+                                for (int i = 0; i < WARMUP_STEPS; i++) {
+                                    updater.updateVelocities(s, updaterLogic);
+                                    updater.updatePositions(s, updaterLogic);
+                                }
+
+                                int measuredSteps = 0;
+                                long start = System.nanoTime();
+                                long nanos = 0;
+                                while (measuredSteps < steps && nanos < MAX_SECONDS * 1e9) {
+                                    updater.updateVelocities(s, updaterLogic);
+                                    updater.updatePositions(s, updaterLogic);
+                                    measuredSteps++;
+                                    nanos = System.nanoTime() - start;
+                                }
+                                double stepsPerSecond = measuredSteps / (nanos / 1e9);
+
+                                long[] pairs = countPairs(updater.getPositions(), s);
+
+                                if (threads == threadCounts[0]) {
+                                    baseRate = stepsPerSecond;
+                                }
+                                double efficiency = stepsPerSecond / baseRate * threadCounts[0] / threads;
+
+                                out.printf(Locale.ROOT, "%d,%s,%d,%.4f,%d,%d,%d,%.3f,%.4g,%.4g,%.3f,%.2f%n",
+                                        Updaters.resolve(updaterIndex), options, spawnMode, density, n, threads, measuredSteps,
+                                        stepsPerSecond, pairs[0] * stepsPerSecond, pairs[1] * stepsPerSecond, efficiency,
+                                        pairs[2] / 100.0);
+                                out.flush();
+
+                                Updaters.close(updater);
+                                pool.shutdown();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        if (out != System.out) {
+            out.close();
+        }
+    }
+
+    /**
+     * @return 1, 2, 4, ... up to the number of processors (which is always included).
+     */
+    private static String defaultThreadCounts() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        StringBuilder threads = new StringBuilder("1");
+        for (int t = 2; t < processors; t *= 2) {
+            threads.append(',').append(t);
+        }
+        if (processors > 1) {
+            threads.append(',').append(processors);
+        }
+        return threads.toString();
+    }
+
+    private static Settings createSettings(float size) {
+
+        SplittableRandom random = new SplittableRandom(42);
+
+        Settings s = new Settings();
+        s.setRange(size, size);
+        s.setWrap(true);
+        s.setDt(0.02f);
+        s.setSeed(42);
+        s.setMatrix(new Matrix(6, (i, j) -> (float) random.nextDouble(-1, 1)));
+
+        return s;
+    }
+
+    /**
+     * @return the number of candidate pairs of the cells that are searched with a cell size of rMax,
+     *         the number of pairs that are closer than rMax,
+     *         and the particles of the fullest cell relative to the average of the occupied cells (times 100).
+     */
+    private static long[] countPairs(float[] positions, Settings s) {
+
+        CellList cellList = new CellList();
+        cellList.resize(s.getRangeX(), s.getRangeY(), s.getRMax(), positions.length / 2, 1);
+        cellList.build(positions);
+
+        int[] ranges = new int[cellList.getMaxNeighborRanges() * 2];
+        float rMaxSquared = s.getRMax() * s.getRMax();
+
+        long candidates = 0;
+        long interacting = 0;
+        int maxCellSize = 0;
+        int occupiedCells = 0;
+
+        for (int cellY = 0; cellY < cellList.ny; cellY++) {
+            for (int cellX = 0; cellX < cellList.nx; cellX++) {
+
+                int cell = cellList.getCellIndex(cellX, cellY);
+                int cellSize = cellList.cellStart[cell + 1] - cellList.cellStart[cell];
+                if (cellSize == 0) {
+                    continue;
+                }
+                maxCellSize = Math.max(maxCellSize, cellSize);
+                occupiedCells++;
+
+                int nRanges = cellList.getNeighborRanges(cellX, cellY, s.isWrap(), ranges);
+
+                for (int i = cellList.cellStart[cell]; i < cellList.cellStart[cell + 1]; i++) {
+
+                    int index = cellList.cellParticles[i];
+
+                    for (int range = 0; range < nRanges; range++) {
+
+                        candidates += ranges[range * 2 + 1] - ranges[range * 2];
+
+                        for (int j = ranges[range * 2]; j < ranges[range * 2 + 1]; j++) {
+                            int index2 = cellList.cellParticles[j];
+                            float dx = nearestImage(positions[index2 * 2] - positions[index * 2], s.getRangeX());
+                            float dy = nearestImage(positions[index2 * 2 + 1] - positions[index * 2 + 1], s.getRangeY());
+                            if (index2 != index && dx * dx + dy * dy < rMaxSquared) {
+                                interacting++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        long maxCellLoad = occupiedCells > 0 ? Math.round(100.0 * maxCellSize * occupiedCells / (positions.length / 2)) : 0;
+        return new long[]{candidates, interacting, maxCellLoad};
+    }
+
+    private static float nearestImage(float d, float range) {
+        if (d > range / 2) {
+            return d - range;
+        } else if (d < -range / 2) {
+            return d + range;
+        }
+        return d;
+    }
+
+    private static int[] parseInts(String s) {
+        String[] parts = s.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static UpdaterOptions[] parseOptions(String s) {
+        String[] parts = s.split(",");
+        UpdaterOptions[] values = new UpdaterOptions[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = UpdaterOptions.parse(parts[i]);
+        }
+        return values;
+    }
+
+    private static float[] parseFloats(String s) {
+        String[] parts = s.split(",");
+        float[] values = new float[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Float.parseFloat(parts[i].trim());
+        }
+        return values;
+    }
+}
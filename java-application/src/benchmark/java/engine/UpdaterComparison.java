@@ -0,0 +1,352 @@
+package engine;
+
+import logic.Settings;
+import logic.Updater;
+import logic.UpdaterLogic;
+import processing.data.JSONObject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs the same seeded state through two updaters and prints how far they diverge, as CSV:
+ * the largest and the mean distance of the same particle (by stable id) in both,
+ * the kinetic energy (<code>sum |v|^2 / 2</code>) and the momentum (<code>|sum v|</code>) of both,
+ * and the distance between the momenta.
+ * It also prints how far each run drifted from its own energy and momentum at step 0
+ * (relative change of the energy, or the absolute change if it started at 0, and distance of the momentum),
+ * which shows whether an updater gains or loses energy on its own, independently of the other one.
+ * <p>
+ * The updaters can have options (see {@link UpdaterOptions#parse}), e.g. <code>grid:half</code>
+ * or <code>rmax:half:sort=cells</code>, so that each optional feature of the grid updaters can be compared with the reference.
+ * The half stencil and the ghost cells depend on the number of cells in a wrapping world,
+ * <code>--size</code> sets the world size (e.g. <code>--size 400x100</code> for only 2 rows of cells).
+ * <p>
+ * {@link SimpleUpdater} tests all pairs and is the reference for the grid-based updaters,
+ * which may sum the forces in a different order, or (like {@link CompactUpdater}) quantize the particles.
+ * The dynamics are chaotic, so even rounding differences grow exponentially over many steps.
+ * With <code>--lockstep</code>, the second updater is therefore reset to the state of the first one after every step,
+ * and the errors are those of a single step.
+ * <p>
+ * With <code>--tolerance</code>, the comparison fails (exit code 1) if a particle is ever further apart than the tolerance.
+ * A tolerance of 0 requires identical results, small tolerances (with <code>--lockstep</code>) allow for reordered sums.
+ * <p>
+ * Run with <code>gradle compareUpdaters --args="..."</code>, see {@link #USAGE} for the options.
+ */
+public class UpdaterComparison {
+
+    private static final String USAGE = String.join("\n",
+            "Options (all optional):",
+            "  --a <updater>            reference updater (default: simple)",
+            "  --b <updater>            updater to compare (default: grid)",
+            "                           updaters: simple, rmax, grid, soa, neighbors, offheap, compact,",
+            "                           append :simd to use the SIMD kernel, e.g. grid:simd,",
+            "                           and options to rmax and grid: :half, :ghost (grid), :sort=<cells|morton>[/<interval>],",
+            "                           :subdivisions=<n> (grid), e.g. grid:half, grid:ghost:subdivisions=2",
+            "  --state <file>           start from a state file (JSON), instead of spawning particles",
+            "  --types <n>              number of types of the random matrix (default: 6)",
+            "  --particles <n>          (default: 2000)",
+            "  --density <d>            particles per pixel^2, determines the world size (default: 0.002)",
+            "  --size <width>x<height>  world size, instead of the density, e.g. 400x100",
+            "  --spawn <mode>           spawn pattern, see the GUI (default: 0, uniform)",
+            "  --seed <n>               seed of the matrix, spawning and heat (default: 42)",
+            "  --heat <h>               (default: 0)",
+            "  --wrap <true|false>      (default: true)",
+            "  --steps <n>              (default: 200)",
+            "  --every <n>              print every n-th step (default: 10)",
+            "  --threads <n>            (default: all processors)",
+            "  --lockstep               reset the second updater to the first one after every step",
+            "  --tolerance <pixels>     fail if the position of a particle differs by more than this"
+    );
+
+    public static void main(String[] args) throws IOException {
+
+        Map<String, String> options = parseOptions(args);
+        if (options == null) {
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        int steps = Integer.parseInt(options.getOrDefault("steps", "200"));
+        int every = Math.max(1, Integer.parseInt(options.getOrDefault("every", "10")));
+        int threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        boolean lockstep = options.containsKey("lockstep");
+        float tolerance = options.containsKey("tolerance") ? Float.parseFloat(options.get("tolerance")) : Float.POSITIVE_INFINITY;
+
+        Settings settings = new Settings();
+        settings.setSeed(Long.parseLong(options.getOrDefault("seed", "42")));
+        Particles particles;
+
+        if (options.containsKey("state")) {
+            JSONObject state = JSONObject.parse(Files.readString(Path.of(options.get("state"))));
+            StateFormat.readSettingsJson(state.getJSONObject("settings"), settings);
+            particles = StateFormat.readParticlesJson(state.getJSONObject("particles"));
+        } else {
+            SplittableRandom random = new SplittableRandom(settings.getSeed());
+
+            int nTypes = Integer.parseInt(options.getOrDefault("types", "6"));
+            settings.setMatrix(new Matrix(nTypes, (i, j) -> (float) random.nextDouble(-1, 1)));
+
+            int n = Integer.parseInt(options.getOrDefault("particles", "2000"));
+            float density = Float.parseFloat(options.getOrDefault("density", "0.002"));
+            float sizeX = (float) Math.sqrt(n / density);
+            float sizeY = sizeX;
+            if (options.containsKey("size")) {
+                String[] size = options.get("size").split("x");
+                if (size.length != 2) {
+                    throw new IllegalArgumentException("Expected <width>x<height>: " + options.get("size"));
+                }
+                sizeX = Float.parseFloat(size[0]);
+                sizeY = Float.parseFloat(size[1]);
+            }
+            settings.setRange(sizeX, sizeY);
+            settings.setDt(0.02f);
+
+            int spawnMode = Integer.parseInt(options.getOrDefault("spawn", "0"));
+            particles = Spawner.spawn(n, nTypes, spawnMode, sizeX, sizeY, random);
+        }
+        if (options.containsKey("heat")) {
+            settings.setHeat(Float.parseFloat(options.get("heat")));
+        }
+        if (options.containsKey("wrap")) {
+            settings.setWrap(Boolean.parseBoolean(options.get("wrap")));
+        }
+
+        String nameA = options.getOrDefault("a", "simple");
+        String nameB = options.getOrDefault("b", "grid");
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Updater a = createUpdater(nameA, pool);
+        Updater b = createUpdater(nameB, pool);
+        UpdaterLogic logicA = UpdaterLogic.create(isVectorized(nameA));
+        UpdaterLogic logicB = UpdaterLogic.create(isVectorized(nameB));
+        setParticles(a, particles);
+        setParticles(b, particles);
+
+        // the state at step 0, for the drift of each run
+        double[] startA = measure(a);
+        double[] startB = measure(b);
+
+        System.out.println("step,max_dx,mean_dx,energy_a,energy_b,energy_rel_diff,energy_drift_a,energy_drift_b,"
+                + "momentum_a,momentum_b,momentum_diff,momentum_drift_a,momentum_drift_b");
+
+        float worstError = 0;
+        long worstStep = 0;
+
+        for (int step = 1; step <= steps; step++) {
+
+            // both updaters must see the same step number, for the heat
+            long settingsStep = settings.getStep();
+            a.updateVelocities(settings, logicA);
+            a.updatePositions(settings, logicA);
+            settings.setStep(settingsStep);
+            b.updateVelocities(settings, logicB);
+            b.updatePositions(settings, logicB);
+            settings.setStep(settingsStep + 1);
+
+            double[] d = compare(a, b, settings);
+            if (d[0] > worstError) {
+                worstError = (float) d[0];
+                worstStep = step;
+            }
+
+            if (step % every == 0 || step == steps || d[0] > tolerance) {
+                double[] stateA = measure(a);
+                double[] stateB = measure(b);
+                System.out.printf(Locale.ROOT, "%d,%.6g,%.6g,%.6g,%.6g,%.3g,%.3g,%.3g,%.6g,%.6g,%.6g,%.6g,%.6g%n",
+                        step, d[0], d[1],
+                        stateA[0], stateB[0], relativeDifference(stateA[0], stateB[0]),
+                        relativeDifference(startA[0], stateA[0]), relativeDifference(startB[0], stateB[0]),
+                        momentum(stateA), momentum(stateB), momentumDistance(stateA, stateB),
+                        momentumDistance(startA, stateA), momentumDistance(startB, stateB));
+            }
+
+            if (d[0] > tolerance) {
+                System.err.printf(Locale.ROOT, "FAILED: %s and %s differ by %.6g pixels in step %d (tolerance: %.6g)%n",
+                        nameA, nameB, d[0], step, tolerance);
+                close(a, b, pool);
+                System.exit(1);
+                return;
+            }
+
+            if (lockstep) {
+                setParticles(b, Updaters.copyParticles(a, settings.getMatrix().size()));
+            }
+        }
+
+        System.err.printf(Locale.ROOT, "%s: largest difference %.6g pixels in step %d%n",
+                tolerance < Float.POSITIVE_INFINITY ? "OK" : "DONE", worstError, worstStep);
+        close(a, b, pool);
+    }
+
+    /**
+     * @param name one of the names in {@link #USAGE}, optionally followed by ":simd"
+     *             and by the options of the grid updaters (see {@link UpdaterOptions#parse}), separated by colons.
+     */
+    private static Updater createUpdater(String name, ForkJoinPool pool) {
+
+        String[] tokens = name.split(":");
+        StringBuilder options = new StringBuilder();
+        for (int i = 1; i < tokens.length; i++) {
+            if (!tokens[i].equals("simd")) {
+                options.append(':').append(tokens[i]);
+            }
+        }
+
+        Updater updater;
+        switch (tokens[0]) {
+            case "simple":
+                updater = new SimpleUpdater();
+                break;
+            case "rmax":
+                updater = new RMaxUpdater();
+                break;
+            case "grid":
+                updater = new MultithreadedUpdater(pool);
+                break;
+            case "soa":
+                updater = new StructureOfArraysUpdater(pool);
+                break;
+            case "neighbors":
+                updater = new NeighborListUpdater(pool);
+                break;
+            case "offheap":
+                updater = new OffHeapUpdater(pool);
+                break;
+            case "compact":
+                updater = new CompactUpdater(pool);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown updater: " + name);
+        }
+
+        if (options.length() > 0 && !(updater instanceof MultithreadedUpdater || updater instanceof RMaxUpdater)) {
+            throw new IllegalArgumentException("Only rmax and grid have options: " + name);
+        }
+        UpdaterOptions.parse(options.toString()).applyTo(updater);
+
+        return updater;
+    }
+
+    private static boolean isVectorized(String name) {
+        return Arrays.asList(name.split(":")).contains("simd");
+    }
+
+    /**
+     * Gives the updater its own copy of the particles, which also resets its stable ids to the array indices.
+     */
+    private static void setParticles(Updater updater, Particles particles) {
+        updater.setTypes(particles.types.clone());
+        updater.setPositions(particles.positions.clone());
+        updater.setVelocities(particles.velocities.clone());
+    }
+
+    /**
+     * @return the largest and the mean distance of the same particles.
+     */
+    private static double[] compare(Updater a, Updater b, Settings s) {
+
+        float[] positionsA = a.getPositions();
+        float[] positionsB = b.getPositions();
+        int n = positionsA.length / 2;
+
+        double maxDistance = 0;
+        double sumDistance = 0;
+
+        for (int id = 0; id < n; id++) {
+
+            int i = a.getIndex(id);
+            int j = b.getIndex(id);
+
+            float dx = positionsB[j * 2] - positionsA[i * 2];
+            float dy = positionsB[j * 2 + 1] - positionsA[i * 2 + 1];
+            if (s.isWrap()) {
+                dx = nearestImage(dx, s.getRangeX());
+                dy = nearestImage(dy, s.getRangeY());
+            }
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            maxDistance = Math.max(maxDistance, distance);
+            sumDistance += distance;
+        }
+
+        return new double[]{maxDistance, n > 0 ? sumDistance / n : 0};
+    }
+
+    /**
+     * @return the kinetic energy and the x and y components of the momentum of the updater's particles.
+     */
+    private static double[] measure(Updater updater) {
+
+        float[] velocities = updater.getVelocities();
+
+        double energy = 0;
+        double momentumX = 0;
+        double momentumY = 0;
+
+        for (int i = 0; i < velocities.length / 2; i++) {
+            float vx = velocities[i * 2];
+            float vy = velocities[i * 2 + 1];
+            energy += 0.5 * (vx * vx + vy * vy);
+            momentumX += vx;
+            momentumY += vy;
+        }
+
+        return new double[]{energy, momentumX, momentumY};
+    }
+
+    private static double momentum(double[] state) {
+        return Math.hypot(state[1], state[2]);
+    }
+
+    private static double momentumDistance(double[] state, double[] other) {
+        return Math.hypot(other[1] - state[1], other[2] - state[2]);
+    }
+
+    private static double relativeDifference(double reference, double value) {
+        return reference != 0 ? (value - reference) / reference : value - reference;
+    }
+
+    private static float nearestImage(float d, float range) {
+        if (d > range / 2) {
+            return d - range;
+        } else if (d < -range / 2) {
+            return d + range;
+        }
+        return d;
+    }
+
+    private static void close(Updater a, Updater b, ForkJoinPool pool) {
+        Updaters.close(a);
+        Updaters.close(b);
+        pool.shutdown();
+    }
+
+    /**
+     * @return the options by name (without "--"), flags map to "true". Null if the arguments are invalid.
+     */
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || args[i].equals("--help")) {
+                return null;
+            }
+            String name = args[i].substring(2);
+            if (name.equals("lockstep")) {
+                options.put(name, "true");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                return null;
+            }
+        }
+        return options;
+    }
+}
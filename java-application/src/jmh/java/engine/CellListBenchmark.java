@@ -0,0 +1,35 @@
+package engine;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filling the cells: building a {@link CellList} (count, scan, scatter into blocks, sort the blocks) in a single thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector,jdk.incubator.foreign"})
+public class CellListBenchmark extends ParticleState {
+
+    @Param({"1", "2"})
+    public int subdivisions;
+
+    private final CellList cellList = new CellList();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        createParticles();
+        cellList.setSubdivisions(subdivisions);
+        cellList.resize(settings.getRangeX(), settings.getRangeY(), rMax, n, 1);
+    }
+
+    @Benchmark
+    public int[] build() {
+        cellList.build(positions);
+        return cellList.cellParticles;
+    }
+}
@@ -0,0 +1,60 @@
+package engine;
+
+import logic.UpdaterLogic;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The velocity kernel ({@link logic.DefaultUpdaterLogic} or {@link logic.VectorUpdaterLogic}) alone,
+ * for all cells of a cell list that was built beforehand, in a single thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector,jdk.incubator.foreign"})
+public class KernelBenchmark extends ParticleState {
+
+    @Param({"scalar", "simd"})
+    public String kernel;
+
+    private UpdaterLogic updaterLogic;
+    private final CellList cellList = new CellList();
+    private int[][] neighborRanges;
+    private int[] nNeighborRanges;
+    private float[] velocitiesOut;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        createParticles();
+        updaterLogic = UpdaterLogic.create(kernel.equals("simd"));
+
+        cellList.resize(settings.getRangeX(), settings.getRangeY(), rMax, n, 1);
+        cellList.build(positions);
+
+        int nCells = cellList.getCellCount();
+        neighborRanges = new int[nCells][cellList.getMaxNeighborRanges() * 2];
+        nNeighborRanges = new int[nCells];
+        for (int cell = 0; cell < nCells; cell++) {
+            nNeighborRanges[cell] = cellList.getNeighborRanges(cell % cellList.nx, cell / cellList.nx, wrap, neighborRanges[cell]);
+        }
+
+        velocitiesOut = new float[n * 2];
+    }
+
+    @Benchmark
+    public float[] updateVelocities() {
+        for (int cell = 0; cell < cellList.getCellCount(); cell++) {
+            updaterLogic.updateVelocities(
+                    settings, particleTypes, positions, velocities,
+                    cellList.cellParticles, cellList.cellStart[cell], cellList.cellStart[cell + 1],
+                    neighborRanges[cell], nNeighborRanges[cell],
+                    velocitiesOut
+            );
+        }
+        return velocitiesOut;
+    }
+}
@@ -0,0 +1,60 @@
+package engine;
+
+import logic.Settings;
+import org.openjdk.jmh.annotations.Param;
+
+import java.util.Random;
+
+/**
+ * Randomly placed particles and settings, shared by the benchmarks.
+ * The particle density is always {@link #DENSITY}, the size of the world follows from the number of particles.
+ */
+public abstract class ParticleState {
+
+    static final float DENSITY = 0.002f;
+
+    @Param({"1000", "10000"})
+    public int n;
+
+    @Param({"6"})
+    public int types;
+
+    @Param({"40", "80"})
+    public float rMax;
+
+    @Param({"true", "false"})
+    public boolean wrap;
+
+    Settings settings;
+    int[] particleTypes;
+    float[] positions;
+    float[] velocities;
+
+    /**
+     * Creates the settings and particles, always the same for the same parameters.
+     */
+    void createParticles() {
+
+        Random random = new Random(42);
+
+        float size = (float) Math.sqrt(n / DENSITY);
+
+        settings = new Settings();
+        settings.setRange(size, size);
+        settings.setWrap(wrap);
+        settings.setRMax(rMax);
+        settings.setDt(0.02f);
+        settings.setSeed(42);
+        settings.setMatrix(new Matrix(types, (i, j) -> random.nextFloat() * 2 - 1));
+
+        particleTypes = new int[n];
+        positions = new float[n * 2];
+        velocities = new float[n * 2];
+
+        for (int i = 0; i < n; i++) {
+            particleTypes[i] = random.nextInt(types);
+            positions[i * 2] = random.nextFloat() * size;
+            positions[i * 2 + 1] = random.nextFloat() * size;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package engine;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries of the GUI (which replaced <code>Updater.getRelevant</code>): particles in a circle, and nearest particles.
+ * Each invocation runs {@link #QUERIES} queries at random points, plus one rebuild of the query's cell list.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector,jdk.incubator.foreign"})
+public class SpatialQueryBenchmark extends ParticleState {
+
+    static final int QUERIES = 100;
+    static final int NEAREST = 50;
+
+    private final SpatialQuery spatialQuery = new SpatialQuery();
+    private float[] queryPoints;
+    private final int[] nearestIndices = new int[NEAREST];
+    private final float[] nearestDistancesSquared = new float[NEAREST];
+    private int count;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        createParticles();
+        Random random = new Random(43);
+        queryPoints = new float[QUERIES * 2];
+        for (int i = 0; i < queryPoints.length; i++) {
+            queryPoints[i] = random.nextFloat() * settings.getRangeX();
+        }
+    }
+
+    @Benchmark
+    public int forEachInCircle() {
+        spatialQuery.invalidate();
+        spatialQuery.update(positions, settings);
+        count = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            spatialQuery.forEachInCircle(queryPoints[i * 2], queryPoints[i * 2 + 1], rMax, (index, dx, dy) -> count++);
+        }
+        return count;
+    }
+
+    @Benchmark
+    public void findNearest(Blackhole blackhole) {
+        spatialQuery.invalidate();
+        spatialQuery.update(positions, settings);
+        for (int i = 0; i < QUERIES; i++) {
+            blackhole.consume(spatialQuery.findNearest(queryPoints[i * 2], queryPoints[i * 2 + 1],
+                    nearestIndices, nearestDistancesSquared));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package engine;
+
+import logic.Updater;
+import logic.UpdaterLogic;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One step (velocities and positions) of a whole updater.
+ * The particles are reset before each iteration, so that every iteration measures the same dynamics.
+ * <p>
+ * The options of the grid updaters (see {@link UpdaterOptions#parse}) can be compared with e.g.
+ * <code>-p updater=multithreaded -p options=default,half,ghost,sort=morton,subdivisions=2</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector,jdk.incubator.foreign"})
+public class UpdaterBenchmark extends ParticleState {
+
+    @Param({"simple", "rmax", "multithreaded"})
+    public String updater;
+
+    /**
+     * Only used by the rmax and multithreaded updaters.
+     */
+    @Param({"default"})
+    public String options;
+
+    private ForkJoinPool pool;
+    private Updater instance;
+    private final UpdaterLogic updaterLogic = UpdaterLogic.create(false);
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        createParticles();
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        instance = switch (updater) {
+            case "simple" -> new SimpleUpdater();
+            case "rmax" -> new RMaxUpdater();
+            case "multithreaded" -> new MultithreadedUpdater(pool);
+            default -> throw new IllegalArgumentException("Unknown updater: " + updater);
+        };
+        UpdaterOptions.parse(options).applyTo(instance);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        instance.setTypes(particleTypes.clone());
+        instance.setPositions(positions.clone());
+        instance.setVelocities(velocities.clone());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public float[] step() {
+        instance.updateVelocities(settings, updaterLogic);
+        instance.updatePositions(settings, updaterLogic);
+        return instance.getPositions();
+    }
+}
@@ -0,0 +1,60 @@
+package engine;
+
+import logic.Settings;
+
+/**
+ * Chooses the largest time step that keeps the simulation stable:
+ * no particle may move further than a fraction of rMin in one step,
+ * so that particles can't jump through the repulsive core of each other.
+ * <p>
+ * The time step shrinks at once when the fastest particle gets faster,
+ * and grows again slowly (by {@link #GROWTH_FACTOR} per step) when the system calms down.
+ * It is also limited by the friction, which only damps the velocities as intended
+ * as long as <code>friction * dt</code> is well below 1 (see {@link Settings#setDt(float)}).
+ */
+final class AdaptiveTimeStep {
+
+    /**
+     * How far the fastest particle may move in one step, relative to rMin.
+     */
+    static final float MAX_DISPLACEMENT = 0.25f;
+
+    static final float GROWTH_FACTOR = 1.05f;
+
+    /**
+     * Upper limit of <code>friction * dt</code>.
+     */
+    static final float MAX_FRICTION_DT = 0.5f;
+
+    static final float MIN_DT = 0.0001f;
+    static final float MAX_DT = 0.05f;
+
+    private float dt = 0.01f;
+
+    /**
+     * @return the time step for the next step, in seconds.
+     */
+    float getDt() {
+        return dt;
+    }
+
+    /**
+     * Adjusts the time step after a step.
+     * @param maxSpeed the largest speed of all particles, after the step.
+     */
+    void update(float maxSpeed, Settings s) {
+
+        // if rMin is zero, particles may overlap anyway; then rMax is the only length scale
+        float length = s.getRMin() > 0 ? s.getRMin() : s.getRMax();
+
+        float next = dt * GROWTH_FACTOR;
+        if (maxSpeed > 0) {
+            next = Math.min(next, MAX_DISPLACEMENT * length / maxSpeed);
+        }
+        if (s.getFriction() > 0) {
+            next = Math.min(next, MAX_FRICTION_DT / s.getFriction());
+        }
+
+        dt = Math.max(MIN_DT, Math.min(next, MAX_DT));
+    }
+}
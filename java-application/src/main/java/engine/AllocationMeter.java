@@ -0,0 +1,69 @@
+package engine;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Counts the bytes that the calling thread and the threads of a pool allocate on the heap,
+ * to check that the simulation steps don't allocate once they are warmed up.
+ * <p>
+ * Requires a JVM that counts the allocations per thread (<code>com.sun.management.ThreadMXBean</code>, e.g. HotSpot).
+ * Reading the counters doesn't allocate, so the meter can be read around every step.
+ */
+final class AllocationMeter {
+
+    private final com.sun.management.ThreadMXBean threadBean;
+    private final ForkJoinPool pool;
+
+    private long[] threadIds = new long[0];
+    private long[] startBytes = new long[0];
+
+    /**
+     * @param pool whose threads are counted, in addition to the thread that calls {@link #start()}.
+     */
+    AllocationMeter(ForkJoinPool pool) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            throw new UnsupportedOperationException("This JVM doesn't count the allocated bytes per thread.");
+        }
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        this.pool = pool;
+    }
+
+    /**
+     * Starts counting from zero. Allocates itself, so it should be called outside the measured code.
+     * Only the pool's threads that exist at this point are counted, so the pool should have run a few steps before.
+     */
+    void start() {
+
+        Thread current = Thread.currentThread();
+
+        threadIds = Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t == current || t instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) t).getPool() == pool)
+                .mapToLong(Thread::getId)
+                .toArray();
+
+        startBytes = new long[threadIds.length];
+        for (int i = 0; i < threadIds.length; i++) {
+            startBytes[i] = threadBean.getThreadAllocatedBytes(threadIds[i]);
+        }
+    }
+
+    /**
+     * @return the bytes allocated by the counted threads since {@link #start()}. Doesn't allocate.
+     */
+    long getAllocatedBytes() {
+        long sum = 0;
+        for (int i = 0; i < threadIds.length; i++) {
+            long bytes = threadBean.getThreadAllocatedBytes(threadIds[i]);
+            if (bytes >= 0) {  // -1 if the thread terminated
+                sum += bytes - startBytes[i];
+            }
+        }
+        return sum;
+    }
+}
@@ -1,6 +1,5 @@
 package engine;
 
-import logic.Updater;
 import processing.core.PGraphics;
 
 import java.util.ArrayList;
@@ -18,7 +17,9 @@ public class Camera {
     private static final int MAX_FOCUS_POOL_SIZE = 50;
     private static final int MIN_FOCUS_POOL_SIZE = 5;
     private static final float MAX_FOCUS_DEVIATION = 150;
-    private ArrayList<Integer> focusPool = new ArrayList<>(MAX_FOCUS_POOL_SIZE);  // indices
+    private ArrayList<Integer> focusPool = new ArrayList<>(MAX_FOCUS_POOL_SIZE);  // stable particle ids
+    private final int[] focusCandidates = new int[MAX_FOCUS_POOL_SIZE];  // stable particle ids
+    private final float[] focusCandidateDistancesSquared = new float[MAX_FOCUS_POOL_SIZE];
     private float focusX;
     private float focusY;
     private float nextFocusX;
@@ -36,15 +37,17 @@ public class Camera {
         focusY = nextFocusY;
     }
 
-    public void update(Updater updater, float dt) {
-        float[] positions = updater.getPositions();
+    /**
+     * @param positions the positions of the particles in the order of their stable ids.
+     */
+    public void update(float[] positions, float dt) {
 
         if (following && focusPool.size() > 0) {
             nextFocusX = 0;
             nextFocusY = 0;
-            for (int index : focusPool) {
-                nextFocusX += positions[index * 2];
-                nextFocusY += positions[index * 2 + 1];
+            for (int id : focusPool) {
+                nextFocusX += positions[id * 2];
+                nextFocusY += positions[id * 2 + 1];
             }
 
             nextFocusX /= focusPool.size();
@@ -52,8 +55,8 @@ public class Camera {
 
             // cancel following if focus pool is too spread out
             float xdev = 0;
-            for (int index : focusPool) {
-                float dx = positions[index * 2] - nextFocusX;
+            for (int id : focusPool) {
+                float dx = positions[id * 2] - nextFocusX;
                 xdev += dx*dx;
             }
             if (Math.sqrt(xdev / focusPool.size()) > MAX_FOCUS_DEVIATION) {
@@ -87,24 +90,17 @@ public class Camera {
         return following;
     }
 
-    void startFollow(Updater updater, float x, float y, float radius, boolean wrap) {
+    /**
+     * Follows (at most {@link #MAX_FOCUS_POOL_SIZE}) particles that are closest to (x, y) and within the radius.
+     * @param spatialQuery a query over the positions of the particles in the order of their stable ids.
+     */
+    void startFollow(SpatialQuery spatialQuery, float x, float y, float radius) {
 
-        float[] positions = updater.getPositions();
-
-        float r_2 = radius*radius;
+        int nFound = spatialQuery.findNearest(x, y, focusCandidates, focusCandidateDistancesSquared);
 
         focusPool.clear();
-        for (int index : updater.getRelevant(x, y, radius, wrap)) {
-
-            if (focusPool.size() > MAX_FOCUS_POOL_SIZE) {
-                break;
-            }
-
-            float dx = positions[index * 2] - x;
-            float dy = positions[index * 2 + 1] - y;
-            if (dx * dx + dy * dy < r_2) {
-                focusPool.add(index);
-            }
+        for (int i = 0; i < nFound && focusCandidateDistancesSquared[i] < radius * radius; i++) {
+            focusPool.add(focusCandidates[i]);
         }
 
         if (focusPool.size() >= MIN_FOCUS_POOL_SIZE) {
@@ -0,0 +1,548 @@
+package engine;
+
+/**
+ * Flat (CSR) storage of a uniform grid of cells.
+ * The particles of cell c are <code>cellParticles[cellStart[c]]</code> to <code>cellParticles[cellStart[c + 1] - 1]</code>,
+ * in ascending order of their indices.
+ * <p>
+ * The list is built by a counting sort in two levels, which is split into phases:
+ * first the particles are sorted into blocks of consecutive cells, then each block is sorted into its cells.
+ * That way, the histogram of each chunk of particles only has one entry per block, not per cell,
+ * and the work grows with the number of particles and cells, but not with the number of chunks times cells.
+ * <p>
+ * The phases {@link #count(float[], int)}, {@link #scatter(int)} and {@link #sortBlock(int)}
+ * may run in parallel for different chunks / blocks, but each phase must be complete before the next one starts:
+ * <pre>
+ *     count(positions, chunk)   for all chunks
+ *     scanBlocks()
+ *     scatter(chunk)            for all chunks
+ *     sortBlock(block)          for all blocks
+ * </pre>
+ * {@link #build(float[])} runs all phases in the calling thread.
+ */
+final class CellList {
+
+    int nx;
+    int ny;
+    float cellSizeX;
+    float cellSizeY;
+
+    int[] cellStart = new int[1];
+    int[] cellParticles = new int[0];
+
+    /**
+     * The cell index of every particle.
+     */
+    int[] particleCells = new int[0];
+
+    private int nCells;
+    private int nParticles;
+
+    /**
+     * Into how many cells the cutoff radius is divided.
+     */
+    private int subdivisions = 1;
+    private float cutoff;
+
+    /**
+     * For every row offset dy from -subdivisions to subdivisions:
+     * the largest column offset of a cell that intersects the cutoff circle around the center cell.
+     */
+    private int[] stencilWidths = {1, 1, 1};
+
+    /**
+     * How many blocks of cells there are per chunk of particles (at most),
+     * so that idle threads can take over blocks if the cells are unevenly filled.
+     */
+    private static final int BLOCKS_PER_CHUNK = 4;
+
+    /**
+     * Padding between the histograms of the chunks, so that the chunks don't count into the same cache line.
+     */
+    private static final int COUNTS_PADDING = 16;
+
+    private int nChunks;
+    private int chunkSize;
+
+    private int nBlocks;
+    private int blockSize;
+
+    /**
+     * Histogram of every chunk over the blocks (chunk-major, {@link #countsStride} apart),
+     * is turned into the scatter offsets of every chunk.
+     */
+    private int[] chunkCounts = new int[0];
+    private int countsStride;
+
+    /**
+     * The particles sorted by block (and by index inside a block), with their cells,
+     * the particles of block b are at <code>blockStart[b]</code> to <code>blockStart[b + 1] - 1</code>.
+     */
+    private int[] blockParticles = new int[0];
+    private int[] blockCells = new int[0];
+    private int[] blockStart = new int[1];
+
+    /**
+     * Cells can be smaller than the cutoff radius, so that the cells regarded by {@link #getNeighborRanges}
+     * approximate the cutoff circle more closely.
+     * This takes effect on the next {@link #resize}.
+     * @param subdivisions the cells are at least <code>cutoff / subdivisions</code> wide and high.
+     */
+    void setSubdivisions(int subdivisions) {
+        this.subdivisions = Math.max(1, subdivisions);
+    }
+
+    int getSubdivisions() {
+        return subdivisions;
+    }
+
+    /**
+     * Sets up the grid so that each cell is at least <code>cutoff / subdivisions</code> wide and high.
+     * Buffers are only reallocated if they are too small.
+     * @param cutoff  the radius in which {@link #getNeighborRanges} has to find all particles.
+     * @param nChunks into how many parts the particles are split for the parallel phases.
+     * @return whether the grid or the chunks changed, i.e. whether the results of a previous
+     *         {@link #count(float[], int)} phase are no longer valid.
+     */
+    boolean resize(float rangeX, float rangeY, float cutoff, int nParticles, int nChunks) {
+        return resize(rangeX, rangeY, cutoff, nParticles, nChunks, 1, 1);
+    }
+
+    /**
+     * Works like {@link #resize(float, float, float, int, int)},
+     * but rounds the number of cells down to a multiple of <code>multipleX</code> / <code>multipleY</code>,
+     * if there are enough cells.
+     */
+    boolean resize(float rangeX, float rangeY, float cutoff, int nParticles, int nChunks,
+                   int multipleX, int multipleY) {
+
+        int oldNx = nx;
+        int oldNy = ny;
+        float oldCellSizeX = cellSizeX;
+        float oldCellSizeY = cellSizeY;
+        int oldNParticles = this.nParticles;
+        int oldNChunks = this.nChunks;
+        float oldCutoff = this.cutoff;
+
+        float minCellSize = cutoff / subdivisions;
+        nx = Math.max(1, (int) Math.floor(rangeX / minCellSize));
+        ny = Math.max(1, (int) Math.floor(rangeY / minCellSize));
+        if (nx >= multipleX) {
+            nx -= nx % multipleX;
+        }
+        if (ny >= multipleY) {
+            ny -= ny % multipleY;
+        }
+        cellSizeX = rangeX / nx;
+        cellSizeY = rangeY / ny;
+        nCells = nx * ny;
+
+        this.nParticles = nParticles;
+        this.nChunks = Math.max(1, Math.min(nChunks, nParticles));
+        chunkSize = (nParticles + this.nChunks - 1) / this.nChunks;
+
+        nBlocks = Math.max(1, Math.min(BLOCKS_PER_CHUNK * this.nChunks, nCells));
+        blockSize = (nCells + nBlocks - 1) / nBlocks;
+        countsStride = nBlocks + COUNTS_PADDING;
+
+        if (cellStart.length < nCells + 1) {
+            cellStart = new int[nCells + 1];
+        }
+        if (cellParticles.length < nParticles) {
+            cellParticles = new int[nParticles];
+            particleCells = new int[nParticles];
+            blockParticles = new int[nParticles];
+            blockCells = new int[nParticles];
+        }
+        if (chunkCounts.length < this.nChunks * countsStride) {
+            chunkCounts = new int[this.nChunks * countsStride];
+        }
+        if (blockStart.length < nBlocks + 1) {
+            blockStart = new int[nBlocks + 1];
+        }
+
+        boolean gridChanged = nx != oldNx || ny != oldNy || cellSizeX != oldCellSizeX || cellSizeY != oldCellSizeY;
+
+        if (gridChanged || cutoff != oldCutoff || stencilWidths.length != 2 * subdivisions + 1) {
+            this.cutoff = cutoff;
+            calcStencil();
+        }
+
+        return gridChanged || this.nParticles != oldNParticles || this.nChunks != oldNChunks;
+    }
+
+    /**
+     * Finds the cells that intersect the cutoff circle around any point of the center cell.
+     * The cells in a row are contiguous, so only the width is stored per row.
+     */
+    private void calcStencil() {
+
+        stencilWidths = new int[2 * subdivisions + 1];
+
+        float cutoffSquared = cutoff * cutoff;
+        for (int dy = -subdivisions; dy <= subdivisions; dy++) {
+
+            float gapY = Math.max(0, Math.abs(dy) - 1) * cellSizeY;
+
+            int width = 0;
+            for (int dx = 1; dx <= subdivisions; dx++) {
+                float gapX = (dx - 1) * cellSizeX;
+                if (gapX * gapX + gapY * gapY < cutoffSquared) {
+                    width = dx;
+                }
+            }
+            stencilWidths[dy + subdivisions] = width;
+        }
+    }
+
+    /**
+     * @return how many rows (and columns) the stencil of {@link #getNeighborRanges} reaches in each direction.
+     */
+    int getStencilReach() {
+        return subdivisions;
+    }
+
+    /**
+     * @param dy the row offset, from -{@link #getStencilReach()} to {@link #getStencilReach()}.
+     * @return how many columns the stencil reaches in each direction in the given row.
+     */
+    int getStencilWidth(int dy) {
+        return stencilWidths[dy + subdivisions];
+    }
+
+    /**
+     * @return the size of the buffer needed by {@link #getNeighborRanges}, in ranges (i.e. half the length).
+     */
+    int getMaxNeighborRanges() {
+        return 2 * (2 * subdivisions + 1);
+    }
+
+    int getCellCount() {
+        return nCells;
+    }
+
+    int getChunkCount() {
+        return nChunks;
+    }
+
+    /**
+     * @return the index of the first particle of the given chunk.
+     */
+    int getChunkStart(int chunk) {
+        return Math.min(nParticles, chunk * chunkSize);
+    }
+
+    /**
+     * @return the index after the last particle of the given chunk.
+     */
+    int getChunkEnd(int chunk) {
+        return Math.min(nParticles, (chunk + 1) * chunkSize);
+    }
+
+    int getBlockCount() {
+        return nBlocks;
+    }
+
+    int getCellIndex(int cellX, int cellY) {
+        return nx * cellY + cellX;
+    }
+
+    int getCellX(float x) {
+        return clip((int) Math.floor(x / cellSizeX), 0, nx - 1);
+    }
+
+    int getCellY(float y) {
+        return clip((int) Math.floor(y / cellSizeY), 0, ny - 1);
+    }
+
+    /**
+     * Phase 1: find the cell of every particle in the chunk and count the particles per block.
+     */
+    void count(float[] positions, int chunk) {
+        int offset = startCount(chunk);
+        int end = getChunkEnd(chunk);
+        for (int i = getChunkStart(chunk); i < end; i++) {
+            countParticle(offset, i, positions[i * 2], positions[i * 2 + 1]);
+        }
+    }
+
+    /**
+     * Works like {@link #count(float[], int)}, but with the coordinates stored in separate arrays.
+     */
+    void count(float[] xs, float[] ys, int chunk) {
+        int offset = startCount(chunk);
+        int end = getChunkEnd(chunk);
+        for (int i = getChunkStart(chunk); i < end; i++) {
+            countParticle(offset, i, xs[i], ys[i]);
+        }
+    }
+
+    /**
+     * Phase 1 for positions that are stored elsewhere (e.g. off-heap):
+     * {@link #countParticle} must be called for every particle of the chunk afterwards.
+     * @return the offset of the chunk's histogram, for {@link #countParticle}.
+     */
+    int startCount(int chunk) {
+        int offset = chunk * countsStride;
+        for (int block = 0; block < nBlocks; block++) {
+            chunkCounts[offset + block] = 0;
+        }
+        return offset;
+    }
+
+    /**
+     * Finds the cell of particle i and counts it in the histogram of its chunk.
+     * @param offset from {@link #startCount(int)}
+     */
+    void countParticle(int offset, int i, float x, float y) {
+        int cell = getCellIndex(getCellX(x), getCellY(y));
+        particleCells[i] = cell;
+        chunkCounts[offset + cell / blockSize]++;
+    }
+
+    /**
+     * Phase 2: exclusive prefix sum of the block counts of all chunks (block-major),
+     * i.e. where each chunk starts to write the particles of each block.
+     * This runs over few values (the number of chunks times blocks), so it isn't split up.
+     */
+    void scanBlocks() {
+
+        int sum = 0;
+        for (int block = 0; block < nBlocks; block++) {
+
+            blockStart[block] = sum;
+
+            for (int chunk = 0; chunk < nChunks; chunk++) {
+                int countIndex = chunk * countsStride + block;
+                int count = chunkCounts[countIndex];
+                chunkCounts[countIndex] = sum;
+                sum += count;
+            }
+        }
+
+        blockStart[nBlocks] = nParticles;
+        cellStart[nCells] = nParticles;
+    }
+
+    /**
+     * Phase 3: write the particle indices of the chunk (and their cells) to their place in the blocks.
+     * The chunks are in ascending order inside each block, so the particles of a block are, too.
+     */
+    void scatter(int chunk) {
+
+        int offset = chunk * countsStride;
+
+        int end = getChunkEnd(chunk);
+        for (int i = getChunkStart(chunk); i < end; i++) {
+            int cell = particleCells[i];
+            int target = chunkCounts[offset + cell / blockSize]++;
+            blockParticles[target] = i;
+            blockCells[target] = cell;
+        }
+    }
+
+    /**
+     * Phase 4: counting sort of the particles of the block into its cells,
+     * i.e. <code>cellStart</code> and <code>cellParticles</code> of the cells of the block.
+     * The sort is stable, so the particles of a cell stay in ascending order.
+     */
+    void sortBlock(int block) {
+
+        int firstCell = block * blockSize;
+        int endCell = Math.min(nCells, firstCell + blockSize);
+        if (firstCell >= endCell) {
+            return;
+        }
+
+        int from = blockStart[block];
+        int to = blockStart[block + 1];
+
+        for (int cell = firstCell; cell < endCell; cell++) {
+            cellStart[cell] = 0;
+        }
+        for (int p = from; p < to; p++) {
+            cellStart[blockCells[p]]++;
+        }
+
+        int sum = from;
+        for (int cell = firstCell; cell < endCell; cell++) {
+            int count = cellStart[cell];
+            cellStart[cell] = sum;
+            sum += count;
+        }
+
+        // cellStart serves as the write position of each cell, and ends up at the start of the next cell
+        for (int p = from; p < to; p++) {
+            cellParticles[cellStart[blockCells[p]]++] = blockParticles[p];
+        }
+        for (int cell = endCell - 1; cell > firstCell; cell--) {
+            cellStart[cell] = cellStart[cell - 1];
+        }
+        cellStart[firstCell] = from;
+    }
+
+    /**
+     * Runs all phases in the calling thread.
+     */
+    void build(float[] positions) {
+        for (int chunk = 0; chunk < nChunks; chunk++) {
+            count(positions, chunk);
+        }
+        scanBlocks();
+        for (int chunk = 0; chunk < nChunks; chunk++) {
+            scatter(chunk);
+        }
+        for (int block = 0; block < nBlocks; block++) {
+            sortBlock(block);
+        }
+    }
+
+    /**
+     * Writes the ranges (in <code>cellParticles</code>) of all cells that intersect the cutoff circle
+     * around the given cell to <code>ranges</code>.
+     * The cells of a row are merged into one range (two if the row wraps around).
+     * <p>
+     * If the world wraps and the stencil would cover cells twice, the range of all particles is returned instead.
+     * @param ranges must have room for {@link #getMaxNeighborRanges()} ranges.
+     * @return the number of ranges.
+     */
+    int getNeighborRanges(int cellX, int cellY, boolean wrap, int[] ranges) {
+
+        int reach = subdivisions;
+
+        if (wrap && (nx <= 2 * reach || ny <= 2 * reach)) {
+            ranges[0] = 0;
+            ranges[1] = cellStart[nCells];
+            return 1;
+        }
+
+        int nRanges = 0;
+
+        for (int dy = -reach; dy <= reach; dy++) {
+
+            int cy = cellY + dy;
+            if (wrap) {
+                cy = modulo(cy, ny);
+            } else if (cy < 0 || cy >= ny) {
+                continue;
+            }
+
+            int width = stencilWidths[dy + reach];
+            int minCellX = cellX - width;
+            int maxCellX = cellX + width;
+
+            if (wrap) {
+                if (minCellX < 0) {
+                    nRanges = addRowRange(minCellX + nx, nx - 1, cy, ranges, nRanges);
+                    minCellX = 0;
+                } else if (maxCellX >= nx) {
+                    nRanges = addRowRange(0, maxCellX - nx, cy, ranges, nRanges);
+                    maxCellX = nx - 1;
+                }
+            } else {
+                minCellX = Math.max(0, minCellX);
+                maxCellX = Math.min(nx - 1, maxCellX);
+            }
+
+            nRanges = addRowRange(minCellX, maxCellX, cy, ranges, nRanges);
+        }
+
+        return nRanges;
+    }
+
+    /**
+     * Adds the range of the cells minCellX to maxCellX in row cellY, if it isn't empty.
+     * @return the new number of ranges.
+     */
+    private int addRowRange(int minCellX, int maxCellX, int cellY, int[] ranges, int nRanges) {
+        int start = cellStart[getCellIndex(minCellX, cellY)];
+        int end = cellStart[getCellIndex(maxCellX, cellY) + 1];
+        if (end > start) {
+            ranges[nRanges * 2] = start;
+            ranges[nRanges * 2 + 1] = end;
+            nRanges++;
+        }
+        return nRanges;
+    }
+
+    /**
+     * Offsets of the cells that are regarded in {@link #getHalfNeighborRanges}.
+     * Together with their mirrored offsets, they make up the 8 neighbors of a cell.
+     */
+    private static final int[][] HALF_STENCIL = {{1, 0}, {-1, 1}, {0, 1}, {1, 1}};
+
+    static final int HALF_STENCIL_COLORS_X = 3;
+    static final int HALF_STENCIL_COLORS_Y = 2;
+
+    /**
+     * Writes the ranges (in <code>cellParticles</code>) of half of the 8 neighbor cells of the given cell
+     * to <code>ranges</code>, so that each pair of neighboring cells is only visited from one side.
+     * The given cell itself is not included.
+     * The affected cells are at most 1 cell left or right and at most 1 cell below the given cell.
+     * @return the number of ranges.
+     */
+    int getHalfNeighborRanges(int cellX, int cellY, boolean wrap, int[] ranges) {
+
+        int centerCell = getCellIndex(cellX, cellY);
+        int nRanges = 0;
+
+        for (int[] offset : HALF_STENCIL) {
+
+            int cx = cellX + offset[0];
+            int cy = cellY + offset[1];
+
+            if (wrap) {
+                cx = modulo(cx, nx);
+                cy = modulo(cy, ny);
+            } else if (cx < 0 || cx >= nx || cy >= ny) {
+                continue;
+            }
+
+            int cell = getCellIndex(cx, cy);
+            if (cell != centerCell) {
+                ranges[nRanges * 2] = cellStart[cell];
+                ranges[nRanges * 2 + 1] = cellStart[cell + 1];
+                nRanges++;
+            }
+        }
+
+        return nRanges;
+    }
+
+    /**
+     * The half stencil writes to cells that are up to 1 cell left or right and 1 cell below.
+     * If the cells are colored in a 3x2 pattern, cells of the same color never write to the same cells,
+     * so all cells of one color can be processed in parallel.
+     * If wrap is enabled, this requires nx to be a multiple of 3 and ny to be a multiple of 2.
+     * The half stencil only covers 3x3 cells, so it also requires the cells to be at least as large as the cutoff.
+     * <p>
+     * If wrap is enabled, each pair of cells must also be reached by only one of the two cells:
+     * with 2 rows, the row below a cell is also the row above it, and with fewer than 3 columns,
+     * the cells left and right of a cell are the same, so pairs would be evaluated twice.
+     * This requires at least 3 columns and 4 rows (the next multiple of 2 above 2).
+     * @return whether the half stencil can be used with the current grid.
+     */
+    boolean supportsHalfStencil(boolean wrap) {
+        if (subdivisions != 1) {
+            return false;
+        }
+        if (!wrap) {
+            return true;
+        }
+        return nx >= 3 && ny >= 4 && nx % HALF_STENCIL_COLORS_X == 0 && ny % HALF_STENCIL_COLORS_Y == 0;
+    }
+
+    private static int modulo(int a, int b) {
+        return ((a % b) + b) % b;
+    }
+
+    private static int clip(int val, int min, int max) {
+        if (val < min) {
+            return min;
+        }
+        if (val > max) {
+            return max;
+        }
+        return val;
+    }
+}
@@ -0,0 +1,452 @@
+package engine;
+
+import logic.CompactParticles;
+import logic.Settings;
+import logic.Updater;
+import logic.UpdaterLogic;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Works like {@link MultithreadedUpdater}, but stores the particles in the {@link CompactParticles} layout
+ * (9 instead of 20 bytes per particle), so that the velocity update has to read less memory.
+ * <p>
+ * The particles are always sorted by cell, they are moved to other indices in every step.
+ * Like with {@link SpatialOrder}, each particle keeps its stable id (see {@link #getIndex(int)}).
+ * <p>
+ * The arrays returned by the getters are decoded on demand, at most once per update.
+ * Their indices are the current indices of the compact layout.
+ */
+class CompactUpdater implements Updater {
+
+    private final Parallel parallel;
+    private final StepProfiler profiler;
+
+    /**
+     * @param pool the threads that are used for updating. The caller is responsible for shutting it down.
+     */
+    CompactUpdater(ForkJoinPool pool) {
+        this(pool, new StepProfiler());
+    }
+
+    /**
+     * @param pool the threads that are used for updating. The caller is responsible for shutting it down.
+     * @param profiler gets the durations of the phases of the steps.
+     */
+    CompactUpdater(ForkJoinPool pool, StepProfiler profiler) {
+        this.parallel = new Parallel(pool, profiler);
+        this.profiler = profiler;
+    }
+
+    /**
+     * Uses the common pool.
+     */
+    CompactUpdater() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    private CompactParticles particles = new CompactParticles();
+    private CompactParticles particlesBuffer = new CompactParticles();
+    private short[] velocitiesBuffer = new short[0];
+
+    /**
+     * Stable id of the particle at each index.
+     */
+    private int[] ids = new int[0];
+    private int[] idsBuffer = new int[0];
+
+    /**
+     * Index of the particle with each id, only computed on demand.
+     */
+    private int[] indices = new int[0];
+    private boolean indicesValid = false;
+
+    /**
+     * The particles as they were set (in the order of the current indices), until they are encoded by the next update.
+     */
+    private int[] setTypes = new int[0];
+    private float[] setPositions = new float[0];
+    private float[] setVelocities = new float[0];
+    private boolean encoded = false;
+
+    /**
+     * Decoded copies for the getters.
+     */
+    private int[] types = new int[0];
+    private float[] positions = new float[0];
+    private float[] velocities = new float[0];
+    private boolean typesValid = false;
+    private boolean positionsValid = false;
+    private boolean velocitiesValid = false;
+
+    private final CellList cellList = new CellList();
+
+    /**
+     * Positions after moving, in the order of the current indices.
+     */
+    private float[] movedPositions = new float[0];
+
+    // The arguments of the current step, for the parallel tasks below.
+    // The tasks are only created once, so that a step doesn't allocate (see Parallel).
+
+    private final Settings s = new Settings();  // copy, the UI thread could change the settings
+    private UpdaterLogic updaterLogic;
+
+    private final Parallel.IndexTask countTask = chunk -> cellList.count(movedPositions, chunk);
+    private final Parallel.IndexTask scatterTask = chunk -> cellList.scatter(chunk);
+    private final Parallel.IndexTask sortBlockTask = block -> cellList.sortBlock(block);
+
+    // moves the particles from particles to particlesBuffer, in the order of the cell list
+    private final Parallel.RangeTask sortTask = (fromCell, toCell, scratch) -> {
+
+        CompactParticles from = particles;
+        CompactParticles to = particlesBuffer;
+
+        for (int cell = fromCell; cell < toCell; cell++) {
+
+            int cellX = cell % to.nx;
+            int cellY = cell / to.nx;
+
+            for (int i = to.cellStart[cell]; i < to.cellStart[cell + 1]; i++) {
+
+                int old = cellList.cellParticles[i];
+
+                to.types[i] = from.types[old];
+                to.velocities[i * 2] = from.velocities[old * 2];
+                to.velocities[i * 2 + 1] = from.velocities[old * 2 + 1];
+                to.positions[i * 2] = CompactParticles.encodeOffset(movedPositions[old * 2], cellX, to.cellSizeX);
+                to.positions[i * 2 + 1] = CompactParticles.encodeOffset(movedPositions[old * 2 + 1], cellY, to.cellSizeY);
+                idsBuffer[i] = ids[old];
+            }
+        }
+    };
+
+    private final Parallel.RangeTask updateVelocitiesTask = (from, to, scratch) -> {
+        for (int cell = from; cell < to; cell++) {
+            updaterLogic.updateVelocities(s, particles, cell % particles.nx, cell / particles.nx, velocitiesBuffer);
+        }
+    };
+
+    private final Parallel.IndexTask updatePositionsTask = chunk -> {
+        updaterLogic.updatePositions(s, particles, cellList.getChunkStart(chunk), cellList.getChunkEnd(chunk), movedPositions);
+        cellList.count(movedPositions, chunk);
+    };
+
+    @Override
+    public void setTypes(int[] types) {
+        for (int type : types) {
+            if (type > 0xFF) {
+                throw new IllegalArgumentException("The compact layout supports at most 256 types, got type " + type);
+            }
+        }
+        decodeForSetting();
+        if (types != this.types) {
+            // new particles: the ids start over
+            // create buffers if necessary
+            if (ids.length != types.length) {
+                ids = new int[types.length];
+                idsBuffer = new int[types.length];
+            }
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = i;
+            }
+            indicesValid = false;
+        }
+        setTypes = types;
+        this.types = types;
+        typesValid = true;
+    }
+
+    @Override
+    public void setPositions(float[] positions) {
+        decodeForSetting();
+        setPositions = positions;
+        this.positions = positions;
+        positionsValid = true;
+    }
+
+    @Override
+    public void setVelocities(float[] velocities) {
+        decodeForSetting();
+        setVelocities = velocities;
+        this.velocities = velocities;
+        velocitiesValid = true;
+    }
+
+    /**
+     * If only some of the arrays are set, the others must be taken from the current particles.
+     */
+    private void decodeForSetting() {
+        if (encoded) {
+            setTypes = getTypes();
+            setPositions = getPositions();
+            setVelocities = getVelocities();
+            encoded = false;
+        }
+    }
+
+    @Override
+    public int getIndex(int id) {
+        if (!indicesValid) {
+            // create buffer if necessary
+            if (indices.length != ids.length) {
+                indices = new int[ids.length];
+            }
+            for (int i = 0; i < ids.length; i++) {
+                indices[ids[i]] = i;
+            }
+            indicesValid = true;
+        }
+        return indices[id];
+    }
+
+    @Override
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    @Override
+    public int[] getTypes() {
+        if (!typesValid) {
+            types = decodeTypes(types);
+            typesValid = true;
+        }
+        return types;
+    }
+
+    @Override
+    public float[] getPositions() {
+        if (!positionsValid) {
+            positions = decodePositions(positions);
+            positionsValid = true;
+        }
+        return positions;
+    }
+
+    @Override
+    public float[] getVelocities() {
+        if (!velocitiesValid) {
+            velocities = decodeVelocities(velocities);
+            velocitiesValid = true;
+        }
+        return velocities;
+    }
+
+    /**
+     * Reads the half floats directly, without decoding all velocities.
+     */
+    @Override
+    public float getMaxSpeed() {
+        if (!encoded) {
+            return Updater.super.getMaxSpeed();
+        }
+        short[] v = particles.velocities;
+        float maxSpeedSquared = 0;
+        for (int i = 0; i < ids.length * 2; i += 2) {
+            float vx = CompactParticles.fromHalf(v[i]);
+            float vy = CompactParticles.fromHalf(v[i + 1]);
+            maxSpeedSquared = Math.max(maxSpeedSquared, vx * vx + vy * vy);
+        }
+        return (float) Math.sqrt(maxSpeedSquared);
+    }
+
+    private int[] decodeTypes(int[] types) {
+        int n = ids.length;
+        // create buffer if necessary
+        if (types.length != n) {
+            types = new int[n];
+        }
+        for (int i = 0; i < n; i++) {
+            types[i] = particles.getType(i);
+        }
+        return types;
+    }
+
+    private float[] decodePositions(float[] positions) {
+        int n = ids.length;
+        // create buffer if necessary
+        if (positions.length != n * 2) {
+            positions = new float[n * 2];
+        }
+        for (int cellY = 0; cellY < particles.ny; cellY++) {
+            for (int cellX = 0; cellX < particles.nx; cellX++) {
+                int cell = particles.nx * cellY + cellX;
+                for (int i = particles.cellStart[cell]; i < particles.cellStart[cell + 1]; i++) {
+                    positions[i * 2] = particles.getX(i, cellX);
+                    positions[i * 2 + 1] = particles.getY(i, cellY);
+                }
+            }
+        }
+        return positions;
+    }
+
+    private float[] decodeVelocities(float[] velocities) {
+        int n = ids.length;
+        // create buffer if necessary
+        if (velocities.length != n * 2) {
+            velocities = new float[n * 2];
+        }
+        for (int i = 0; i < n * 2; i++) {
+            velocities[i] = CompactParticles.fromHalf(particles.velocities[i]);
+        }
+        return velocities;
+    }
+
+    /**
+     * Encodes the particles that were set, in the order of their cells.
+     */
+    private void encode(Settings s) {
+
+        int n = setTypes.length;
+
+        // the set particles take the place of the current particles, then they are sorted like after a step
+        particles.types = ensureCapacity(particles.types, n);
+        particles.velocities = ensureCapacity(particles.velocities, n * 2);
+        for (int i = 0; i < n; i++) {
+            particles.types[i] = (byte) setTypes[i];
+            particles.velocities[i * 2] = CompactParticles.toHalf(setVelocities[i * 2]);
+            particles.velocities[i * 2 + 1] = CompactParticles.toHalf(setVelocities[i * 2 + 1]);
+        }
+
+        if (movedPositions.length != n * 2) {
+            movedPositions = new float[n * 2];
+        }
+        System.arraycopy(setPositions, 0, movedPositions, 0, n * 2);
+
+        cellList.resize(s.getRangeX(), s.getRangeY(), s.getRMax(), n, parallel.getParallelism());
+        parallel.runEach(cellList.getChunkCount(), countTask);
+        sort();
+
+        encoded = true;
+    }
+
+    /**
+     * Finishes building the cell list for {@link #movedPositions} (after the count phase)
+     * and moves the particles to their new indices, encoding the positions relative to their new cells.
+     */
+    private void sort() {
+
+        cellList.scanBlocks();
+        parallel.runEach(cellList.getChunkCount(), scatterTask);
+        parallel.runEach(cellList.getBlockCount(), sortBlockTask);
+
+        int n = ids.length;
+
+        // create buffers if necessary
+        particlesBuffer.types = ensureCapacity(particlesBuffer.types, n);
+        particlesBuffer.positions = ensureCapacity(particlesBuffer.positions, n * 2);
+        particlesBuffer.velocities = ensureCapacity(particlesBuffer.velocities, n * 2);
+        if (particlesBuffer.cellStart.length != cellList.getCellCount() + 1) {
+            particlesBuffer.cellStart = new int[cellList.getCellCount() + 1];
+        }
+        System.arraycopy(cellList.cellStart, 0, particlesBuffer.cellStart, 0, cellList.getCellCount() + 1);
+        particlesBuffer.nx = cellList.nx;
+        particlesBuffer.ny = cellList.ny;
+        particlesBuffer.cellSizeX = cellList.cellSizeX;
+        particlesBuffer.cellSizeY = cellList.cellSizeY;
+
+        parallel.run(cellList.getCellCount(), sortTask);
+
+        // swap buffers
+        CompactParticles h = particles;
+        particles = particlesBuffer;
+        particlesBuffer = h;
+
+        int[] h2 = ids;
+        ids = idsBuffer;
+        idsBuffer = h2;
+
+        indicesValid = false;
+        typesValid = false;
+        positionsValid = false;
+        velocitiesValid = false;
+    }
+
+    private static byte[] ensureCapacity(byte[] array, int length) {
+        return array.length == length ? array : new byte[length];
+    }
+
+    private static short[] ensureCapacity(short[] array, int length) {
+        return array.length == length ? array : new short[length];
+    }
+
+    /**
+     * @return whether the grid of the compact layout fits the settings.
+     */
+    private boolean gridMatches(Settings s) {
+        return particles.nx == cellList.nx && particles.ny == cellList.ny
+                && !cellList.resize(s.getRangeX(), s.getRangeY(), s.getRMax(), ids.length, parallel.getParallelism());
+    }
+
+    @Override
+    public void updateVelocities(Settings settings, UpdaterLogic updaterLogic) {
+
+        s.copyFrom(settings);  // UI thread could change settings
+        this.updaterLogic = updaterLogic;
+
+        long start = System.nanoTime();
+
+        if (encoded && !gridMatches(s)) {
+            // re-encode with the new grid
+            setTypes = getTypes();
+            setPositions = getPositions();
+            setVelocities = getVelocities();
+            encoded = false;
+        }
+        if (!encoded) {
+            encode(s);
+            // encoding sorts the particles into the cells
+            start = profiler.record(StepProfiler.Phase.CELLS, start);
+        }
+
+        // create buffer if necessary
+        if (velocitiesBuffer.length != particles.velocities.length) {
+            velocitiesBuffer = new short[particles.velocities.length];
+        }
+
+        parallel.run(particles.nx * particles.ny, updateVelocitiesTask);
+
+        // swap buffer
+        short[] h = particles.velocities;
+        particles.velocities = velocitiesBuffer;
+        velocitiesBuffer = h;
+
+        velocitiesValid = false;
+
+        profiler.record(StepProfiler.Phase.FORCES, start);
+    }
+
+    /**
+     * Moves the particles and finds their new cells in the same parallel pass,
+     * then sorts them into their new cells.
+     */
+    @Override
+    public void updatePositions(Settings settings, UpdaterLogic updaterLogic) {
+
+        s.copyFrom(settings);  // UI thread could change settings
+        this.updaterLogic = updaterLogic;
+
+        long start = System.nanoTime();
+
+        if (!encoded) {
+            encode(s);
+        }
+
+        int n = ids.length;
+
+        // create buffer if necessary
+        if (movedPositions.length != n * 2) {
+            movedPositions = new float[n * 2];
+        }
+
+        cellList.resize(s.getRangeX(), s.getRangeY(), s.getRMax(), n, parallel.getParallelism());
+
+        parallel.runEach(cellList.getChunkCount(), updatePositionsTask);
+
+        start = profiler.record(StepProfiler.Phase.INTEGRATION, start);
+
+        sort();
+
+        profiler.record(StepProfiler.Phase.CELLS, start);
+    }
+}
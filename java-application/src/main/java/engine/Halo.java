@@ -0,0 +1,191 @@
+package engine;
+
+/**
+ * A ring of ghost cells around a wrapped grid, as wide as the stencil of the cell list reaches.
+ * The ghost cells contain copies of the particles of the opposite border cells,
+ * with coordinates that are already shifted by the range.
+ * <p>
+ * With the ghosts, the stencil around every cell of the grid simply consists of its neighbors in the extended grid,
+ * and the distance to any neighbor is the plain difference of the coordinates.
+ * So neither the cell lookup nor the force kernel need any wrap logic.
+ * <p>
+ * The arrays {@link #types}, {@link #positions} and {@link #indices} contain the real particles first
+ * (the indices in the order of the cell list), followed by the ghosts.
+ */
+final class Halo {
+
+    int[] types = new int[0];
+    float[] positions = new float[0];
+
+    /**
+     * The cell list's <code>cellParticles</code>, followed by the indices of the ghosts.
+     */
+    int[] indices = new int[0];
+
+    private CellList cellList;
+    private int nx;
+    private int ny;
+
+    /**
+     * Width of the ring of ghost cells.
+     */
+    private int reach;
+
+    /**
+     * Ranges (in {@link #indices}) of the cells of the extended grid, which is <code>reach</code> cells larger on every side.
+     * The ghost cells are stored in the order of the extended grid, so that the cells of a row are contiguous
+     * (except for where the ghost cells and the real cells meet).
+     */
+    private int[] cellStart = new int[0];
+    private int[] cellEnd = new int[0];
+
+    /**
+     * If the grid is at most twice as wide or high as the stencil reaches, the stencil would contain copies of
+     * the same cell more than once (see {@link CellList#getNeighborRanges}), so particles would interact several times.
+     * @return whether ghost cells can be used with the current grid of the cell list.
+     */
+    static boolean supports(CellList cellList) {
+        int reach = cellList.getStencilReach();
+        return cellList.nx > 2 * reach && cellList.ny > 2 * reach;
+    }
+
+    /**
+     * Copies the particles and creates the ghosts.
+     * The cell list must be up-to-date with the given positions, and its grid must be large enough (see {@link #supports}).
+     */
+    void build(CellList cellList, int[] types, float[] positions, float rangeX, float rangeY) {
+
+        this.cellList = cellList;
+        nx = cellList.nx;
+        ny = cellList.ny;
+        reach = cellList.getStencilReach();
+        int n = types.length;
+        int[] innerStart = cellList.cellStart;
+
+        // count the ghosts
+
+        int nGhosts = 0;
+        for (int hy = -reach; hy < ny + reach; hy++) {
+            for (int hx = -reach; hx < nx + reach; hx++) {
+                if (isGhostCell(hx, hy)) {
+                    int source = cellList.getCellIndex(modulo(hx, nx), modulo(hy, ny));
+                    nGhosts += innerStart[source + 1] - innerStart[source];
+                }
+            }
+        }
+
+        // create buffers if necessary
+        int extendedCells = (nx + 2 * reach) * (ny + 2 * reach);
+        if (cellStart.length < extendedCells) {
+            cellStart = new int[extendedCells];
+            cellEnd = new int[extendedCells];
+        }
+        if (this.types.length < n + nGhosts) {
+            int capacity = n + nGhosts + nGhosts / 4;
+            this.types = new int[capacity];
+            this.positions = new float[capacity * 2];
+            this.indices = new int[capacity];
+        }
+
+        // real particles
+
+        System.arraycopy(types, 0, this.types, 0, n);
+        System.arraycopy(positions, 0, this.positions, 0, n * 2);
+        System.arraycopy(cellList.cellParticles, 0, indices, 0, n);
+
+        // ghosts, appended cell by cell
+
+        int ghost = n;
+        for (int hy = -reach; hy < ny + reach; hy++) {
+            for (int hx = -reach; hx < nx + reach; hx++) {
+
+                int extendedCell = getExtendedCellIndex(hx, hy);
+
+                if (!isGhostCell(hx, hy)) {
+                    int cell = cellList.getCellIndex(hx, hy);
+                    cellStart[extendedCell] = innerStart[cell];
+                    cellEnd[extendedCell] = innerStart[cell + 1];
+                    continue;
+                }
+
+                float shiftX = Math.floorDiv(hx, nx) * rangeX;
+                float shiftY = Math.floorDiv(hy, ny) * rangeY;
+
+                int source = cellList.getCellIndex(modulo(hx, nx), modulo(hy, ny));
+
+                cellStart[extendedCell] = ghost;
+                for (int k = innerStart[source]; k < innerStart[source + 1]; k++) {
+                    int index = cellList.cellParticles[k];
+                    this.types[ghost] = types[index];
+                    this.positions[ghost * 2] = positions[index * 2] + shiftX;
+                    this.positions[ghost * 2 + 1] = positions[index * 2 + 1] + shiftY;
+                    indices[ghost] = ghost;
+                    ghost++;
+                }
+                cellEnd[extendedCell] = ghost;
+            }
+        }
+    }
+
+    /**
+     * Writes the ranges (in {@link #indices}) of the cells of the stencil around the given cell
+     * (see {@link CellList#getNeighborRanges}) to <code>ranges</code>. The cells may be ghost cells.
+     * Ranges of neighboring cells are merged where they are contiguous.
+     * @param ranges must have room for {@link #getMaxNeighborRanges()} ranges.
+     * @return the number of ranges.
+     */
+    int getNeighborRanges(int cellX, int cellY, int[] ranges) {
+
+        int nRanges = 0;
+
+        for (int dy = -reach; dy <= reach; dy++) {
+
+            int width = cellList.getStencilWidth(dy);
+
+            for (int cx = cellX - width; cx <= cellX + width; cx++) {
+
+                int cell = getExtendedCellIndex(cx, cellY + dy);
+                int start = cellStart[cell];
+                int end = cellEnd[cell];
+
+                if (end == start) {
+                    continue;
+                }
+
+                if (nRanges > 0 && ranges[nRanges * 2 - 1] == start) {
+                    ranges[nRanges * 2 - 1] = end;
+                } else {
+                    ranges[nRanges * 2] = start;
+                    ranges[nRanges * 2 + 1] = end;
+                    nRanges++;
+                }
+            }
+        }
+
+        return nRanges;
+    }
+
+    /**
+     * @return the size of the buffer needed by {@link #getNeighborRanges}, in ranges (i.e. half the length).
+     * A row of the stencil consists of at most 3 parts: ghost cells, real cells, ghost cells.
+     */
+    int getMaxNeighborRanges() {
+        return 3 * (2 * cellList.getStencilReach() + 1);
+    }
+
+    private boolean isGhostCell(int cellX, int cellY) {
+        return cellX < 0 || cellX >= nx || cellY < 0 || cellY >= ny;
+    }
+
+    /**
+     * @param cellX may be -reach to nx + reach - 1.
+     * @param cellY may be -reach to ny + reach - 1.
+     */
+    private int getExtendedCellIndex(int cellX, int cellY) {
+        return (nx + 2 * reach) * (cellY + reach) + (cellX + reach);
+    }
+
+    private static int modulo(int a, int b) {
+        return ((a % b) + b) % b;
+    }
+}
@@ -0,0 +1,303 @@
+package engine;
+
+import logic.Settings;
+import logic.Updater;
+import logic.UpdaterLogic;
+import processing.data.JSONObject;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs the simulation without a window, e.g. for long batch runs on servers.
+ * Nothing of Processing is used except its JSON classes for the state files, and nothing of Swing.
+ * <p>
+ * The particles either come from a state file (as written with <code>--out</code>, or by the GUI),
+ * or are spawned with a matrix from a file or a random matrix.
+ * After stepping, the runner prints a throughput report and optionally writes the final state
+ * and snapshots of the positions.
+ * <p>
+ * The report also shows the p50, p99 and maximum duration of the phases of a step,
+ * and how busy the threads were (see {@link StepProfiler}).
+ * <p>
+ * The report includes the bytes that the steps allocated after {@link #ALLOCATION_WARMUP_STEPS} steps
+ * (by the main thread and the updater's threads, see {@link AllocationMeter}).
+ * With <code>--allocation-budget</code>, the run fails (exit code 1) if the median step allocated more than that.
+ * The median ignores the few bytes that the JVM allocates once in a while for a thread (e.g. when it first steals a task),
+ * but not allocations that happen in every step.
+ * <p>
+ * Run with <code>gradle headless --args="..."</code>, see {@link #USAGE} for the options.
+ */
+public class HeadlessRunner {
+
+    private static final String USAGE = String.join("\n",
+            "Options (all optional):",
+            "  --state <file>           start from a state file (JSON), instead of spawning particles",
+            "  --matrix <file>          attraction matrix as text, one row per line (default: random)",
+            "  --types <n>              number of types of the random matrix (default: 6)",
+            "  --particles <n>          number of particles to spawn (default: 10000)",
+            "  --density <d>            particles per pixel^2, determines the world size (default: 0.002)",
+            "  --spawn <mode>           spawn pattern, see the GUI (default: 0, uniform)",
+            "  --seed <n>               seed of the matrix, spawning and heat (default: random)",
+            "  --heat <h>               (default: 0, or from the state)",
+            "  --steps <n>              (default: 1000)",
+            "  --dt <ms>                time step (default: 20, or from the state)",
+            "  --updater <index>        0: grid, 1: grid (SoA), 2: neighbor lists, 3: grid (off-heap), 4: grid (compact)",
+            "  --threads <n>            (default: all processors)",
+            "  --simd                   use the SIMD kernel (requires --add-modules jdk.incubator.vector)",
+            "  --half-stencil           evaluate each pair once (grid updater only)",
+            "  --ghost-cells            copy the particles near the borders instead of wrapping (grid updater only)",
+            "  --spatial-order <mode>   reorder the particles: none, cells or morton, optionally /<interval in steps>,",
+            "                           e.g. morton/5 (grid updater only, default: none/10)",
+            "  --subdivisions <n>       cells of rMax / n (grid updater only, default: 1)",
+            "  --out <file>             write the final state (JSON)",
+            "  --report <file>          also write the report to a file",
+            "  --snapshots <dir>        write the positions every --snapshot-every steps (CSV)",
+            "  --snapshot-every <n>     (default: 100)",
+            "  --allocation-budget <b>  fail if the median step allocates more bytes than this, e.g. 0"
+    );
+
+    /**
+     * How often the pair interactions are counted during a run.
+     */
+    private static final int PAIR_SAMPLES = 10;
+
+    /**
+     * Steps before the allocations are counted, so that buffers can be created and the JIT can compile the steps.
+     */
+    private static final int ALLOCATION_WARMUP_STEPS = 100;
+
+    public static void main(String[] args) throws IOException {
+
+        Map<String, String> options = parseOptions(args);
+        if (options == null) {
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        int steps = Integer.parseInt(options.getOrDefault("steps", "1000"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int updaterIndex = Updaters.resolve(Integer.parseInt(options.getOrDefault("updater", "0")));
+        int snapshotEvery = Integer.parseInt(options.getOrDefault("snapshot-every", "100"));
+        Path snapshotDir = options.containsKey("snapshots") ? Path.of(options.get("snapshots")) : null;
+
+        Settings settings = new Settings();
+        Particles particles;
+
+        if (options.containsKey("state")) {
+            JSONObject state = JSONObject.parse(Files.readString(Path.of(options.get("state"))));
+            StateFormat.readSettingsJson(state.getJSONObject("settings"), settings);
+            particles = StateFormat.readParticlesJson(state.getJSONObject("particles"));
+            if (options.containsKey("seed")) {
+                settings.setSeed(Long.parseLong(options.get("seed")));
+            }
+        } else {
+            if (options.containsKey("seed")) {
+                settings.setSeed(Long.parseLong(options.get("seed")));
+            }
+            SplittableRandom random = new SplittableRandom(settings.getSeed());
+
+            if (options.containsKey("matrix")) {
+                Matrix matrix = MatrixParser.parseMatrix(Files.readString(Path.of(options.get("matrix"))));
+                if (matrix == null) {
+                    throw new IllegalArgumentException("Can't parse the matrix in " + options.get("matrix"));
+                }
+                settings.setMatrix(matrix);
+            } else {
+                int nTypes = Integer.parseInt(options.getOrDefault("types", "6"));
+                settings.setMatrix(new Matrix(nTypes, (i, j) -> (float) random.nextDouble(-1, 1)));
+            }
+
+            int n = Integer.parseInt(options.getOrDefault("particles", "10000"));
+            float density = Float.parseFloat(options.getOrDefault("density", "0.002"));
+            float size = (float) Math.sqrt(n / density);
+            settings.setRange(size, size);
+            settings.setDt(0.02f);
+
+            int spawnMode = Integer.parseInt(options.getOrDefault("spawn", "0"));
+            particles = Spawner.spawn(n, settings.getMatrix().size(), spawnMode, size, size, random);
+        }
+        if (options.containsKey("dt")) {
+            settings.setDt(Float.parseFloat(options.get("dt")) / 1000);
+        }
+        if (options.containsKey("heat")) {
+            settings.setHeat(Float.parseFloat(options.get("heat")));
+        }
+
+        UpdaterOptions updaterOptions = new UpdaterOptions();
+        updaterOptions.halfStencil = options.containsKey("half-stencil");
+        updaterOptions.ghostCells = options.containsKey("ghost-cells");
+        if (options.containsKey("spatial-order")) {
+            updaterOptions.setSpatialOrder(options.get("spatial-order"));
+        }
+        if (options.containsKey("subdivisions")) {
+            updaterOptions.subdivisions = Math.max(1, Integer.parseInt(options.get("subdivisions")));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        UpdaterLogic updaterLogic = UpdaterLogic.create(options.containsKey("simd"));
+        StepProfiler profiler = new StepProfiler();
+        Updater updater = Updaters.create(updaterIndex, pool, profiler, updaterOptions);
+        updater.setTypes(particles.types);
+        updater.setPositions(particles.positions);
+        updater.setVelocities(particles.velocities);
+
+        if (snapshotDir != null) {
+            Files.createDirectories(snapshotDir);
+            writeSnapshot(updater, settings, snapshotDir);
+        }
+
+        AllocationMeter allocationMeter = new AllocationMeter(pool);
+        long[] allocatedBytes = new long[Math.max(0, steps - ALLOCATION_WARMUP_STEPS)];
+
+        SpatialQuery spatialQuery = new SpatialQuery();
+        int pairSampleEvery = Math.max(1, steps / PAIR_SAMPLES);
+        long pairs = 0;
+        int pairSamples = 0;
+        long stepNanos = 0;
+
+        for (int step = 1; step <= steps; step++) {
+
+            if (step == ALLOCATION_WARMUP_STEPS + 1) {
+                allocationMeter.start();
+            }
+            long allocatedBefore = allocationMeter.getAllocatedBytes();
+
+            long start = System.nanoTime();
+            updater.updateVelocities(settings, updaterLogic);
+            updater.updatePositions(settings, updaterLogic);
+            settings.setStep(settings.getStep() + 1);
+            stepNanos += System.nanoTime() - start;
+
+            if (step > ALLOCATION_WARMUP_STEPS) {
+                allocatedBytes[step - ALLOCATION_WARMUP_STEPS - 1] = allocationMeter.getAllocatedBytes() - allocatedBefore;
+            }
+
+            // not timed
+            if (step % pairSampleEvery == 0) {
+                pairs += countPairs(updater.getPositions(), settings, spatialQuery);
+                pairSamples++;
+            }
+            if (snapshotDir != null && step % snapshotEvery == 0) {
+                writeSnapshot(updater, settings, snapshotDir);
+            }
+        }
+
+        double seconds = stepNanos / 1e9;
+        double pairsPerStep = pairSamples > 0 ? pairs / (double) pairSamples : 0;
+        Arrays.sort(allocatedBytes);
+        long medianAllocatedBytes = allocatedBytes.length > 0 ? allocatedBytes[allocatedBytes.length / 2] : -1;
+        double meanAllocatedBytes = Arrays.stream(allocatedBytes).average().orElse(Double.NaN);
+
+        String report = String.join("\n",
+                "updater: " + updaterIndex,
+                "options: " + updaterOptions,
+                "threads: " + threads,
+                "simd: " + (updaterLogic instanceof logic.VectorUpdaterLogic),
+                "particles: " + particles.types.length,
+                "steps: " + steps,
+                String.format(Locale.ROOT, "seconds: %.3f", seconds),
+                String.format(Locale.ROOT, "steps/s: %.2f", steps / seconds),
+                String.format(Locale.ROOT, "pair interactions/step: %.0f", pairsPerStep),
+                String.format(Locale.ROOT, "pair interactions/s: %.4g", pairsPerStep * steps / seconds),
+                allocatedBytes.length > 0
+                        ? String.format(Locale.ROOT, "allocated bytes/step: median %d, mean %.1f (after %d steps)",
+                                medianAllocatedBytes, meanAllocatedBytes, ALLOCATION_WARMUP_STEPS)
+                        : "allocated bytes/step: - (needs more than " + ALLOCATION_WARMUP_STEPS + " steps)"
+        ) + "\n\n" + profiler.getReport();
+
+        System.out.print(report);
+        if (options.containsKey("report")) {
+            Files.writeString(Path.of(options.get("report")), report);
+        }
+
+        if (options.containsKey("out")) {
+            JSONObject state = new JSONObject();
+            state.put("settings", StateFormat.createSettingsJson(settings));
+            state.put("particles", StateFormat.createParticlesJson(
+                    Updaters.copyParticles(updater, settings.getMatrix().size())));
+            Files.writeString(Path.of(options.get("out")), state.toString());
+        }
+
+        Updaters.close(updater);
+        pool.shutdown();
+
+        if (options.containsKey("allocation-budget")) {
+            long budget = Long.parseLong(options.get("allocation-budget"));
+            if (allocatedBytes.length == 0) {
+                System.err.println("FAILED: the allocations can only be checked with more than " + ALLOCATION_WARMUP_STEPS + " steps");
+                System.exit(1);
+            } else if (medianAllocatedBytes > budget) {
+                System.err.println("FAILED: the median step allocated " + medianAllocatedBytes + " bytes, the budget is " + budget);
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * @return the options by name (without "--"), flags map to "true". Null if the arguments are invalid.
+     */
+    private static Map<String, String> parseOptions(String[] args) {
+        Set<String> flags = Set.of("simd", "half-stencil", "ghost-cells");
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || args[i].equals("--help")) {
+                return null;
+            }
+            String name = args[i].substring(2);
+            if (flags.contains(name)) {
+                options.put(name, "true");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                return null;
+            }
+        }
+        return options;
+    }
+
+    /**
+     * @return the number of ordered pairs of particles that are closer than rMax,
+     *         i.e. the number of interactions that the velocity update computes.
+     */
+    private static long countPairs(float[] positions, Settings settings, SpatialQuery spatialQuery) {
+
+        spatialQuery.invalidate();
+        spatialQuery.update(positions, settings);
+
+        long[] count = {0};
+        SpatialQuery.Visitor visitor = (index, dx, dy) -> count[0]++;
+        for (int i = 0; i < positions.length / 2; i++) {
+            spatialQuery.forEachInCircle(positions[i * 2], positions[i * 2 + 1], settings.getRMax(), visitor);
+        }
+
+        // each particle also finds itself
+        return count[0] - positions.length / 2;
+    }
+
+    /**
+     * Writes the positions in the order of the stable ids as CSV (id, type, x, y), named after the step.
+     */
+    private static void writeSnapshot(Updater updater, Settings settings, Path dir) throws IOException {
+
+        Particles p = Updaters.copyParticles(updater, settings.getMatrix().size());
+
+        Path file = dir.resolve(String.format(Locale.ROOT, "step-%08d.csv", settings.getStep()));
+        try (PrintStream out = new PrintStream(Files.newOutputStream(file))) {
+            out.println("id,type,x,y");
+            for (int id = 0; id < p.types.length; id++) {
+                out.printf(Locale.ROOT, "%d,%d,%.3f,%.3f%n", id, p.types[id], p.positions[id * 2], p.positions[id * 2 + 1]);
+            }
+        }
+    }
+}
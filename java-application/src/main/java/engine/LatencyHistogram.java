@@ -0,0 +1,104 @@
+package engine;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets that get wider with the duration, like an HDR histogram:
+ * each power of two is split into {@link #SUB_BUCKETS} buckets,
+ * so a percentile is off by at most 1 / {@link #SUB_BUCKETS} (about 3 %) of its value, from nanoseconds to hours.
+ * <p>
+ * Recording doesn't allocate and only increments a counter, so it can be done for every step and every frame.
+ * Only one thread may record. Other threads may read at any time and get values that are at most slightly stale.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Durations below {@link #SUB_BUCKETS} nanoseconds get one bucket each,
+     * above that, each exponent up to 62 gets {@link #SUB_BUCKETS} buckets.
+     */
+    private static final int BUCKET_COUNT = (62 - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    // only written by the recording thread
+    private volatile long count = 0;
+    private volatile long max = 0;
+    private volatile long total = 0;
+
+    /**
+     * @param nanos the duration, negative durations are counted as 0.
+     */
+    void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        int bucket = getBucket(nanos);
+        counts.lazySet(bucket, counts.get(bucket) + 1);
+        count = count + 1;
+        total = total + nanos;
+        if (nanos > max) {
+            max = nanos;
+        }
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    /**
+     * @return the sum of all recorded durations in ns.
+     */
+    long getTotal() {
+        return total;
+    }
+
+    /**
+     * @param percentile between 0 and 100, e.g. 99 for the duration that 99 % of the recorded durations didn't exceed.
+     * @return the duration in ns (the upper end of its bucket, but at most the maximum), or 0 if nothing was recorded.
+     */
+    long getValueAtPercentile(double percentile) {
+
+        long n = count;
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(getHighestValue(bucket), max);
+            }
+        }
+
+        // the counts were read while they were recorded
+        return max;
+    }
+
+    private static int getBucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest duration that falls into the bucket.
+     */
+    private static long getHighestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
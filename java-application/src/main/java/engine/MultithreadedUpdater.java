@@ -4,15 +4,35 @@ import logic.Settings;
 import logic.Updater;
 import logic.UpdaterLogic;
 
-import java.util.ArrayList;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ForkJoinPool;
 
 class MultithreadedUpdater implements Updater {
 
-    private ExecutorService executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(10);
+    private final Parallel parallel;
+    private final StepProfiler profiler;
+
+    /**
+     * @param pool the threads that are used for updating. The caller is responsible for shutting it down.
+     */
+    MultithreadedUpdater(ForkJoinPool pool) {
+        this(pool, new StepProfiler());
+    }
+
+    /**
+     * @param pool the threads that are used for updating. The caller is responsible for shutting it down.
+     * @param profiler gets the durations of the phases of the steps.
+     */
+    MultithreadedUpdater(ForkJoinPool pool, StepProfiler profiler) {
+        this.parallel = new Parallel(pool, profiler);
+        this.profiler = profiler;
+    }
+
+    /**
+     * Uses the common pool.
+     */
+    MultithreadedUpdater() {
+        this(ForkJoinPool.commonPool());
+    }
 
     private int[] types;
     private float[] positions;
@@ -20,12 +40,17 @@ class MultithreadedUpdater implements Updater {
 
     @Override
     public void setTypes(int[] types) {
+        if (types != this.types) {
+            spatialOrder.reset(types.length);
+            cellsCounted = false;
+        }
         this.types = types;
     }
 
     @Override
     public void setPositions(float[] positions) {
         this.positions = positions;
+        cellsCounted = false;
     }
 
     @Override
@@ -48,285 +73,326 @@ class MultithreadedUpdater implements Updater {
         return velocities;
     }
 
+    @Override
+    public int getIndex(int id) {
+        return spatialOrder.getIndex(id);
+    }
+
+    @Override
+    public int getId(int index) {
+        return spatialOrder.getId(index);
+    }
+
+    /**
+     * Enables or disables sorting the particle arrays by cell.
+     * @param interval every how many steps the particles should be reordered.
+     */
+    void setSpatialOrder(SpatialOrder.Mode mode, int interval) {
+        spatialOrder.setMode(mode, interval);
+    }
+
+    private int[] typesBuffer;
     private float[] positionsBuffer;
     private float[] velocitiesBuffer;
 
-    private int nx;
-    private int ny;
-    private float containerSizeX;
-    private float containerSizeY;
-    private Container[] containers;
+    private final SpatialOrder spatialOrder = new SpatialOrder();
 
-    private static class Container {
+    private final CellList cellList = new CellList();
 
-        ArrayList<Integer> indices;
+    private boolean halfStencil = false;
+    private float[] deltaVelocities;
 
-        Container(int initialCapacity) {
-            this.indices = new ArrayList<>(initialCapacity);
-        }
+    /**
+     * If enabled, each pair of particles is only evaluated once, and the result is applied to both particles.
+     * To avoid races, the cells are then processed in 6 passes (see {@link CellList#supportsHalfStencil(boolean)}).
+     * This is ignored if the grid doesn't allow it.
+     */
+    void setHalfStencil(boolean halfStencil) {
+        this.halfStencil = halfStencil;
     }
 
-    private void createContainers() {
-
-        containers = new Container[nx * ny];
-        int initialCapacity = 2 * types.length / containers.length;
-
-        for (int i = 0; i < containers.length; i++) {
-            containers[i] = new Container(initialCapacity);
-        }
+    /**
+     * Makes the cells rMax / subdivisions large (at least), so that the cells that are searched for neighbors
+     * cover less area outside the rMax circle. Only the cells that intersect the circle are searched.
+     * More subdivisions mean fewer distance tests, but more (and shorter) ranges per cell.
+     * The half stencil is only used with 1 subdivision.
+     */
+    void setSubdivisions(int subdivisions) {
+        cellList.setSubdivisions(subdivisions);
     }
 
-    private void clearContainers() {
-        for (Container container : containers) {
-            container.indices.clear();
-        }
+    private boolean ghostCells = false;
+    private final Halo halo = new Halo();
+
+    /**
+     * If enabled and the world wraps, ghost copies of the particles near the borders are placed in a ring of cells
+     * around the grid (see {@link Halo}), so that the kernel doesn't need to find the nearest images.
+     * This is ignored by the half stencil, which uses its own wrapping, and if the grid is too small (see {@link Halo#supports}),
+     * where the full stencil with the nearest images is used instead.
+     */
+    void setGhostCells(boolean ghostCells) {
+        this.ghostCells = ghostCells;
     }
 
-    private void fillContainers() {
-        int typeIndex = 0;
-        int positionIndex = 0;
+    /**
+     * Whether the count phase of the cell list is up-to-date with the current positions.
+     * This is the case after {@link #updatePositions(Settings, UpdaterLogic)}, which counts the particles
+     * right after moving them.
+     */
+    private boolean cellsCounted = false;
 
-        while (positionIndex < positions.length) {
+    // The arguments of the current step, for the parallel tasks below.
+    // The tasks are only created once, so that a step doesn't allocate (see Parallel).
 
-            float x = positions[positionIndex];
-            float y = positions[positionIndex + 1];
+    private final Settings s = new Settings();  // copy, the UI thread could change the settings
+    private final Settings ghostSettings = new Settings();
+    private UpdaterLogic updaterLogic;
+    private int firstCellX;
+    private int firstCellY;
+    private int nColorX;
+    private int nColorY;
 
-            int containerX = (int) Math.floor(x / containerSizeX);
-            int containerY = (int) Math.floor(y / containerSizeY);
-            
-            containerX = clip(containerX, 0, nx - 1);
-            containerY = clip(containerY, 0, ny - 1);
+    private final Parallel.IndexTask countTask = chunk -> cellList.count(positions, chunk);
+    private final Parallel.IndexTask scatterTask = chunk -> cellList.scatter(chunk);
+    private final Parallel.IndexTask sortBlockTask = block -> cellList.sortBlock(block);
 
-            containers[getContainerIndex(containerX, containerY)].indices.add(typeIndex);
+    // cells in row-major order, i.e. the ranges consist of whole rows (plus parts of rows at the ends)
+    private final Parallel.RangeTask fullStencilTask = (from, to, scratch) -> {
 
-            typeIndex += 1;
-            positionIndex += 2;
-        }
-    }
-    
-    private int getContainerIndex(int containerX, int containerY) {
-        return nx * containerY + containerX;
-    }
+        int[] neighborRanges = scratch.getInts(cellList.getMaxNeighborRanges() * 2);
+        int[] cellStart = cellList.cellStart;
 
-    private ArrayList<Container> getNeighborContainers(int containerX, int containerY,
-                                                       int radiusX, int radiusY,
-                                                       boolean includeCenter, boolean wrap) {
+        for (int cell = from; cell < to; cell++) {
 
-        int centerContainerIndex = getContainerIndex(containerX, containerY);
+            int cellX = cell % cellList.nx;
+            int cellY = cell / cellList.nx;
 
-        ArrayList<Container> relevantContainers = new ArrayList<>(includeCenter ? 9 : 8);
+            int nRanges = cellList.getNeighborRanges(cellX, cellY, s.isWrap(), neighborRanges);
 
-        int minContainerX = containerX - radiusX;
-        int minContainerY = containerY - radiusY;
-        int maxContainerX = containerX + radiusX;
-        int maxContainerY = containerY + radiusY;
+            updaterLogic.updateVelocities(
+                    s, types, positions, velocities,
+                    cellList.cellParticles, cellStart[cell], cellStart[cell + 1],
+                    neighborRanges, nRanges,
+                    velocitiesBuffer
+            );
+        }
+    };
 
-        if (wrap) {
+    private final Parallel.RangeTask ghostCellsTask = (from, to, scratch) -> {
 
-            for (int cx = minContainerX; cx <= maxContainerX; cx++) {
-                for (int cy = minContainerY; cy <= maxContainerY; cy++) {
-                    int containerIndex = getContainerIndex(modulo(cx, nx), modulo(cy, ny));
-                    if (includeCenter || containerIndex != centerContainerIndex) {
-                        relevantContainers.add(containers[containerIndex]);
-                    }
-                }
-            }
+        int[] neighborRanges = scratch.getInts(halo.getMaxNeighborRanges() * 2);
+        int[] cellStart = cellList.cellStart;
 
-        } else {
+        for (int cell = from; cell < to; cell++) {
 
-            minContainerX = clip(minContainerX, 0, nx - 1);
-            maxContainerX = clip(maxContainerX, 0, nx - 1);
-            minContainerY = clip(minContainerY, 0, ny - 1);
-            maxContainerY = clip(maxContainerY, 0, ny - 1);
-
-            for (int cx = minContainerX; cx <= maxContainerX; cx++) {
-                for (int cy = minContainerY; cy <= maxContainerY; cy++) {
-                    int containerIndex = getContainerIndex(cx, cy);
-                    if (includeCenter || containerIndex != centerContainerIndex) {
-                        relevantContainers.add(containers[containerIndex]);
-                    }
-                }
-            }
+            int cellX = cell % cellList.nx;
+            int cellY = cell / cellList.nx;
+
+            int nRanges = halo.getNeighborRanges(cellX, cellY, neighborRanges);
+
+            updaterLogic.updateVelocities(
+                    ghostSettings, halo.types, halo.positions, velocities,
+                    halo.indices, cellStart[cell], cellStart[cell + 1],
+                    neighborRanges, nRanges,
+                    velocitiesBuffer
+            );
         }
+    };
 
-        return relevantContainers;
-    }
+    private final Parallel.RangeTask halfStencilTask = (from, to, scratch) -> {
 
-    private int modulo(int a, int b) {
-        return ((a % b) + b) % b;
-    }
-    
-    private int clip(int val, int min, int max) {
-        if (val < min) {
-            return min;
+        int[] neighborRanges = scratch.getInts(8);
+        int[] cellStart = cellList.cellStart;
+
+        for (int i = from; i < to; i++) {
+
+            int cellX = firstCellX + (i % nColorX) * CellList.HALF_STENCIL_COLORS_X;
+            int cellY = firstCellY + (i / nColorX) * CellList.HALF_STENCIL_COLORS_Y;
+            int cell = cellList.getCellIndex(cellX, cellY);
+
+            int nRanges = cellList.getHalfNeighborRanges(cellX, cellY, s.isWrap(), neighborRanges);
+
+            updaterLogic.accumulatePairs(
+                    s, types, positions,
+                    cellList.cellParticles, cellStart[cell], cellStart[cell + 1],
+                    neighborRanges, nRanges,
+                    deltaVelocities
+            );
         }
-        if (val > max) {
-            return max;
+    };
+
+    private final Parallel.RangeTask finishVelocitiesTask = (from, to, scratch) -> updaterLogic.finishVelocities(
+            s, positions, velocities, deltaVelocities, from, to, velocitiesBuffer
+    );
+
+    // moves the particles from positions to positionsBuffer
+    private final Parallel.IndexTask updatePositionsTask = chunk -> {
+        updaterLogic.updatePositions(
+                s, positions, velocities,
+                cellList.getChunkStart(chunk), cellList.getChunkEnd(chunk),
+                positionsBuffer
+        );
+        cellList.count(positionsBuffer, chunk);
+    };
+
+    /**
+     * @return whether the results of the count phase became invalid.
+     */
+    private boolean resizeCellList(Settings s) {
+        if (halfStencil) {
+            return cellList.resize(s.getRangeX(), s.getRangeY(), s.getRMax(), types.length, parallel.getParallelism(),
+                    CellList.HALF_STENCIL_COLORS_X, CellList.HALF_STENCIL_COLORS_Y);
+        } else {
+            return cellList.resize(s.getRangeX(), s.getRangeY(), s.getRMax(), types.length, parallel.getParallelism());
+        }
+    }
+
+    private void buildCellList(Settings s) {
+
+        boolean gridChanged = resizeCellList(s);
+
+        if (!cellsCounted || gridChanged) {
+            parallel.runEach(cellList.getChunkCount(), countTask);
         }
-        return val;
+        cellsCounted = false;
+
+        cellList.scanBlocks();
+        parallel.runEach(cellList.getChunkCount(), scatterTask);
+        parallel.runEach(cellList.getBlockCount(), sortBlockTask);
     }
 
     @Override
     public void updateVelocities(Settings settings, UpdaterLogic updaterLogic) {
 
-        final Settings s = settings.clone();  // UI thread could change settings
+        s.copyFrom(settings);  // UI thread could change settings
+        this.updaterLogic = updaterLogic;
 
-        // create containers if necessary
-        nx = (int) Math.floor(s.getRangeX() / s.getRMax());
-        ny = (int) Math.floor(s.getRangeY() / s.getRMax());
-        containerSizeX = s.getRangeX() / nx;
-        containerSizeY = s.getRangeY() / ny;
-        if (containers == null || nx * ny != containers.length) {
-            createContainers();
-        } else {
-            clearContainers();
+        long start = System.nanoTime();
+
+        buildCellList(s);
+
+        if (spatialOrder.isDue()) {
+            sortParticles();
+            buildCellList(s);  // the indices changed, must count again
         }
 
-        fillContainers();
+        start = profiler.record(StepProfiler.Phase.CELLS, start);
 
         // create buffer if necessary
         if (velocitiesBuffer == null || velocitiesBuffer.length != velocities.length) {
             velocitiesBuffer = new float[velocities.length];
         }
 
+        if (halfStencil && cellList.supportsHalfStencil(s.isWrap())) {
+            updateVelocitiesHalfStencil();
+        } else if (ghostCells && s.isWrap() && Halo.supports(cellList)) {
+            updateVelocitiesGhostCells();
+        } else {
+            parallel.run(cellList.getCellCount(), fullStencilTask);
+        }
 
-        CountDownLatch countDownLatch = new CountDownLatch(containers.length);
-
-        int containerX = 0;
-        int containerY = 0;
-        for (Container container : containers) {
+        // swap buffer
+        float[] h = velocities;
+        velocities = velocitiesBuffer;
+        velocitiesBuffer = h;
 
-            final int finalContainerX = containerX;
-            final int finalContainerY = containerY;
+        profiler.record(StepProfiler.Phase.FORCES, start);
+    }
 
-            executor.submit(() -> {
+    private void updateVelocitiesGhostCells() {
 
-                ArrayList<Container> relevantContainers = getNeighborContainers(
-                        finalContainerX, finalContainerY, 1, 1,
-                        false, s.isWrap()
-                );
-                ArrayList<Integer> relevantIndices = new ArrayList<>(container.indices);  // regarded particles come first
-                relevantContainers.forEach(c -> relevantIndices.addAll(c.indices));
+        halo.build(cellList, types, positions, s.getRangeX(), s.getRangeY());
 
-                int[] relevantTypes = new int[relevantIndices.size()];
-                float[] relevantPositions = new float[relevantIndices.size() * 2];
+        // the ghosts are already at the nearest image
+        ghostSettings.copyFrom(s);
+        ghostSettings.setMinimumImage(false);
 
-                int typeIndex = 0;
-                int positionIndex = 0;
-                for (int index : relevantIndices) {
-                    int index2 = 2 * index;
+        parallel.run(cellList.getCellCount(), ghostCellsTask);
+    }
 
-                    relevantTypes[typeIndex] = types[index];
+    private void updateVelocitiesHalfStencil() {
 
-                    relevantPositions[positionIndex] = positions[index2];
-                    relevantPositions[positionIndex + 1] = positions[index2 + 1];
+        // create buffer if necessary
+        if (deltaVelocities == null || deltaVelocities.length != velocities.length) {
+            deltaVelocities = new float[velocities.length];
+        }
 
-                    typeIndex += 1;
-                    positionIndex += 2;
-                }
+        // cells of the same color don't write to the same cells
+        for (int colorY = 0; colorY < CellList.HALF_STENCIL_COLORS_Y; colorY++) {
+            for (int colorX = 0; colorX < CellList.HALF_STENCIL_COLORS_X; colorX++) {
 
+                firstCellX = colorX;
+                firstCellY = colorY;
+                nColorX = (cellList.nx - colorX + CellList.HALF_STENCIL_COLORS_X - 1) / CellList.HALF_STENCIL_COLORS_X;
+                nColorY = (cellList.ny - colorY + CellList.HALF_STENCIL_COLORS_Y - 1) / CellList.HALF_STENCIL_COLORS_Y;
 
-                int relevantIndex = 0;
-                for (int index : container.indices) {
-                    int index2 = index * 2;
+                parallel.run(nColorX * nColorY, halfStencilTask);
+            }
+        }
 
-                    float[] velocity = updaterLogic.updateVelocity(
-                            s, relevantPositions, relevantTypes,
-                            relevantIndex, velocities[index2], velocities[index2 + 1]
-                    );
+        parallel.run(types.length, finishVelocitiesTask);
+    }
 
-                    velocitiesBuffer[index2] = velocity[0];
-                    velocitiesBuffer[index2 + 1] = velocity[1];
+    /**
+     * Reorders the particle arrays by cell.
+     */
+    private void sortParticles() {
 
-                    relevantIndex++;
-                }
+        // create buffers if necessary
+        if (typesBuffer == null || typesBuffer.length != types.length) {
+            typesBuffer = new int[types.length];
+        }
+        if (positionsBuffer == null || positionsBuffer.length != positions.length) {
+            positionsBuffer = new float[positions.length];
+        }
+        if (velocitiesBuffer == null || velocitiesBuffer.length != velocities.length) {
+            velocitiesBuffer = new float[velocities.length];
+        }
 
-                countDownLatch.countDown();
-            });
+        spatialOrder.sort(cellList, types, positions, velocities, typesBuffer, positionsBuffer, velocitiesBuffer);
 
+        // swap buffers
+        int[] h = types;
+        types = typesBuffer;
+        typesBuffer = h;
 
-            // step to next container
-            containerX++;
-            if (containerX == nx) {
-                containerX = 0;
-                containerY++;
-            }
-        }
+        float[] h2 = positions;
+        positions = positionsBuffer;
+        positionsBuffer = h2;
 
-        try {
-            countDownLatch.await();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } finally {
-            // swap buffer
-            float[] h = velocities;
-            velocities = velocitiesBuffer;
-            velocitiesBuffer = h;
-        }
+        h2 = velocities;
+        velocities = velocitiesBuffer;
+        velocitiesBuffer = h2;
     }
 
+    /**
+     * Moves the particles and finds their new cells in the same parallel pass,
+     * so that the next {@link #updateVelocities(Settings, UpdaterLogic)} can skip the count phase.
+     */
     @Override
     public void updatePositions(Settings settings, UpdaterLogic updaterLogic) {
 
-        final Settings s = settings.clone();  // UI thread could change settings
+        s.copyFrom(settings);  // UI thread could change settings
+        this.updaterLogic = updaterLogic;
+
+        long start = System.nanoTime();
 
         // create buffer if necessary
         if (positionsBuffer == null || positionsBuffer.length != positions.length) {
             positionsBuffer = new float[positions.length];
         }
 
-        int positionIndex = 0;
+        resizeCellList(s);
 
-        while (positionIndex < positions.length) {
-
-            float[] position = updaterLogic.updatePosition(
-                    s,
-                    positions[positionIndex], positions[positionIndex + 1],
-                    velocities[positionIndex], velocities[positionIndex + 1]
-            );
-
-            positionsBuffer[positionIndex] = position[0];
-            positionsBuffer[positionIndex + 1] = position[1];
-
-            positionIndex += 2;
-        }
+        parallel.runEach(cellList.getChunkCount(), updatePositionsTask);
 
         // swap buffer
         float[] h = positions;
         positions = positionsBuffer;
         positionsBuffer = h;
-    }
-
-    @Override
-    public int[] getRelevant(float x, float y, float radius, boolean wrap) {
-
-        int containerX = (int) Math.floor(x / containerSizeX);
-        int containerY = (int) Math.floor(y / containerSizeY);
-        int radiusX = (int) Math.ceil(radius / containerSizeX);
-        int radiusY = (int) Math.ceil(radius / containerSizeY);
-        getNeighborContainers(containerX, containerY, radiusX, radiusY, true, wrap);
-
-        ArrayList<Integer> indices = new ArrayList<>();
 
-        int typeIndex = 0;
-        int positionIndex = 0;
+        profiler.record(StepProfiler.Phase.INTEGRATION, start);
 
-        while (positionIndex < positions.length) {
-
-            indices.add(typeIndex);
-
-            typeIndex += 1;
-            positionIndex += 2;
-        }
-
-        // make array
-        int n = indices.size();
-        int[] arr = new int[n];
-        int i = 0;
-        for (int integer : indices) {
-            arr[i] = integer;
-            i++;
-        }
-        return arr;
+        cellsCounted = true;
     }
 }
@@ -0,0 +1,465 @@
+package engine;
+
+import logic.Settings;
+import logic.Updater;
+import logic.UpdaterLogic;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Keeps a list of potential interaction partners for every group of particles (Verlet lists),
+ * i.e. all particles within rMax + skin of the group at the time the lists were built.
+ * The groups are the cells of a grid with cells of size rMax + skin, so that the velocities of a whole group
+ * are updated with one call of {@link UpdaterLogic#updateVelocities}, like with the cells of {@link MultithreadedUpdater}.
+ * <p>
+ * The lists stay valid as long as no particle has moved further than skin / 2 since they were built
+ * (then no pair can have come closer than rMax without being in the lists).
+ * Until then, the update skips building the cell list and only regards the listed particles,
+ * instead of all particles in the 9 surrounding cells.
+ * <p>
+ * The lists are also rebuilt whenever the particles, rMax, the range or wrap change.
+ */
+class NeighborListUpdater implements Updater {
+
+    private final Parallel parallel;
+    private final StepProfiler profiler;
+
+    /**
+     * @param pool the threads that are used for updating. The caller is responsible for shutting it down.
+     */
+    NeighborListUpdater(ForkJoinPool pool) {
+        this(pool, new StepProfiler());
+    }
+
+    /**
+     * @param pool the threads that are used for updating. The caller is responsible for shutting it down.
+     * @param profiler gets the durations of the phases of the steps.
+     */
+    NeighborListUpdater(ForkJoinPool pool, StepProfiler profiler) {
+        this.parallel = new Parallel(pool, profiler);
+        this.profiler = profiler;
+    }
+
+    /**
+     * Uses the common pool.
+     */
+    NeighborListUpdater() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    private int[] types;
+    private float[] positions;
+    private float[] velocities;
+
+    @Override
+    public void setTypes(int[] types) {
+        if (types != this.types) {
+            listsValid = false;
+        }
+        this.types = types;
+    }
+
+    @Override
+    public void setPositions(float[] positions) {
+        this.positions = positions;
+        listsValid = false;
+    }
+
+    @Override
+    public void setVelocities(float[] velocities) {
+        this.velocities = velocities;
+    }
+
+    @Override
+    public int[] getTypes() {
+        return types;
+    }
+
+    @Override
+    public float[] getPositions() {
+        return positions;
+    }
+
+    @Override
+    public float[] getVelocities() {
+        return velocities;
+    }
+
+    private float[] positionsBuffer;
+    private float[] velocitiesBuffer;
+
+    private float skin = 8;
+
+    /**
+     * How far beyond rMax the lists reach.
+     * A larger skin makes the lists longer, but they have to be rebuilt less often.
+     */
+    void setSkin(float skin) {
+        this.skin = Math.max(0, skin);
+        listsValid = false;
+    }
+
+    float getSkin() {
+        return skin;
+    }
+
+    private final CellList cellList = new CellList();
+
+    /**
+     * The list of cell c reaches from <code>lists[listStart[c]]</code> to <code>lists[listStart[c + 1] - 1]</code>.
+     * The first entries are the particles in the cell (the group), followed by all other particles
+     * within the list radius of the bounding box of the group.
+     * That way, a list can be passed to {@link UpdaterLogic#updateVelocities} as group and neighbor range at once.
+     * <p>
+     * The cells are those of {@link #cellList} when the lists were built, it isn't rebuilt until the next lists.
+     * Both arrays only grow, the lists by at least half of their size, so that rebuilding them rarely allocates.
+     */
+    private int[] listStart = new int[1];
+    private int[] lists = new int[0];
+
+    private boolean listsValid = false;
+
+    /**
+     * The settings and positions at the time the lists were built.
+     */
+    private float listRMax;
+    private float listRangeX;
+    private float listRangeY;
+    private boolean listWrap;
+    private float[] listPositions = new float[0];
+
+    /**
+     * Number of rebuilds since this updater was created.
+     */
+    private long rebuildCount = 0;
+
+    long getRebuildCount() {
+        return rebuildCount;
+    }
+
+    private int nChunks;
+    private float[] chunkMaxDisplacementsSquared = new float[0];
+
+    /**
+     * Splits the particles into one chunk per thread, for moving them and tracking their displacements.
+     */
+    private void resizeChunks() {
+        nChunks = Math.max(1, Math.min(parallel.getParallelism(), types.length));
+        // create buffer if necessary
+        if (chunkMaxDisplacementsSquared.length != nChunks) {
+            chunkMaxDisplacementsSquared = new float[nChunks];
+        }
+    }
+
+    private int getChunkStart(int chunk) {
+        return (int) ((long) types.length * chunk / nChunks);
+    }
+
+    private int getChunkEnd(int chunk) {
+        return getChunkStart(chunk + 1);
+    }
+
+    // The arguments of the current step, for the parallel tasks below.
+    // The tasks are only created once, so that a step doesn't allocate (see Parallel).
+
+    private final Settings s = new Settings();  // copy, the UI thread could change the settings
+    private UpdaterLogic updaterLogic;
+    private float listRadiusSquared;
+    private boolean trackDisplacements;
+
+    private final Parallel.IndexTask countTask = chunk -> cellList.count(positions, chunk);
+    private final Parallel.IndexTask scatterTask = chunk -> cellList.scatter(chunk);
+    private final Parallel.IndexTask sortBlockTask = block -> cellList.sortBlock(block);
+
+    // writes the counts to listStart[cell + 1]
+    private final Parallel.RangeTask countNeighborsTask = (from, to, scratch) -> {
+        int[] neighborRanges = scratch.getInts(cellList.getMaxNeighborRanges() * 2);
+        for (int cell = from; cell < to; cell++) {
+            listStart[cell + 1] = findNeighbors(cell, neighborRanges, null, 0);
+        }
+    };
+
+    private final Parallel.RangeTask fillListsTask = (from, to, scratch) -> {
+        int[] neighborRanges = scratch.getInts(cellList.getMaxNeighborRanges() * 2);
+        for (int cell = from; cell < to; cell++) {
+            findNeighbors(cell, neighborRanges, lists, listStart[cell]);
+        }
+    };
+
+    private final Parallel.RangeTask updateVelocitiesTask = (from, to, scratch) -> {
+
+        int[] neighborRanges = scratch.getInts(2);
+        int[] cellStart = cellList.cellStart;
+
+        for (int cell = from; cell < to; cell++) {
+
+            int groupSize = cellStart[cell + 1] - cellStart[cell];
+            if (groupSize == 0) {
+                continue;
+            }
+
+            neighborRanges[0] = listStart[cell];
+            neighborRanges[1] = listStart[cell + 1];
+
+            updaterLogic.updateVelocities(
+                    s, types, positions, velocities,
+                    lists, listStart[cell], listStart[cell] + groupSize,
+                    neighborRanges, 1,
+                    velocitiesBuffer
+            );
+        }
+    };
+
+    // moves the particles from positions to positionsBuffer
+    private final Parallel.IndexTask updatePositionsTask = chunk -> {
+
+        int from = getChunkStart(chunk);
+        int to = getChunkEnd(chunk);
+
+        updaterLogic.updatePositions(s, positions, velocities, from, to, positionsBuffer);
+
+        if (trackDisplacements) {
+            float maxDisplacementSquared = 0;
+            for (int i = from; i < to; i++) {
+                float dx = positionsBuffer[i * 2] - listPositions[i * 2];
+                float dy = positionsBuffer[i * 2 + 1] - listPositions[i * 2 + 1];
+                if (s.isWrap()) {
+                    dx = nearestImage(dx, s.getRangeX());
+                    dy = nearestImage(dy, s.getRangeY());
+                }
+                maxDisplacementSquared = Math.max(maxDisplacementSquared, dx * dx + dy * dy);
+            }
+            chunkMaxDisplacementsSquared[chunk] = maxDisplacementSquared;
+        }
+    };
+
+    private boolean listsMatch(Settings s) {
+
+        if (!listsValid || listRMax != s.getRMax() || listRangeX != s.getRangeX()
+                || listRangeY != s.getRangeY() || listWrap != s.isWrap()) {
+            return false;
+        }
+
+        float maxDisplacementSquared = 0;
+        for (int chunk = 0; chunk < nChunks; chunk++) {
+            maxDisplacementSquared = Math.max(maxDisplacementSquared, chunkMaxDisplacementsSquared[chunk]);
+        }
+
+        return 4 * maxDisplacementSquared <= skin * skin;
+    }
+
+    private void buildLists(Settings s) {
+
+        final float listRadius = s.getRMax() + skin;
+        listRadiusSquared = listRadius * listRadius;
+        final int n = types.length;
+
+        // cell list
+
+        cellList.resize(s.getRangeX(), s.getRangeY(), listRadius, n, parallel.getParallelism());
+
+        parallel.runEach(cellList.getChunkCount(), countTask);
+        cellList.scanBlocks();
+        parallel.runEach(cellList.getChunkCount(), scatterTask);
+        parallel.runEach(cellList.getBlockCount(), sortBlockTask);
+
+        // count the neighbors of every cell, then fill the lists at the offsets of the counts
+
+        final int nCells = cellList.getCellCount();
+
+        // create buffer if necessary
+        if (listStart.length < nCells + 1) {
+            listStart = new int[nCells + 1];
+        }
+
+        parallel.run(nCells, countNeighborsTask);
+
+        listStart[0] = 0;
+        for (int cell = 0; cell < nCells; cell++) {
+            listStart[cell + 1] += listStart[cell];
+        }
+
+        // create buffer if necessary
+        int length = listStart[nCells];
+        if (lists.length < length) {
+            lists = new int[Math.max(length, lists.length + lists.length / 2)];
+        }
+
+        parallel.run(nCells, fillListsTask);
+
+        // remember the state at the time of building
+
+        if (listPositions.length != positions.length) {
+            listPositions = new float[positions.length];
+        }
+        System.arraycopy(positions, 0, listPositions, 0, positions.length);
+
+        resizeChunks();
+        for (int chunk = 0; chunk < nChunks; chunk++) {
+            chunkMaxDisplacementsSquared[chunk] = 0;
+        }
+
+        listRMax = s.getRMax();
+        listRangeX = s.getRangeX();
+        listRangeY = s.getRangeY();
+        listWrap = s.isWrap();
+        listsValid = true;
+        rebuildCount++;
+    }
+
+    /**
+     * Finds the list of the given cell, using the cell list and the settings of the current step:
+     * first the particles in the cell, then all other particles within the list radius around their bounding box.
+     * Each particle within the list radius of a particle in the cell is within that radius of the box.
+     * @param out if not null, the list is written to it, starting at <code>offset</code>.
+     * @return the length of the list.
+     */
+    private int findNeighbors(int cell, int[] neighborRanges, int[] out, int offset) {
+
+        int[] cellParticles = cellList.cellParticles;
+        int groupStart = cellList.cellStart[cell];
+        int groupEnd = cellList.cellStart[cell + 1];
+
+        if (groupStart == groupEnd) {
+            return 0;
+        }
+
+        // the group and its bounding box
+
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        int count = 0;
+        for (int k = groupStart; k < groupEnd; k++) {
+            int i = cellParticles[k];
+            float x = positions[i * 2];
+            float y = positions[i * 2 + 1];
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            if (out != null) {
+                out[offset + count] = i;
+            }
+            count++;
+        }
+
+        float centerX = (minX + maxX) / 2;
+        float centerY = (minY + maxY) / 2;
+        float halfWidth = (maxX - minX) / 2;
+        float halfHeight = (maxY - minY) / 2;
+
+        // the other particles near the box
+
+        boolean wrap = s.isWrap();
+        float rangeX = s.getRangeX();
+        float rangeY = s.getRangeY();
+
+        int nRanges = cellList.getNeighborRanges(cell % cellList.nx, cell / cellList.nx, wrap, neighborRanges);
+
+        for (int range = 0; range < nRanges; range++) {
+            int rangeEnd = neighborRanges[range * 2 + 1];
+            for (int k = neighborRanges[range * 2]; k < rangeEnd; k++) {
+
+                if (k >= groupStart && k < groupEnd) {
+                    continue;  // already in the group
+                }
+
+                int j = cellParticles[k];
+
+                // the nearest image of the center also has the shortest distance to the box
+                float dx = positions[j * 2] - centerX;
+                float dy = positions[j * 2 + 1] - centerY;
+                if (wrap) {
+                    dx = nearestImage(dx, rangeX);
+                    dy = nearestImage(dy, rangeY);
+                }
+                dx = Math.max(0, Math.abs(dx) - halfWidth);
+                dy = Math.max(0, Math.abs(dy) - halfHeight);
+
+                if (dx * dx + dy * dy < listRadiusSquared) {
+                    if (out != null) {
+                        out[offset + count] = j;
+                    }
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the shortest difference that is equivalent to d in a wrapped world of the given range.
+     */
+    private static float nearestImage(float d, float range) {
+        if (d > range / 2) {
+            return d - range;
+        } else if (d < -range / 2) {
+            return d + range;
+        }
+        return d;
+    }
+
+    @Override
+    public void updateVelocities(Settings settings, UpdaterLogic updaterLogic) {
+
+        s.copyFrom(settings);  // UI thread could change settings
+        this.updaterLogic = updaterLogic;
+
+        long start = System.nanoTime();
+
+        if (!listsMatch(s)) {
+            buildLists(s);
+        }
+
+        start = profiler.record(StepProfiler.Phase.CELLS, start);
+
+        // create buffer if necessary
+        if (velocitiesBuffer == null || velocitiesBuffer.length != velocities.length) {
+            velocitiesBuffer = new float[velocities.length];
+        }
+
+        parallel.run(cellList.getCellCount(), updateVelocitiesTask);
+
+        // swap buffer
+        float[] h = velocities;
+        velocities = velocitiesBuffer;
+        velocitiesBuffer = h;
+
+        profiler.record(StepProfiler.Phase.FORCES, start);
+    }
+
+    /**
+     * Moves the particles and tracks how far they moved since the lists were built, in the same parallel pass.
+     */
+    @Override
+    public void updatePositions(Settings settings, UpdaterLogic updaterLogic) {
+
+        s.copyFrom(settings);  // UI thread could change settings
+        this.updaterLogic = updaterLogic;
+
+        long start = System.nanoTime();
+
+        // create buffer if necessary
+        if (positionsBuffer == null || positionsBuffer.length != positions.length) {
+            positionsBuffer = new float[positions.length];
+        }
+
+        // without lists, the particles are still moved in parallel, only the displacements aren't needed
+        trackDisplacements = listsValid;
+        if (!listsValid) {
+            resizeChunks();
+        }
+
+        parallel.runEach(nChunks, updatePositionsTask);
+
+        // swap buffer
+        float[] h = positions;
+        positions = positionsBuffer;
+        positionsBuffer = h;
+
+        profiler.record(StepProfiler.Phase.INTEGRATION, start);
+    }
+}
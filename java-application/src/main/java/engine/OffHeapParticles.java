@@ -0,0 +1,232 @@
+package engine;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Stores the particles outside the Java heap, in native memory segments that are addressed by long indices.
+ * The memory isn't managed by the garbage collector: it is only allocated by {@link #reserve(long)}
+ * (or {@link #setSize(long)} if the capacity is too small) and freed by {@link #close()}.
+ * <p>
+ * The layout is the same as in the heap arrays: one int per type, interleaved x and y for positions and velocities.
+ * Besides the particles, the store holds one buffer for positions and one for velocities,
+ * so that updaters can write the results of a step there and then swap them in.
+ * <p>
+ * Requires <code>--add-modules jdk.incubator.foreign</code> (see {@link #isAvailable()}).
+ */
+final class OffHeapParticles implements AutoCloseable {
+
+    /**
+     * Bytes per particle, including the buffers.
+     */
+    static final long BYTES_PER_PARTICLE = Integer.BYTES + 4 * 2 * Float.BYTES;
+
+    /**
+     * @return whether the JVM was started with <code>--add-modules jdk.incubator.foreign</code>.
+     */
+    static boolean isAvailable() {
+        return ModuleLayer.boot().findModule("jdk.incubator.foreign").isPresent();
+    }
+
+    private ResourceScope scope;
+
+    MemorySegment types;
+    MemorySegment positions;
+    MemorySegment velocities;
+    MemorySegment positionsBuffer;
+    MemorySegment velocitiesBuffer;
+
+    private long size = 0;
+    private long capacity = -1;
+
+    OffHeapParticles() {
+        reserve(0);
+    }
+
+    long size() {
+        return size;
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the native memory that is currently allocated, in bytes.
+     */
+    long getAllocatedBytes() {
+        return capacity * BYTES_PER_PARTICLE;
+    }
+
+    /**
+     * Reallocates the memory for exactly <code>capacity</code> particles (if it differs from the current capacity)
+     * and copies the particles over. Particles beyond the new capacity are dropped.
+     */
+    void reserve(long capacity) {
+
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        }
+        if (capacity == this.capacity) {
+            return;
+        }
+
+        ResourceScope newScope = ResourceScope.newSharedScope();
+        MemorySegment newTypes = allocate(capacity * Integer.BYTES, Integer.BYTES, newScope);
+        MemorySegment newPositions = allocateFloats(capacity * 2, newScope);
+        MemorySegment newVelocities = allocateFloats(capacity * 2, newScope);
+
+        long kept = Math.min(size, capacity);
+        if (kept > 0) {
+            newTypes.copyFrom(types.asSlice(0, kept * Integer.BYTES));
+            newPositions.copyFrom(positions.asSlice(0, kept * 2 * Float.BYTES));
+            newVelocities.copyFrom(velocities.asSlice(0, kept * 2 * Float.BYTES));
+        }
+
+        if (scope != null) {
+            scope.close();
+        }
+
+        scope = newScope;
+        types = newTypes;
+        positions = newPositions;
+        velocities = newVelocities;
+        positionsBuffer = allocateFloats(capacity * 2, newScope);
+        velocitiesBuffer = allocateFloats(capacity * 2, newScope);
+
+        this.capacity = capacity;
+        size = kept;
+    }
+
+    private static MemorySegment allocateFloats(long count, ResourceScope scope) {
+        return allocate(count * Float.BYTES, Float.BYTES, scope);
+    }
+
+    /**
+     * Native segments can't be empty, so at least one element is allocated.
+     */
+    private static MemorySegment allocate(long bytes, long alignment, ResourceScope scope) {
+        return MemorySegment.allocateNative(Math.max(bytes, alignment), alignment, scope).asSlice(0, bytes);
+    }
+
+    /**
+     * Changes the number of particles. The capacity is only increased (to exactly <code>size</code>) if it is too small.
+     * New particles are zeroed.
+     */
+    void setSize(long size) {
+        if (size > capacity) {
+            reserve(size);
+        }
+        if (size > this.size) {
+            types.asSlice(this.size * Integer.BYTES, (size - this.size) * Integer.BYTES).fill((byte) 0);
+            positions.asSlice(this.size * 2 * Float.BYTES, (size - this.size) * 2 * Float.BYTES).fill((byte) 0);
+            velocities.asSlice(this.size * 2 * Float.BYTES, (size - this.size) * 2 * Float.BYTES).fill((byte) 0);
+        }
+        this.size = size;
+    }
+
+    /**
+     * Shrinks the capacity to the current size.
+     */
+    void trimToSize() {
+        reserve(size);
+    }
+
+    int getType(long i) {
+        return MemoryAccess.getIntAtIndex(types, i);
+    }
+
+    void setType(long i, int type) {
+        MemoryAccess.setIntAtIndex(types, i, type);
+    }
+
+    float getX(long i) {
+        return MemoryAccess.getFloatAtIndex(positions, i * 2);
+    }
+
+    float getY(long i) {
+        return MemoryAccess.getFloatAtIndex(positions, i * 2 + 1);
+    }
+
+    void setPosition(long i, float x, float y) {
+        MemoryAccess.setFloatAtIndex(positions, i * 2, x);
+        MemoryAccess.setFloatAtIndex(positions, i * 2 + 1, y);
+    }
+
+    float getVelocityX(long i) {
+        return MemoryAccess.getFloatAtIndex(velocities, i * 2);
+    }
+
+    float getVelocityY(long i) {
+        return MemoryAccess.getFloatAtIndex(velocities, i * 2 + 1);
+    }
+
+    void setVelocity(long i, float vx, float vy) {
+        MemoryAccess.setFloatAtIndex(velocities, i * 2, vx);
+        MemoryAccess.setFloatAtIndex(velocities, i * 2 + 1, vy);
+    }
+
+    void swapPositions() {
+        MemorySegment h = positions;
+        positions = positionsBuffer;
+        positionsBuffer = h;
+    }
+
+    void swapVelocities() {
+        MemorySegment h = velocities;
+        velocities = velocitiesBuffer;
+        velocitiesBuffer = h;
+    }
+
+    /**
+     * Copies heap arrays into the store, starting at particle <code>offset</code>.
+     * The store must be large enough.
+     */
+    void copyTypesFrom(int[] types, long offset) {
+        this.types.asSlice(offset * Integer.BYTES, (long) types.length * Integer.BYTES)
+                .copyFrom(MemorySegment.ofArray(types));
+    }
+
+    void copyPositionsFrom(float[] positions, long offset) {
+        this.positions.asSlice(offset * 2 * Float.BYTES, (long) positions.length * Float.BYTES)
+                .copyFrom(MemorySegment.ofArray(positions));
+    }
+
+    void copyVelocitiesFrom(float[] velocities, long offset) {
+        this.velocities.asSlice(offset * 2 * Float.BYTES, (long) velocities.length * Float.BYTES)
+                .copyFrom(MemorySegment.ofArray(velocities));
+    }
+
+    /**
+     * Copies particles from the store to heap arrays, starting at particle <code>offset</code>,
+     * as many as fit into the array.
+     */
+    void copyTypesTo(int[] types, long offset) {
+        MemorySegment.ofArray(types)
+                .copyFrom(this.types.asSlice(offset * Integer.BYTES, (long) types.length * Integer.BYTES));
+    }
+
+    void copyPositionsTo(float[] positions, long offset) {
+        MemorySegment.ofArray(positions)
+                .copyFrom(this.positions.asSlice(offset * 2 * Float.BYTES, (long) positions.length * Float.BYTES));
+    }
+
+    void copyVelocitiesTo(float[] velocities, long offset) {
+        MemorySegment.ofArray(velocities)
+                .copyFrom(this.velocities.asSlice(offset * 2 * Float.BYTES, (long) velocities.length * Float.BYTES));
+    }
+
+    /**
+     * Frees the native memory. The store must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (scope != null) {
+            scope.close();
+            scope = null;
+        }
+        capacity = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,287 @@
+package engine;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import logic.OffHeapKernel;
+import logic.Settings;
+import logic.Updater;
+import logic.UpdaterLogic;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Works like {@link MultithreadedUpdater} (without spatial sorting, half stencil and ghost cells),
+ * but keeps the particles in native memory (see {@link OffHeapParticles}), outside the garbage-collected heap.
+ * <p>
+ * The updates only work on the native memory, with the scalar kernel of {@link OffHeapKernel}.
+ * The arrays returned by the getters are only copied out on demand, at most once per update, into arrays that are reused. The setters copy the arrays into the native memory,
+ * which is only reallocated if the number of particles exceeds the capacity.
+ * <p>
+ * The cell list indexes the particles with ints, so the number of particles is limited to
+ * {@link Integer#MAX_VALUE} (even though the store itself is addressed by long indices).
+ * <p>
+ * Requires <code>--add-modules jdk.incubator.foreign</code>.
+ */
+class OffHeapUpdater implements Updater, AutoCloseable {
+
+    private final Parallel parallel;
+    private final StepProfiler profiler;
+
+    /**
+     * @param pool the threads that are used for updating. The caller is responsible for shutting it down.
+     */
+    OffHeapUpdater(ForkJoinPool pool) {
+        this(pool, new StepProfiler());
+    }
+
+    /**
+     * @param pool the threads that are used for updating. The caller is responsible for shutting it down.
+     * @param profiler gets the durations of the phases of the steps.
+     */
+    OffHeapUpdater(ForkJoinPool pool, StepProfiler profiler) {
+        this.parallel = new Parallel(pool, profiler);
+        this.profiler = profiler;
+    }
+
+    /**
+     * Uses the common pool.
+     */
+    OffHeapUpdater() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    private final OffHeapParticles particles = new OffHeapParticles();
+
+    /**
+     * Heap copies for the getters.
+     */
+    private int[] types = new int[0];
+    private float[] positions = new float[0];
+    private float[] velocities = new float[0];
+    private boolean positionsValid = true;
+    private boolean velocitiesValid = true;
+
+    private final CellList cellList = new CellList();
+
+    /**
+     * The updater logic that is passed to the updates isn't used, since it works on arrays.
+     */
+    private final OffHeapKernel kernel = new OffHeapKernel();
+
+    /**
+     * Whether the count phase of the cell list is up-to-date with the current positions.
+     * @see MultithreadedUpdater
+     */
+    private boolean cellsCounted = false;
+
+    // The arguments of the current step, for the parallel tasks below.
+    // The tasks are only created once, so that a step doesn't allocate (see Parallel).
+
+    private final Settings s = new Settings();  // copy, the UI thread could change the settings
+
+    private final Parallel.IndexTask countTask = chunk -> count(particles.positions, chunk);
+    private final Parallel.IndexTask scatterTask = chunk -> cellList.scatter(chunk);
+    private final Parallel.IndexTask sortBlockTask = block -> cellList.sortBlock(block);
+
+    private final Parallel.RangeTask updateVelocitiesTask = (from, to, scratch) -> {
+
+        int[] neighborRanges = scratch.getInts(cellList.getMaxNeighborRanges() * 2);
+        int[] cellStart = cellList.cellStart;
+
+        for (int cell = from; cell < to; cell++) {
+
+            int cellX = cell % cellList.nx;
+            int cellY = cell / cellList.nx;
+
+            int nRanges = cellList.getNeighborRanges(cellX, cellY, s.isWrap(), neighborRanges);
+
+            kernel.updateVelocities(
+                    s, particles.types, particles.positions, particles.velocities,
+                    cellList.cellParticles, cellStart[cell], cellStart[cell + 1],
+                    neighborRanges, nRanges,
+                    particles.velocitiesBuffer
+            );
+        }
+    };
+
+    private final Parallel.IndexTask updatePositionsTask = chunk -> {
+        kernel.updatePositions(
+                s, particles.positions, particles.velocities,
+                cellList.getChunkStart(chunk), cellList.getChunkEnd(chunk),
+                particles.positionsBuffer
+        );
+        count(particles.positionsBuffer, chunk);
+    };
+
+    /**
+     * Phase 1 of the cell list (see {@link CellList#count(float[], int)}), reading the positions from native memory.
+     */
+    private void count(MemorySegment positions, int chunk) {
+        int offset = cellList.startCount(chunk);
+        int end = cellList.getChunkEnd(chunk);
+        for (int i = cellList.getChunkStart(chunk); i < end; i++) {
+            float x = MemoryAccess.getFloatAtIndex(positions, i * 2L);
+            float y = MemoryAccess.getFloatAtIndex(positions, i * 2L + 1);
+            cellList.countParticle(offset, i, x, y);
+        }
+    }
+
+    /**
+     * @return the native memory that is allocated for the particles, in bytes.
+     */
+    long getAllocatedBytes() {
+        return particles.getAllocatedBytes();
+    }
+
+    @Override
+    public void setTypes(int[] types) {
+        if (types != this.types) {
+            cellsCounted = false;
+        }
+        particles.setSize(types.length);
+        particles.copyTypesFrom(types, 0);
+        this.types = types;
+    }
+
+    @Override
+    public void setPositions(float[] positions) {
+        particles.setSize(positions.length / 2);
+        particles.copyPositionsFrom(positions, 0);
+        this.positions = positions;
+        positionsValid = true;
+        cellsCounted = false;
+    }
+
+    @Override
+    public void setVelocities(float[] velocities) {
+        particles.setSize(velocities.length / 2);
+        particles.copyVelocitiesFrom(velocities, 0);
+        this.velocities = velocities;
+        velocitiesValid = true;
+    }
+
+    /**
+     * The types are never changed by the updates, so the array that was set is returned.
+     */
+    @Override
+    public int[] getTypes() {
+        return types;
+    }
+
+    @Override
+    public float[] getPositions() {
+        if (!positionsValid) {
+            // create buffer if necessary
+            if (positions.length != particles.size() * 2) {
+                positions = new float[(int) particles.size() * 2];
+            }
+            particles.copyPositionsTo(positions, 0);
+            positionsValid = true;
+        }
+        return positions;
+    }
+
+    @Override
+    public float[] getVelocities() {
+        if (!velocitiesValid) {
+            // create buffer if necessary
+            if (velocities.length != particles.size() * 2) {
+                velocities = new float[(int) particles.size() * 2];
+            }
+            particles.copyVelocitiesTo(velocities, 0);
+            velocitiesValid = true;
+        }
+        return velocities;
+    }
+
+    /**
+     * Reads the native memory directly, without copying the velocities to the heap.
+     */
+    @Override
+    public float getMaxSpeed() {
+        float maxSpeedSquared = 0;
+        for (long i = 0; i < particles.size(); i++) {
+            float vx = particles.getVelocityX(i);
+            float vy = particles.getVelocityY(i);
+            maxSpeedSquared = Math.max(maxSpeedSquared, vx * vx + vy * vy);
+        }
+        return (float) Math.sqrt(maxSpeedSquared);
+    }
+
+    private int getParticleCount() {
+        return (int) particles.size();
+    }
+
+    private void resizeCellList(Settings s) {
+        if (cellList.resize(s.getRangeX(), s.getRangeY(), s.getRMax(), getParticleCount(), parallel.getParallelism())) {
+            cellsCounted = false;
+        }
+    }
+
+    private void buildCellList(Settings s) {
+
+        resizeCellList(s);
+
+        if (!cellsCounted) {
+            parallel.runEach(cellList.getChunkCount(), countTask);
+        }
+        cellsCounted = false;
+
+        cellList.scanBlocks();
+        parallel.runEach(cellList.getChunkCount(), scatterTask);
+        parallel.runEach(cellList.getBlockCount(), sortBlockTask);
+    }
+
+    @Override
+    public void updateVelocities(Settings settings, UpdaterLogic updaterLogic) {
+
+        s.copyFrom(settings);  // UI thread could change settings
+
+        long start = System.nanoTime();
+
+        buildCellList(s);
+
+        start = profiler.record(StepProfiler.Phase.CELLS, start);
+
+        parallel.run(cellList.getCellCount(), updateVelocitiesTask);
+
+        // swap buffer
+        particles.swapVelocities();
+
+        velocitiesValid = false;
+
+        profiler.record(StepProfiler.Phase.FORCES, start);
+    }
+
+    /**
+     * Moves the particles and finds their new cells in the same parallel pass.
+     * @see MultithreadedUpdater#updatePositions(Settings, UpdaterLogic)
+     */
+    @Override
+    public void updatePositions(Settings settings, UpdaterLogic updaterLogic) {
+
+        s.copyFrom(settings);  // UI thread could change settings
+
+        long start = System.nanoTime();
+
+        resizeCellList(s);
+
+        parallel.runEach(cellList.getChunkCount(), updatePositionsTask);
+
+        // swap buffer
+        particles.swapPositions();
+
+        positionsValid = false;
+        cellsCounted = true;
+
+        profiler.record(StepProfiler.Phase.INTEGRATION, start);
+    }
+
+    /**
+     * Frees the native memory. The updater must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        particles.close();
+    }
+}
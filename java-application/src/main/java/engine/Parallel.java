@@ -0,0 +1,294 @@
+package engine;
+
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs parallel loops on a ForkJoinPool.
+ * The ranges are split in halves recursively, so that idle threads can steal the other halves.
+ * <p>
+ * A loop doesn't allocate once it ran with the same length before:
+ * the trees of split tasks are kept and reinitialized for the next loop of the same length,
+ * and the tasks get scratch buffers of their thread (see {@link Scratch}).
+ * The tasks that are passed in shouldn't be created anew for each loop either, i.e. they shouldn't capture local variables.
+ * No thread joins a task (which allocates a wait node in the pool): the tasks are completers that finish
+ * their parents, and the calling thread parks until the whole tree is finished.
+ * Loops must not be nested, or run concurrently on the same instance.
+ * <p>
+ * The tasks and the loops are timed for the {@link StepProfiler}, which shows how evenly the threads were busy.
+ */
+final class Parallel {
+
+    /**
+     * How many leaf tasks per thread a parallel loop is split into (at most).
+     * More tasks than threads allow idle threads to steal work if the cells are unevenly filled.
+     */
+    private static final int TASKS_PER_THREAD = 8;
+
+    /**
+     * How many trees of split tasks are kept, i.e. how many different loop lengths can alternate without allocating.
+     */
+    private static final int CACHED_TREES = 16;
+
+    interface RangeTask {
+        /**
+         * @param scratch buffers of the current thread, which can be used until the method returns.
+         */
+        void run(int from, int to, Scratch scratch);
+    }
+
+    interface IndexTask {
+        void run(int index);
+    }
+
+    /**
+     * Buffers that a task can use temporarily, instead of allocating its own.
+     * Each thread has its own instance, which grows as needed, but never shrinks.
+     */
+    static final class Scratch {
+
+        private int[] ints = new int[0];
+
+        /**
+         * @return an array of at least the given length, with undefined contents.
+         */
+        int[] getInts(int length) {
+
+            // create buffer if necessary
+            if (ints.length < length) {
+                ints = new int[length];
+            }
+
+            return ints;
+        }
+    }
+
+    /**
+     * Never serialized, it refers to the loop of its {@link Parallel} instance.
+     */
+    @SuppressWarnings("serial")
+    private final class SplitTask extends CountedCompleter<Void> {
+
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        /**
+         * Both are null for leaves.
+         */
+        private final SplitTask left;
+        private final SplitTask right;
+
+        private final int nLeaves;
+
+        SplitTask(SplitTask parent, int from, int to, int grain) {
+            super(parent);
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            if (to - from <= grain) {
+                left = null;
+                right = null;
+                nLeaves = 1;
+            } else {
+                int mid = (from + to) >>> 1;
+                left = new SplitTask(this, from, mid, grain);
+                right = new SplitTask(this, mid, to, grain);
+                nLeaves = left.nLeaves + right.nLeaves;
+            }
+        }
+
+        /**
+         * Makes this tree runnable again.
+         */
+        void reset() {
+            reinitialize();
+            if (left != null) {
+                left.reset();
+                right.reset();
+            }
+        }
+
+        @Override
+        public void compute() {
+            if (left != null) {
+                // the child that finishes last completes this task
+                setPendingCount(1);
+                right.fork();
+                left.compute();
+            } else {
+                try {
+                    long start = System.nanoTime();
+                    if (rangeTask != null) {
+                        rangeTask.run(from, to, scratch.get());
+                    } else {
+                        for (int i = from; i < to; i++) {
+                            indexTask.run(i);
+                        }
+                    }
+                    profiler.addBusyTime(System.nanoTime() - start);
+                    tryComplete();
+                } finally {
+                    // last, so that the tree isn't touched anymore once the count reaches 0
+                    runningLeaves.decrementAndGet();
+                }
+            }
+        }
+
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            if (getCompleter() == null) {
+                wakeUpCaller();
+            }
+        }
+
+        @Override
+        public boolean onExceptionalCompletion(Throwable ex, CountedCompleter<?> caller) {
+            if (getCompleter() == null) {
+                wakeUpCaller();
+            }
+            return true;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final StepProfiler profiler;
+
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private final SplitTask[] trees = new SplitTask[CACHED_TREES];
+    private int nextTree = 0;
+
+    /**
+     * The thread that waits for the current loop, and whether the root of the tree was completed.
+     */
+    private volatile Thread caller;
+    private volatile boolean finished;
+
+    /**
+     * Number of leaves of the current loop that haven't finished yet, whether they threw an exception or not.
+     * The root is already completed exceptionally when the first leaf throws, while the others may still run.
+     */
+    private final AtomicInteger runningLeaves = new AtomicInteger();
+
+    /**
+     * The task of the current loop, exactly one of them is set while a loop runs.
+     * Visible to the pool's threads, since they are set before the tree is submitted.
+     */
+    private RangeTask rangeTask;
+    private IndexTask indexTask;
+
+    /**
+     * @param pool the threads that are used. The caller is responsible for shutting it down.
+     * @param profiler gets the busy times of the threads and the durations of the loops.
+     */
+    Parallel(ForkJoinPool pool, StepProfiler profiler) {
+        this.pool = pool;
+        this.profiler = profiler;
+    }
+
+    int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Runs <code>task</code> on the range [0, n), split into pieces that are processed in parallel,
+     * and waits until all of them are finished.
+     */
+    void run(int n, RangeTask task) {
+        if (n > 0) {
+            int grain = Math.max(1, n / (pool.getParallelism() * TASKS_PER_THREAD));
+            rangeTask = task;
+            try {
+                invoke(getTree(n, grain));
+            } finally {
+                rangeTask = null;
+            }
+        }
+    }
+
+    /**
+     * Runs <code>task.run(i)</code> for all i in [0, n) in parallel, one task per index,
+     * and waits until all of them are finished.
+     */
+    void runEach(int n, IndexTask task) {
+        if (n > 0) {
+            indexTask = task;
+            try {
+                invoke(getTree(n, 1));
+            } finally {
+                indexTask = null;
+            }
+        }
+    }
+
+    /**
+     * Runs the tree on the pool and waits until it is finished.
+     * If a task threw an exception, the other leaves are still waited for (they must not run after the task
+     * of the loop is cleared), then the tree is discarded and the exception is thrown.
+     */
+    private void invoke(SplitTask tree) {
+
+        long start = System.nanoTime();
+        caller = Thread.currentThread();
+        finished = false;
+        runningLeaves.set(tree.nLeaves);
+
+        pool.execute(tree);
+
+        while (!finished) {
+            LockSupport.park(this);
+        }
+        // the caller is woken up just before the root is marked as done,
+        // yield instead of spinning, since the pool's thread may need this processor to finish
+        while (!tree.isDone()) {
+            Thread.yield();
+        }
+        profiler.addLoopTime(System.nanoTime() - start);
+
+        if (tree.isCompletedAbnormally()) {
+            while (runningLeaves.get() > 0) {
+                Thread.yield();
+            }
+            for (int i = 0; i < trees.length; i++) {
+                if (trees[i] == tree) {
+                    trees[i] = null;
+                }
+            }
+            Throwable ex = tree.getException();
+            if (ex instanceof RuntimeException) {
+                throw (RuntimeException) ex;
+            } else if (ex instanceof Error) {
+                throw (Error) ex;
+            }
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void wakeUpCaller() {
+        Thread thread = caller;
+        finished = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * @return a tree of split tasks for [0, n), ready to be run. Only allocates if no such tree is cached.
+     */
+    private SplitTask getTree(int n, int grain) {
+
+        for (SplitTask tree : trees) {
+            if (tree != null && tree.to == n && tree.grain == grain) {
+                tree.reset();
+                return tree;
+            }
+        }
+
+        // replace the oldest tree
+        SplitTask tree = new SplitTask(null, 0, n, grain);
+        trees[nextTree] = tree;
+        nextTree = (nextTree + 1) % CACHED_TREES;
+        return tree;
+    }
+}
@@ -4,7 +4,6 @@ import logic.Settings;
 import logic.Updater;
 import logic.UpdaterLogic;
 
-import java.util.ArrayList;
 
 class RMaxUpdater implements Updater {
 
@@ -14,6 +13,9 @@ class RMaxUpdater implements Updater {
 
     @Override
     public void setTypes(int[] types) {
+        if (types != this.types) {
+            spatialOrder.reset(types.length);
+        }
         this.types = types;
     }
 
@@ -42,199 +44,154 @@ class RMaxUpdater implements Updater {
         return velocities;
     }
 
+    @Override
+    public int getIndex(int id) {
+        return spatialOrder.getIndex(id);
+    }
+
+    @Override
+    public int getId(int index) {
+        return spatialOrder.getId(index);
+    }
+
+    /**
+     * Enables or disables sorting the particle arrays by cell.
+     * @param interval every how many steps the particles should be reordered.
+     */
+    void setSpatialOrder(SpatialOrder.Mode mode, int interval) {
+        spatialOrder.setMode(mode, interval);
+    }
+
+    private int[] typesBuffer;
     private float[] positionsBuffer;
     private float[] velocitiesBuffer;
 
-    private int nx;
-    private int ny;
-    private float containerSizeX;
-    private float containerSizeY;
-    private Container[] containers;
+    private final SpatialOrder spatialOrder = new SpatialOrder();
 
-    private static class Container {
+    private final CellList cellList = new CellList();
+    private final int[] neighborRanges = new int[18];
 
-        ArrayList<Integer> indices;
+    private boolean halfStencil = false;
+    private float[] deltaVelocities;
 
-        Container(int initialCapacity) {
-            this.indices = new ArrayList<>(initialCapacity);
-        }
+    /**
+     * If enabled, each pair of particles is only evaluated once, and the result is applied to both particles.
+     * This is ignored if the grid doesn't allow it (see {@link CellList#supportsHalfStencil(boolean)}).
+     */
+    void setHalfStencil(boolean halfStencil) {
+        this.halfStencil = halfStencil;
     }
 
-    private void createContainers(Settings s) {
+    @Override
+    public void updateVelocities(Settings s, UpdaterLogic updaterLogic) {
 
-        containers = new Container[nx * ny];
-        int initialCapacity = 2 * types.length / containers.length;
+        if (halfStencil) {
+            cellList.resize(s.getRangeX(), s.getRangeY(), s.getRMax(), types.length, 1,
+                    CellList.HALF_STENCIL_COLORS_X, CellList.HALF_STENCIL_COLORS_Y);
+        } else {
+            cellList.resize(s.getRangeX(), s.getRangeY(), s.getRMax(), types.length, 1);
+        }
+        cellList.build(positions);
 
-        for (int i = 0; i < containers.length; i++) {
-            containers[i] = new Container(initialCapacity);
+        if (spatialOrder.isDue()) {
+            sortParticles();
+            cellList.build(positions);  // the indices changed
         }
-    }
 
-    private void clearContainers() {
-        for (Container container : containers) {
-            container.indices.clear();
+        // create buffer if necessary
+        if (velocitiesBuffer == null || velocitiesBuffer.length != velocities.length) {
+            velocitiesBuffer = new float[velocities.length];
         }
-    }
 
-    private void fillContainers() {
-        int typeIndex = 0;
-        int positionIndex = 0;
+        if (halfStencil && cellList.supportsHalfStencil(s.isWrap())) {
+            updateVelocitiesHalfStencil(s, updaterLogic);
+        } else {
+            updateVelocitiesFullStencil(s, updaterLogic);
+        }
 
-        while (positionIndex < positions.length) {
+        // swap buffer
+        float[] h = velocities;
+        velocities = velocitiesBuffer;
+        velocitiesBuffer = h;
+    }
+
+    private void updateVelocitiesFullStencil(Settings s, UpdaterLogic updaterLogic) {
 
-            float x = positions[positionIndex];
-            float y = positions[positionIndex + 1];
+        int[] cellStart = cellList.cellStart;
 
-            int containerX = (int) Math.floor(x / containerSizeX);
-            int containerY = (int) Math.floor(y / containerSizeY);
-            
-            containerX = clip(containerX, 0, nx - 1);
-            containerY = clip(containerY, 0, ny - 1);
+        for (int cellY = 0; cellY < cellList.ny; cellY++) {
+            for (int cellX = 0; cellX < cellList.nx; cellX++) {
 
-            containers[getContainerIndex(containerX, containerY)].indices.add(typeIndex);
+                int cell = cellList.getCellIndex(cellX, cellY);
+                int nRanges = cellList.getNeighborRanges(cellX, cellY, s.isWrap(), neighborRanges);
 
-            typeIndex += 1;
-            positionIndex += 2;
+                updaterLogic.updateVelocities(
+                        s, types, positions, velocities,
+                        cellList.cellParticles, cellStart[cell], cellStart[cell + 1],
+                        neighborRanges, nRanges,
+                        velocitiesBuffer
+                );
+            }
         }
     }
-    
-    private int getContainerIndex(int containerX, int containerY) {
-        return nx * containerY + containerX;
-    }
-
-    private ArrayList<Container> getNeighborContainers(int containerX, int containerY,
-                                                       int radiusX, int radiusY,
-                                                       boolean includeCenter, boolean wrap) {
 
-        int centerContainerIndex = getContainerIndex(containerX, containerY);
+    private void updateVelocitiesHalfStencil(Settings s, UpdaterLogic updaterLogic) {
 
-        ArrayList<Container> relevantContainers = new ArrayList<>(includeCenter ? 9 : 8);
-
-        int minContainerX = containerX - radiusX;
-        int minContainerY = containerY - radiusY;
-        int maxContainerX = containerX + radiusX;
-        int maxContainerY = containerY + radiusY;
+        // create buffer if necessary
+        if (deltaVelocities == null || deltaVelocities.length != velocities.length) {
+            deltaVelocities = new float[velocities.length];
+        }
 
-        if (wrap) {
+        int[] cellStart = cellList.cellStart;
 
-            for (int cx = minContainerX; cx <= maxContainerX; cx++) {
-                for (int cy = minContainerY; cy <= maxContainerY; cy++) {
-                    int containerIndex = getContainerIndex(modulo(cx, nx), modulo(cy, ny));
-                    if (includeCenter || containerIndex != centerContainerIndex) {
-                        relevantContainers.add(containers[containerIndex]);
-                    }
-                }
-            }
+        for (int cellY = 0; cellY < cellList.ny; cellY++) {
+            for (int cellX = 0; cellX < cellList.nx; cellX++) {
 
-        } else {
+                int cell = cellList.getCellIndex(cellX, cellY);
+                int nRanges = cellList.getHalfNeighborRanges(cellX, cellY, s.isWrap(), neighborRanges);
 
-            minContainerX = clip(minContainerX, 0, nx - 1);
-            maxContainerX = clip(maxContainerX, 0, nx - 1);
-            minContainerY = clip(minContainerY, 0, ny - 1);
-            maxContainerY = clip(maxContainerY, 0, ny - 1);
-
-            for (int cx = minContainerX; cx <= maxContainerX; cx++) {
-                for (int cy = minContainerY; cy <= maxContainerY; cy++) {
-                    int containerIndex = getContainerIndex(cx, cy);
-                    if (includeCenter || containerIndex != centerContainerIndex) {
-                        relevantContainers.add(containers[containerIndex]);
-                    }
-                }
+                updaterLogic.accumulatePairs(
+                        s, types, positions,
+                        cellList.cellParticles, cellStart[cell], cellStart[cell + 1],
+                        neighborRanges, nRanges,
+                        deltaVelocities
+                );
             }
         }
 
-        return relevantContainers;
+        updaterLogic.finishVelocities(s, positions, velocities, deltaVelocities, 0, types.length, velocitiesBuffer);
     }
 
-    private int modulo(int a, int b) {
-        return ((a % b) + b) % b;
-    }
-    
-    private int clip(int val, int min, int max) {
-        if (val < min) {
-            return min;
-        }
-        if (val > max) {
-            return max;
-        }
-        return val;
-    }
+    /**
+     * Reorders the particle arrays by cell.
+     */
+    private void sortParticles() {
 
-    @Override
-    public void updateVelocities(Settings s, UpdaterLogic updaterLogic) {
-
-        // create containers if necessary
-        nx = (int) Math.floor(s.getRangeX() / s.getRMax());
-        ny = (int) Math.floor(s.getRangeY() / s.getRMax());
-        containerSizeX = s.getRangeX() / nx;
-        containerSizeY = s.getRangeY() / ny;
-        if (containers == null || nx * ny != containers.length) {
-            createContainers(s);
-        } else {
-            clearContainers();
+        // create buffers if necessary
+        if (typesBuffer == null || typesBuffer.length != types.length) {
+            typesBuffer = new int[types.length];
+        }
+        if (positionsBuffer == null || positionsBuffer.length != positions.length) {
+            positionsBuffer = new float[positions.length];
         }
-
-        fillContainers();
-
-        // create buffer if necessary
         if (velocitiesBuffer == null || velocitiesBuffer.length != velocities.length) {
             velocitiesBuffer = new float[velocities.length];
         }
 
-        int containerX = 0;
-        int containerY = 0;
-        for (Container container : containers) {
-            ArrayList<Container> relevantContainers = getNeighborContainers(
-                    containerX, containerY, 1, 1,
-                    false, s.isWrap()
-            );
-            ArrayList<Integer> relevantIndices = new ArrayList<>(container.indices);  // regarded particles come first
-            relevantContainers.forEach(c -> relevantIndices.addAll(c.indices));
-
-            int[] relevantTypes = new int[relevantIndices.size()];
-            float[] relevantPositions = new float[relevantIndices.size() * 2];
-
-            int typeIndex = 0;
-            int positionIndex = 0;
-            for (int index : relevantIndices) {
-                int index2 = 2 * index;
-
-                relevantTypes[typeIndex] = types[index];
+        spatialOrder.sort(cellList, types, positions, velocities, typesBuffer, positionsBuffer, velocitiesBuffer);
 
-                relevantPositions[positionIndex] = positions[index2];
-                relevantPositions[positionIndex + 1] = positions[index2 + 1];
+        // swap buffers
+        int[] h = types;
+        types = typesBuffer;
+        typesBuffer = h;
 
-                typeIndex += 1;
-                positionIndex += 2;
-            }
-
-            int relevantIndex = 0;
-            for (int index : container.indices) {
-                int index2 = index * 2;
-
-                float[] velocity = updaterLogic.updateVelocity(
-                        s, relevantPositions, relevantTypes,
-                        relevantIndex, velocities[index2], velocities[index2 + 1]
-                );
-
-                velocitiesBuffer[index2] = velocity[0];
-                velocitiesBuffer[index2 + 1] = velocity[1];
-
-                relevantIndex++;
-            }
-
-            // step to next container
-            containerX++;
-            if (containerX == nx) {
-                containerX = 0;
-                containerY++;
-            }
-        }
+        float[] h2 = positions;
+        positions = positionsBuffer;
+        positionsBuffer = h2;
 
-        // swap buffer
-        float[] h = velocities;
+        h2 = velocities;
         velocities = velocitiesBuffer;
-        velocitiesBuffer = h;
+        velocitiesBuffer = h2;
     }
 
     @Override
@@ -245,58 +202,11 @@ class RMaxUpdater implements Updater {
             positionsBuffer = new float[positions.length];
         }
 
-        int positionIndex = 0;
-
-        while (positionIndex < positions.length) {
-
-            float[] position = updaterLogic.updatePosition(
-                    s,
-                    positions[positionIndex], positions[positionIndex + 1],
-                    velocities[positionIndex], velocities[positionIndex + 1]
-            );
-
-            positionsBuffer[positionIndex] = position[0];
-            positionsBuffer[positionIndex + 1] = position[1];
-
-            positionIndex += 2;
-        }
+        updaterLogic.updatePositions(s, positions, velocities, 0, types.length, positionsBuffer);
 
         // swap buffer
         float[] h = positions;
         positions = positionsBuffer;
         positionsBuffer = h;
     }
-
-    @Override
-    public int[] getRelevant(float x, float y, float radius, boolean wrap) {
-
-        int containerX = (int) Math.floor(x / containerSizeX);
-        int containerY = (int) Math.floor(y / containerSizeY);
-        int radiusX = (int) Math.ceil(radius / containerSizeX);
-        int radiusY = (int) Math.ceil(radius / containerSizeY);
-        getNeighborContainers(containerX, containerY, radiusX, radiusY, true, wrap);
-
-        ArrayList<Integer> indices = new ArrayList<>();
-
-        int typeIndex = 0;
-        int positionIndex = 0;
-
-        while (positionIndex < positions.length) {
-
-            indices.add(typeIndex);
-
-            typeIndex += 1;
-            positionIndex += 2;
-        }
-
-        // make array
-        int n = indices.size();
-        int[] arr = new int[n];
-        int i = 0;
-        for (int integer : indices) {
-            arr[i] = integer;
-            i++;
-        }
-        return arr;
-    }
 }
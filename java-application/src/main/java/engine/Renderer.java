@@ -1,7 +1,6 @@
 package engine;
 
 import engine.colormaker.RainbowColorMaker;
-import logic.DefaultUpdaterLogic;
 import logic.Settings;
 import logic.Updater;
 import logic.UpdaterLogic;
@@ -16,19 +15,47 @@ import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.LockSupport;
 
 public class Renderer {
 
-    private boolean paused = false;
+    private static final long PAUSED_SLEEP_NANOS = 10_000_000;
+
+    private volatile boolean paused = false;
     private boolean useFixedTimeStep = false;
     private float fixedTimeStepValueMillis = 16;
+    private boolean useAdaptiveTimeStep = false;
+    private final AdaptiveTimeStep adaptiveTimeStep = new AdaptiveTimeStep();
+
+    /**
+     * How long one call of {@link #update()} may step the physics with the fixed or adaptive time step, in ms.
+     */
+    private float physicsTimeBudgetMillis = 30;
+
+    /**
+     * Time that has passed, but wasn't simulated yet with the fixed or adaptive time step, in ms.
+     */
+    private float timeAccumulatorMillis = 0;
+    private long lastUpdateNanos = -1;
+    private int lastSubstepCount = 0;
 
     private final Clock generalClock = new Clock();
+    private final Clock stepClock = new Clock();
     private final Clock physicsClock = new Clock();
     private final Clock renderingClock = new Clock();
 
+    /**
+     * Replaced when the updater changes, since the timings of the old updater don't apply to the new one.
+     */
+    private volatile StepProfiler profiler = new StepProfiler();
+
+    // only used by the drawing thread, for the time of the GUI
+    private long cameraNanos = 0;
+    private long particlesNanos = 0;
+
     private float particleDensity = 0.002f;
     private int nParticles;
     private float particleSize = 2;
@@ -41,18 +68,59 @@ public class Renderer {
 
     private int[] typeColors = new int[0];
 
-    private Random random = new Random();
+    /**
+     * For spawning and changing particles. Seeded from the settings, so that it can be replayed.
+     */
+    private SplittableRandom random = new SplittableRandom(settings.getSeed());
+
+    // written by the drawing thread, read by the simulation thread
+    private volatile float mouseX = 0;
+    private volatile float mouseY = 0;
+    private volatile boolean mousePressed = false;
+    private volatile float particleDragSelectionRadius = 25;
 
-    private float mouseX = 0;
-    private float mouseY = 0;
     private float lastMouseX = 0;
     private float lastMouseY = 0;
-    private boolean mousePressed = false;
+
+    // only used by the drawing thread
     private Camera camera;
 
-    private float particleDragSelectionRadius = 25;
+    private final ForkJoinPool forkJoinPool;
+
+    /**
+     * Over the current positions of the updater, for the simulation thread.
+     */
+    private final SpatialQuery spatialQuery = new SpatialQuery();
+
+    /**
+     * Over the positions of the snapshot that is drawn, for the drawing thread.
+     */
+    private final SpatialQuery snapshotQuery = new SpatialQuery();
+    private final SnapshotBuffer snapshots = new SnapshotBuffer();
+    private long drawnStep = -1;
+
+    /**
+     * Held while the particles are updated or changed by requests.
+     */
+    private final Object stepLock = new Object();
+    private volatile boolean simulationRunning = false;
+    private Thread simulationThread = null;
 
+    /**
+     * Work of the simulation thread that has to be done in the drawing thread (listeners, camera, screenshots).
+     */
+    private final ConcurrentLinkedQueue<Runnable> drawingThreadTasks = new ConcurrentLinkedQueue<>();
+
+    // state of the visitors of the spatial query, kept in fields so that the visitors are only created once
+    private float[] dragPositions;
+    private float[] dragVelocities;
+    private float dragX;
+    private float dragY;
+    private int particleCount;
+    private final SpatialQuery.Visitor dragVisitor = this::dragParticle;
+    private final SpatialQuery.Visitor countVisitor = this::countParticle;
     private Updater updater;
+    private int updaterIndex = 0;
     private UpdaterLogic updaterLogic;
 
     private float windowWidth;
@@ -60,7 +128,7 @@ public class Renderer {
 
     private JFrame settingsJFrame = null;
 
-    private final LinkedList<Request> requests = new LinkedList<>();
+    private final ConcurrentLinkedQueue<Request> requests = new ConcurrentLinkedQueue<>();
 
     public interface MatrixChangeListener {
         void matrixChanged(logic.Matrix matrix);
@@ -93,7 +161,8 @@ public class Renderer {
     }
 
     private void notifyMatrixChangeListeners() {
-        matrixChangeListeners.forEach(listener -> listener.matrixChanged(settings.getMatrix()));
+        logic.Matrix matrix = settings.getMatrix();
+        runInDrawingThread(() -> matrixChangeListeners.forEach(listener -> listener.matrixChanged(matrix)));
     }
 
     public void addParticleDensityListener(ParticleDensityListener listener) {
@@ -101,7 +170,9 @@ public class Renderer {
     }
 
     private void notifyParticleDensityChangeListeners() {
-        particleDensityListeners.forEach(listener -> listener.onChange(nParticles, particleDensity));
+        int n = nParticles;
+        float density = particleDensity;
+        runInDrawingThread(() -> particleDensityListeners.forEach(listener -> listener.onChange(n, density)));
     }
 
     /**
@@ -128,10 +199,38 @@ public class Renderer {
     }
 
     private void notifyPauseChangeListeners() {
-        pauseListeners.forEach(listener -> listener.pausedChanged(paused));
+        boolean paused = this.paused;
+        runInDrawingThread(() -> pauseListeners.forEach(listener -> listener.pausedChanged(paused)));
+    }
+
+    /**
+     * Runs the task right away, or, if this is called by the simulation thread,
+     * at the next call of {@link #updateCamera()} or {@link #draw(PGraphics)}.
+     * All listeners are called in the drawing thread this way.
+     */
+    private void runInDrawingThread(Runnable task) {
+        if (Thread.currentThread() == simulationThread) {
+            drawingThreadTasks.add(task);
+        } else {
+            task.run();
+        }
+    }
+
+    private void runDrawingThreadTasks() {
+        Runnable task;
+        while ((task = drawingThreadTasks.poll()) != null) {
+            task.run();
+        }
     }
 
     public Renderer(float width, float height) {
+        this(width, height, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism how many threads are used for updating the physics.
+     */
+    public Renderer(float width, float height, int parallelism) {
 
         this.windowWidth = width;
         this.windowHeight = height;
@@ -142,8 +241,9 @@ public class Renderer {
         settings.setMatrix(new Matrix(6));
         makeMatrix();
 
-        this.updater = new MultithreadedUpdater();
-        this.updaterLogic = new DefaultUpdaterLogic();
+        this.forkJoinPool = new ForkJoinPool(parallelism);
+        this.updater = new MultithreadedUpdater(forkJoinPool, profiler);
+        this.updaterLogic = UpdaterLogic.create(false);
         settings.setRange(width, height);
         makeMatrix();
         resetUpdaterSettings();
@@ -151,6 +251,7 @@ public class Renderer {
         nParticles = calcParticleCount();
 
         spawnParticles();
+        publishSnapshot();
 
         notifyMatrixChangeListeners();
     }
@@ -159,17 +260,13 @@ public class Renderer {
      * @return a data object containing a copy of all information about the particles.
      */
     public Particles getParticles() {
+        synchronized (stepLock) {
+            return copyParticles();
+        }
+    }
 
-        int[] types = updater.getTypes();
-        float[] positions = updater.getPositions();
-        float[] velocities = updater.getVelocities();
-
-        return new Particles(
-                settings.getMatrix().size(),
-                Arrays.copyOf(types, types.length),
-                Arrays.copyOf(positions, positions.length),
-                Arrays.copyOf(velocities, velocities.length)
-        );
+    private Particles copyParticles() {
+        return Updaters.copyParticles(updater, settings.getMatrix().size());
     }
 
     public Settings getSettings() {
@@ -306,6 +403,59 @@ public class Renderer {
         if (settingsJFrame != null) {
             settingsJFrame.dispose();
         }
+        stopSimulationThread();
+        forkJoinPool.shutdown();
+    }
+
+    /**
+     * Starts a thread that handles the requests and updates the physics in a loop, as fast as it can.
+     * From then on, the drawing thread should only call {@link #updateCamera()} and {@link #draw(PGraphics)},
+     * which draw the latest snapshot of the particles without waiting for the physics.
+     */
+    public void startSimulationThread() {
+        if (simulationThread != null) {
+            return;
+        }
+        simulationRunning = true;
+        simulationThread = new Thread(this::runSimulation, "simulation");
+        simulationThread.setDaemon(true);
+        simulationThread.start();
+    }
+
+    /**
+     * Stops the simulation thread after its current step and waits for it.
+     */
+    public void stopSimulationThread() {
+        if (simulationThread == null) {
+            return;
+        }
+        simulationRunning = false;
+        try {
+            simulationThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        simulationThread = null;
+    }
+
+    public boolean isSimulationThreadRunning() {
+        return simulationThread != null;
+    }
+
+    private void runSimulation() {
+        while (simulationRunning) {
+
+            handleRequests();
+            update();
+
+            if (paused && !mousePressed) {
+                // nothing moves, so there is no need to step as fast as possible
+                LockSupport.parkNanos(PAUSED_SLEEP_NANOS);
+            } else if (!paused && lastSubstepCount == 0) {
+                // wait until the next step is due
+                LockSupport.parkNanos((long) ((getStepMillis() - timeAccumulatorMillis) * 1e6));
+            }
+        }
     }
 
     private void initAttractionSetters() {
@@ -435,87 +585,54 @@ public class Renderer {
 
     private void spawnParticles() {
 
-        int[] types = new int[nParticles];
-        float[] positions = new float[nParticles * 2];
-        float[] velocities = new float[nParticles * 2];
+        Particles p = Spawner.spawn(nParticles, settings.getMatrix().size(), spawnMode,
+                settings.getRangeX(), settings.getRangeY(), random);
 
-        float rangeX = settings.getRangeX();
-        float rangeY = settings.getRangeY();
-
-        int nTypes = settings.getMatrix().size();
+        updater.setTypes(p.types);
+        updater.setPositions(p.positions);
+        updater.setVelocities(p.velocities);
+    }
 
-        int typeIndex = 0;
-        int positionIndex = 0;
+    /**
+     * Copies the types and positions into the back snapshot, in the order of the stable ids, and publishes it.
+     * Must only be called by one thread at a time (the simulation thread, if it is running).
+     */
+    private void publishSnapshot() {
 
-        while (positionIndex < positions.length) {
+        int n = updater.getTypes().length;
 
-            float randomX;
-            float randomY;
+        SnapshotBuffer.Snapshot snapshot = snapshots.getBack();
 
-            final float radius = Math.min(rangeX, rangeY) / 4;
-            switch (spawnMode) {
+        // create buffers if necessary
+        if (snapshot.types.length != n) {
+            snapshot.types = new int[n];
+            snapshot.positions = new float[n * 2];
+        }
 
-                default -> {  // uniform
-                    randomX = rangeX * (float) Math.random();
-                    randomY = rangeY * (float) Math.random();
-                }
-                case 1 -> {  // centered uniform
-                    double angle = 2 * Math.PI * Math.random();
-                    float r = radius * (float) random.nextGaussian();
-                    randomX = rangeX / 2 + r * (float) Math.cos(angle);
-                    randomY = rangeY / 2 + r * (float) Math.sin(angle);
-                }
-                case 2 -> {  // sphere
-                    double angle = 2 * Math.PI * Math.random();
-                    float r = radius * (float) Math.sqrt(Math.random());
-                    randomX = rangeX / 2 + r * (float) Math.cos(angle);
-                    randomY = rangeY / 2 + r * (float) Math.sin(angle);
-                }
-                case 3 -> {  // centered sphere
-                    double angle = 2 * Math.PI * Math.random();
-                    float r = radius * (float) Math.random();
-                    randomX = rangeX / 2 + r * (float) Math.cos(angle);
-                    randomY = rangeY / 2 + r * (float) Math.sin(angle);
-                }
-                case 4 -> {  // circle
-                    double angle = 2 * Math.PI * Math.random();
-                    float r = radius * (1 + 0.05f * (float) (1 - 2 * Math.random()));
-                    randomX = rangeX / 2 + r * (float) Math.cos(angle);
-                    randomY = rangeY / 2 + r * (float) Math.sin(angle);
-                }
-                case 5 -> {  // spiral
-                    double f = Math.random();
-                    double angle = 2 * Math.PI * f;
-                    float r = radius * (float) Math.sqrt(f) + radius * 0.1f * (float) Math.random();
-                    randomX = rangeX / 2 + r * (float) Math.cos(angle);
-                    randomY = rangeY / 2 + r * (float) Math.sin(angle);
-                }
-                case 6 -> {  // line
-                    randomX = rangeX * (float) Math.random();
-                    randomY = rangeY / 2 * (1 + 0.05f * (float) (1 - 2 * Math.random()));
-                }
-                case 7 -> {  // two spheres
-                    double angle = 2 * Math.PI * Math.random();
-                    float r = 1 / (float) Math.sqrt(2) * radius * (float) Math.sqrt(Math.random());
-                    float cx = rangeX * (random.nextBoolean() ? 0.25f : 0.75f);
-                    randomX = cx + r * (float) Math.cos(angle);
-                    randomY = rangeY / 2 + r * (float) Math.sin(angle);
-                }
-            }
+        updater.copySnapshot(snapshot.types, snapshot.positions);
+        snapshot.nTypes = settings.getMatrix().size();
 
-            types[typeIndex] = random.nextInt(nTypes);
-            positions[positionIndex] = randomX;
-            positions[positionIndex + 1] = randomY;
-            velocities[positionIndex] = 0;
-            velocities[positionIndex + 1] = 0;
+        snapshots.publish();
+    }
 
-            typeIndex += 1;
-            positionIndex += 2;
+    /**
+     * @return the latest published snapshot. Must only be called by the drawing thread.
+     */
+    private SnapshotBuffer.Snapshot acquireSnapshot() {
+        SnapshotBuffer.Snapshot snapshot = snapshots.acquire();
+        if (snapshot.step != drawnStep) {
+            drawnStep = snapshot.step;
+            snapshotQuery.invalidate();
         }
+        return snapshot;
+    }
 
-        updater.setTypes(types);
-        updater.setPositions(positions);
-        updater.setVelocities(velocities);
+    /**
+     * @return the spatial query, up-to-date with the latest snapshot. Must only be called by the drawing thread.
+     */
+    private SpatialQuery getSnapshotQuery() {
+        snapshotQuery.update(acquireSnapshot().positions, settings);
+        return snapshotQuery;
     }
 
     public void mouseScrolled(float pixels) {
@@ -553,22 +670,39 @@ public class Renderer {
         if (camera.isFollowing()) {
             camera.stopFollow();
         } else {
-            camera.startFollow(updater, mouseX, mouseY, particleDragSelectionRadius, settings.isWrap());
+            camera.startFollow(getSnapshotQuery(), mouseX, mouseY, particleDragSelectionRadius);
         }
     }
 
     /**
      * Handles all requests in the order they were added via {@link #request(Request)}.<br>
-     * This method should be called in the same thread as the methods {@link #update()} and {@link #draw(PGraphics)}.
+     * This method should be called in the same thread as the method {@link #update()}
+     * (which is the simulation thread, if it is running).
      */
     public void handleRequests() {
-        while (!requests.isEmpty()) {
-            handleRequest(requests.remove());
+        synchronized (stepLock) {
+            if (requests.isEmpty()) {
+                return;
+            }
+            long start = System.nanoTime();
+            Request r;
+            while ((r = requests.poll()) != null) {
+                handleRequest(r);
+                spatialQuery.invalidate();  // the request could have modified the particles
+            }
+            publishSnapshot();
+            profiler.record(StepProfiler.Phase.REQUESTS, start);
         }
     }
 
+    /**
+     * Moves the camera. This method should be called in the same thread as {@link #draw(PGraphics)}.
+     */
     public void updateCamera() {
-        camera.update(updater, (float) (getFrameTime() / 1000));
+        long start = System.nanoTime();
+        runDrawingThreadTasks();
+        camera.update(acquireSnapshot().positions, (float) (getFrameTime() / 1000));
+        cameraNanos = profiler.record(StepProfiler.Phase.CAMERA, start) - start;
     }
 
     private void handleRequest(Request r) {
@@ -603,6 +737,7 @@ public class Renderer {
                     new RequestHeat(s.getHeat()),
                     new RequestRMin(s.getRMin()),
                     new RequestRMax(s.getRMax()),
+                    new RequestSeed(s.getSeed(), s.getStep()),
             }) handleRequest(req);
 
         } else if (r instanceof RequestRendererSettings) {
@@ -652,18 +787,21 @@ public class Renderer {
         } else if (r instanceof RequestRespawn) {
 
             spawnParticles();
-            camera.stopFollow();
+            runInDrawingThread(camera::stopFollow);
 
         } else if (r instanceof RequestRandomTypes) {
 
-            int[] types = updater.getTypes();
+            // in the order of the ids, which setTypes makes the new ids
+            Particles p = copyParticles();
 
             int nTypes = settings.getMatrix().size();
-            for (int i = 0; i < types.length; i++) {
-                types[i] = random.nextInt(nTypes);
+            for (int i = 0; i < p.types.length; i++) {
+                p.types[i] = random.nextInt(nTypes);
             }
 
-            updater.setTypes(types);
+            updater.setTypes(p.types);
+            updater.setPositions(p.positions);
+            updater.setVelocities(p.velocities);
 
         } else if (r instanceof RequestHeat) {
 
@@ -673,14 +811,23 @@ public class Renderer {
 
             getSettings().setWrap(((RequestWrap) r).wrap);
 
+        } else if (r instanceof RequestSeed) {
+
+            RequestSeed req = (RequestSeed) r;
+            settings.setSeed(req.seed);
+            settings.setStep(req.step);
+            random = new SplittableRandom(req.seed);
+
         } else if (r instanceof RequestParticleDensity) {
 
             float requestedParticleDensity = ((RequestParticleDensity) r).density;
             if (requestedParticleDensity != particleDensity) {
 
-                int[] types = updater.getTypes();
-                float[] positions = updater.getPositions();
-                float[] velocities = updater.getVelocities();
+                // in the order of the ids, which setTypes makes the new ids
+                Particles p = copyParticles();
+                int[] types = p.types;
+                float[] positions = p.positions;
+                float[] velocities = p.velocities;
 
                 particleDensity = requestedParticleDensity;
                 nParticles = calcParticleCount();
@@ -752,11 +899,13 @@ public class Renderer {
         } else if (r instanceof RequestScreenshot) {
 
             PGraphics context = ((RequestScreenshot) r).context;
-            context.beginDraw();
-            context.background(0, 0, 0);
-            drawParticles(context);
-            context.endDraw();
-            notifyScreenshotListeners(context.copy());
+            runInDrawingThread(() -> {
+                context.beginDraw();
+                context.background(0, 0, 0);
+                drawParticles(context);
+                context.endDraw();
+                notifyScreenshotListeners(context.copy());
+            });
 
         } else if (r instanceof RequestMatrixSize) {
 
@@ -791,10 +940,12 @@ public class Renderer {
                 ));
 
                 // remove all particles of the given type and decrease type of all larger types
+                // (in the order of the ids, which setTypes makes the new ids)
 
-                int[] types = updater.getTypes();
-                float[] positions = updater.getPositions();
-                float[] velocities = updater.getVelocities();
+                Particles p = copyParticles();
+                int[] types = p.types;
+                float[] positions = p.positions;
+                float[] velocities = p.velocities;
 
                 if (req.keepParticleCount) {
 
@@ -888,9 +1039,11 @@ public class Renderer {
                 nParticles += nParticles / getSettings().getMatrix().size();
                 particleDensity = calcParticleDensity();
 
-                int[] types = Arrays.copyOf(updater.getTypes(), nParticles);
-                float[] positions = Arrays.copyOf(updater.getPositions(), nParticles * 2);
-                float[] velocities = Arrays.copyOf(updater.getVelocities(), nParticles * 2);
+                // in the order of the ids, which setTypes makes the new ids
+                Particles p = copyParticles();
+                int[] types = Arrays.copyOf(p.types, nParticles);
+                float[] positions = Arrays.copyOf(p.positions, nParticles * 2);
+                float[] velocities = Arrays.copyOf(p.velocities, nParticles * 2);
 
                 final float rangeX = settings.getRangeX();
                 final float rangeY = settings.getRangeY();
@@ -918,171 +1071,218 @@ public class Renderer {
             useFixedTimeStep = ((RequestDtEnabled) r).dtEnabled;
         } else if (r instanceof RequestDt) {
             fixedTimeStepValueMillis = ((RequestDt) r).dt;
+        } else if (r instanceof RequestAdaptiveDt) {
+            useAdaptiveTimeStep = ((RequestAdaptiveDt) r).adaptive;
+        } else if (r instanceof RequestPhysicsTimeBudget) {
+            physicsTimeBudgetMillis = ((RequestPhysicsTimeBudget) r).millis;
         } else if (r instanceof RequestForce) {
             settings.setForceFactor(((RequestForce) r).force);
         } else if (r instanceof RequestRMin) {
             settings.setRMin(((RequestRMin) r).rMin);
         } else if (r instanceof RequestRMax) {
             settings.setRMax(((RequestRMax) r).rMax);
+        } else if (r instanceof RequestForceProfiles) {
+            settings.setForceProfiles(((RequestForceProfiles) r).forceProfiles);
+        } else if (r instanceof RequestVectorizedKernel) {
+            updaterLogic = UpdaterLogic.create(((RequestVectorizedKernel) r).vectorized);
+        } else if (r instanceof RequestUpdater) {
+            setUpdater(((RequestUpdater) r).updater);
         } else if (r instanceof RequestPause) {
             paused = ((RequestPause) r).pause;
             notifyPauseChangeListeners();
         } else if (r instanceof RequestParticleSize) {
             particleSize = ((RequestParticleSize) r).particleSize;
         } else if (r instanceof RequestCameraFollowZoomFactor) {
-            camera.setFollowZoomFactor(((RequestCameraFollowZoomFactor) r).followZoomFactor);
+            float followZoomFactor = ((RequestCameraFollowZoomFactor) r).followZoomFactor;
+            runInDrawingThread(() -> camera.setFollowZoomFactor(followZoomFactor));
         }
     }
 
+    /**
+     * Switches to another updater and moves the particles over.
+     * @param index see {@link RequestUpdater#updater}.
+     */
+    private void setUpdater(int index) {
+
+        if (index == updaterIndex) {
+            return;
+        }
+
+        // in the order of the stable ids, so that the new updater's indices match the old ids
+        Particles p = copyParticles();
+        Updater oldUpdater = updater;
+
+        updaterIndex = Updaters.resolve(index);
+        profiler = new StepProfiler();
+        updater = Updaters.create(updaterIndex, forkJoinPool, profiler);
+
+        // free the native memory of the old updater
+        Updaters.close(oldUpdater);
+
+        updater.setTypes(p.types);
+        updater.setPositions(p.positions);
+        updater.setVelocities(p.velocities);
+    }
+
     /**
      * Update "physics", i.e. the velocities and positions of the particles.
      * If the usage of a fixed time step is disabled
      * (i.e {@link #isFixedTimeStepEnabled()} is false - which is the default case),
-     * the time step is calculated as an average of the time passing
-     * between two calls of the {@link #draw(PGraphics)} method.
+     * one step is made, and the time step is calculated as an average of the time passing
+     * between two calls of this method.
      * You can request to enable the usage of a fixed time step via {@link RequestDtEnabled}.
      * The value of the fixed time step can be requested via {@link RequestDt}.
      * This will set the dt-value in the {@link Settings} (retrieved via {@link #getSettings()}).
+     * <p>
+     * With a fixed time step, the time passing between two calls of this method is accumulated,
+     * and as many steps are made as fit into the accumulated time (possibly none).
+     * If the steps take longer than the time budget (see {@link RequestPhysicsTimeBudget}),
+     * the remaining time is dropped, i.e. the physics run slower than real time instead of falling further behind.
+     * <p>
+     * If the adaptive time step is enabled via {@link RequestAdaptiveDt}, the steps are made like with a fixed time step,
+     * but each step takes the largest time step that is safe according to the speed of the fastest particle
+     * (see {@link AdaptiveTimeStep}).
+     * <p>
+     * Afterwards, a snapshot of the particles is published for {@link #draw(PGraphics)}.
+     * If the simulation thread is running (see {@link #startSimulationThread()}), it calls this method.
      * @see #request(Request)
      */
     public void update() {
-
-        physicsClock.in();
-
-        if (!paused) {
-            if (useFixedTimeStep) {
-                settings.setDt(fixedTimeStepValueMillis / 1000f);
+        synchronized (stepLock) {
+
+            stepClock.out();
+            stepClock.in();
+
+            physicsClock.in();
+
+            long now = System.nanoTime();
+            float elapsedMillis = lastUpdateNanos == -1 ? 0 : (now - lastUpdateNanos) / 1e6f;
+            lastUpdateNanos = now;
+
+            if (paused) {
+                applyDrag();
+                timeAccumulatorMillis = 0;
+                lastSubstepCount = 0;
+            } else if (useFixedTimeStep || useAdaptiveTimeStep) {
+                timeAccumulatorMillis += elapsedMillis;
+                lastSubstepCount = 0;
+                long deadline = now + (long) (physicsTimeBudgetMillis * 1e6);
+                while (timeAccumulatorMillis >= getStepMillis()) {
+                    float stepMillis = getStepMillis();
+                    settings.setDt(stepMillis / 1000f);
+                    step(lastSubstepCount == 0);
+                    if (useAdaptiveTimeStep) {
+                        adaptiveTimeStep.update(updater.getMaxSpeed(), settings);
+                    }
+                    timeAccumulatorMillis -= stepMillis;
+                    lastSubstepCount++;
+                    if (System.nanoTime() - deadline > 0) {
+                        // out of time: drop the rest, so that the backlog doesn't grow
+                        timeAccumulatorMillis = 0;
+                        break;
+                    }
+                }
             } else {
-                settings.setDt((float) (getFrameTime() / 1000));
+                settings.setDt((float) (stepClock.getTime() / 1000));
+                step(true);
+                lastSubstepCount = 1;
             }
-            updater.updateVelocities(settings, this.updaterLogic);
-        }
 
-        applyDrag();
+            if (paused || lastSubstepCount > 0) {
+                publishSnapshot();
+            }
 
-        if (!paused) {
-            updater.updatePositions(settings, this.updaterLogic);
+            physicsClock.out();
         }
-
-        physicsClock.out();
     }
 
-    private void applyDrag() {
-        if (mousePressed) {
-            // drag all particles in a specific radius
-
-            float[] positions = updater.getPositions();
-            float[] velocities = updater.getVelocities();
-
-            float dragX = mouseX - lastMouseX;
-            float dragY = mouseY - lastMouseY;
-
-            for (int index : updater.getRelevant(lastMouseX, lastMouseY, particleDragSelectionRadius, settings.isWrap())) {
+    /**
+     * @return the time step of the next step with a fixed or adaptive time step, in ms.
+     */
+    private float getStepMillis() {
+        return useAdaptiveTimeStep ? adaptiveTimeStep.getDt() * 1000 : fixedTimeStepValueMillis;
+    }
 
-                int positionIndex = index * 2;
+    /**
+     * Makes one step with the dt in the settings.
+     * @param drag whether the particles near the mouse should be dragged in this step.
+     *             The mouse movement is only applied once, so that it doesn't depend on the number of steps.
+     */
+    private void step(boolean drag) {
 
-                float x = positions[positionIndex];
-                float y = positions[positionIndex + 1];
+        updater.updateVelocities(settings, this.updaterLogic);
 
-                if (settings.isWrap()) {
+        if (drag) {
+            applyDrag();
+        }
 
-                    if (x > lastMouseX) {
-                        float wrappedX2 = x - settings.getRangeX();
-                        if (lastMouseX - wrappedX2 < x - lastMouseX) {
-                            x = wrappedX2;
-                        }
-                    } else {
-                        float wrappedX2 = x + settings.getRangeX();
-                        if (wrappedX2 - lastMouseX < lastMouseX - x) {
-                            x = wrappedX2;
-                        }
-                    }
-                    if (y > lastMouseY) {
-                        float wrappedY2 = y - settings.getRangeY();
-                        if (lastMouseY - wrappedY2 < y - lastMouseY) {
-                            y = wrappedY2;
-                        }
-                    } else {
-                        float wrappedY2 = y + settings.getRangeY();
-                        if (wrappedY2 - lastMouseY < lastMouseY - y) {
-                            y = wrappedY2;
-                        }
-                    }
-                }
+        updater.updatePositions(settings, this.updaterLogic);
+        spatialQuery.invalidate();
 
-                float dx = x - lastMouseX;
-                float dy = y - lastMouseY;
+        settings.setStep(settings.getStep() + 1);
+    }
 
-                if (dx * dx + dy * dy < particleDragSelectionRadius * particleDragSelectionRadius) {
+    private void applyDrag() {
+        if (mousePressed) {
+            // drag all particles in a specific radius
 
-                    velocities[positionIndex] = 0;
-                    velocities[positionIndex + 1] = 0;
+            dragPositions = updater.getPositions();
+            dragVelocities = updater.getVelocities();
+            dragX = mouseX - lastMouseX;
+            dragY = mouseY - lastMouseY;
 
-                    x += dragX;
-                    y += dragY;
+            getSpatialQuery().forEachInCircle(lastMouseX, lastMouseY, particleDragSelectionRadius, dragVisitor);
 
-                    positions[positionIndex] = x;
-                    positions[positionIndex + 1] = y;
-                }
-            }
+            // let the updater know that the particles were moved
+            updater.setPositions(dragPositions);
+            updater.setVelocities(dragVelocities);
+            spatialQuery.invalidate();
         }
 
         lastMouseX = mouseX;
         lastMouseY = mouseY;
     }
 
-    private int countParticlesInCircle(float cx, float cy, float radius) {
-
-        float[] positions = updater.getPositions();
-
-        int count = 0;
-
-        for (int index : updater.getRelevant(cx, cy, radius, settings.isWrap())) {
+    /**
+     * Moves a particle by (dragX, dragY), starting at its nearest image to the last mouse position.
+     */
+    private void dragParticle(int index, float dx, float dy) {
 
-            int positionIndex = index * 2;
+        int positionIndex = index * 2;
 
-            float x = positions[positionIndex];
-            float y = positions[positionIndex + 1];
+        dragVelocities[positionIndex] = 0;
+        dragVelocities[positionIndex + 1] = 0;
 
-            if (settings.isWrap()) {
-
-                if (x > cx) {
-                    float wrappedX2 = x - settings.getRangeX();
-                    if (cx - wrappedX2 < x - cx) {
-                        x = wrappedX2;
-                    }
-                } else {
-                    float wrappedX2 = x + settings.getRangeX();
-                    if (wrappedX2 - cx < cx - x) {
-                        x = wrappedX2;
-                    }
-                }
-                if (y > cy) {
-                    float wrappedY2 = y - settings.getRangeY();
-                    if (cy - wrappedY2 < y - cy) {
-                        y = wrappedY2;
-                    }
-                } else {
-                    float wrappedY2 = y + settings.getRangeY();
-                    if (wrappedY2 - cy < cy - y) {
-                        y = wrappedY2;
-                    }
-                }
-            }
+        dragPositions[positionIndex] = lastMouseX + dx + dragX;
+        dragPositions[positionIndex + 1] = lastMouseY + dy + dragY;
+    }
 
-            float dx = x - cx;
-            float dy = y - cy;
+    private void countParticle(int index, float dx, float dy) {
+        particleCount++;
+    }
 
-            if (dx * dx + dy * dy < radius * radius) {
-                count++;
-            }
-        }
+    private int countParticlesInCircle(float cx, float cy, float radius) {
+        particleCount = 0;
+        getSnapshotQuery().forEachInCircle(cx, cy, radius, countVisitor);
+        return particleCount;
+    }
 
-        return count;
+    /**
+     * @return the spatial query, up-to-date with the current positions of the updater.
+     */
+    private SpatialQuery getSpatialQuery() {
+        spatialQuery.update(updater.getPositions(), settings);
+        return spatialQuery;
     }
 
+    /**
+     * Draws the latest snapshot of the particles. This never waits for the physics,
+     * if the simulation thread is running.
+     */
     public void draw(PGraphics context) {
 
+        runDrawingThreadTasks();
+
         renderingClock.in();
 
         context.pushStyle();
@@ -1092,7 +1292,9 @@ public class Renderer {
 
         context.ellipseMode(context.RADIUS);
 
+        long start = System.nanoTime();
         drawParticles(context);
+        particlesNanos = profiler.record(StepProfiler.Phase.PARTICLES, start) - start;
 
         // draw cursor
         if (!camera.isFollowing() && Math.abs(camera.getScale() - 1) < 0.1f) {
@@ -1129,10 +1331,11 @@ public class Renderer {
         context.pushStyle();
         context.noStroke();
 
-        lazyCalcTypeColors(context);
+        SnapshotBuffer.Snapshot snapshot = acquireSnapshot();
+        int[] types = snapshot.types;
+        float[] positions = snapshot.positions;
 
-        int[] types = updater.getTypes();
-        float[] positions = updater.getPositions();
+        lazyCalcTypeColors(context, snapshot.nTypes);
 
         int typeIndex = 0;
         int positionIndex = 0;
@@ -1154,20 +1357,19 @@ public class Renderer {
     }
 
     /**
-     * Calculate the type colors if the matrix size changed since last calculation, and store them.
+     * Calculate the type colors if the number of types changed since last calculation, and store them.
      * Otherwise, do nothing (keep the previously calculated colors).
      */
-    private void lazyCalcTypeColors(PGraphics context) {
-        if (typeColors.length != settings.getMatrix().size()) {
-            calcTypeColors(context);
+    private void lazyCalcTypeColors(PGraphics context, int nTypes) {
+        if (typeColors.length != nTypes) {
+            calcTypeColors(context, nTypes);
         }
     }
 
     /**
      * Calculate the color for each type and store them.
      */
-    private void calcTypeColors(PGraphics context) {
-        int nTypes = settings.getMatrix().size();
+    private void calcTypeColors(PGraphics context, int nTypes) {
         typeColors = new int[nTypes];
         ColorMaker colorMaker = getColorMaker(context);
         for (int i = 0; i < nTypes; i++) {
@@ -1208,6 +1410,45 @@ public class Renderer {
         return fixedTimeStepValueMillis;
     }
 
+    /**
+     * @see RequestAdaptiveDt
+     */
+    public boolean isAdaptiveTimeStepEnabled() {
+        return useAdaptiveTimeStep;
+    }
+
+    /**
+     * @see RequestPhysicsTimeBudget
+     */
+    public float getPhysicsTimeBudgetMillis() {
+        return physicsTimeBudgetMillis;
+    }
+
+    /**
+     * @return how many steps the last call of {@link #update()} made.
+     * With a fixed time step, this can be more or less than one.
+     */
+    public int getLastSubstepCount() {
+        return lastSubstepCount;
+    }
+
+    /**
+     * @return whether the SIMD kernel is used.
+     * This can be false even after it was requested via {@link RequestVectorizedKernel},
+     * if the JVM doesn't provide the Vector API.
+     */
+    public boolean isVectorizedKernelEnabled() {
+        return updaterLogic instanceof logic.VectorUpdaterLogic;
+    }
+
+    /**
+     * @return which updater is used.
+     * @see RequestUpdater
+     */
+    public int getUpdaterIndex() {
+        return updaterIndex;
+    }
+
     public boolean isPaused() {
         return paused;
     }
@@ -1221,11 +1462,30 @@ public class Renderer {
 
     /**
      * @return the average time in ms needed for executing the update() method.
+     * If the simulation thread is running, this can be more or less than the time between two frames.
      */
     public double getAvgPhysicsCalcTime() {
         return physicsClock.getTime();
     }
 
+    /**
+     * Records how long the whole window took to render a frame, including {@link #updateCamera()} and {@link #draw(PGraphics)}.
+     * The rest of the frame is counted as the time of the GUI.
+     * This method should be called in the same thread as {@link #draw(PGraphics)}, after each frame.
+     */
+    public void recordFrameTime(long nanos) {
+        profiler.recordNanos(StepProfiler.Phase.GUI, nanos - cameraNanos - particlesNanos);
+    }
+
+    /**
+     * @return the p50, p99 and maximum duration of each phase of the steps and of the frames,
+     *         and the busy and idle time of the threads, as lines of text (see {@link StepProfiler#getReport()}).
+     *         The timings start over when the updater changes.
+     */
+    public String getTimingReport() {
+        return profiler.getReport();
+    }
+
     /**
      * @return the average time in ms passing between two draw() calls.
      */
@@ -1249,7 +1509,6 @@ public class Renderer {
      */
     public int getColor(int type, PGraphics context) {
         if (type >= 0 && type < settings.getMatrix().size()) {
-            lazyCalcTypeColors(context);
             return getColorMaker(context).getColor(type / (float) settings.getMatrix().size());
         } else {
             return 0;
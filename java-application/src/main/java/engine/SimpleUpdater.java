@@ -4,7 +4,6 @@ import logic.Settings;
 import logic.Updater;
 import logic.UpdaterLogic;
 
-import java.util.ArrayList;
 
 class SimpleUpdater implements Updater {
 
@@ -45,6 +44,9 @@ class SimpleUpdater implements Updater {
     private float[] positionsBuffer;
     private float[] velocitiesBuffer;
 
+    private int[] allIndices;
+    private final int[] allRange = new int[2];
+
     @Override
     public void updateVelocities(Settings s, UpdaterLogic updaterLogic) {
 
@@ -53,22 +55,22 @@ class SimpleUpdater implements Updater {
             velocitiesBuffer = new float[velocities.length];
         }
 
-        int typeIndex = 0;
-        int positionIndex = 0;
-
-        while (positionIndex < positions.length) {
-
-            float[] velocity = updaterLogic.updateVelocity(
-                    s, positions, types, typeIndex, velocities[positionIndex], velocities[positionIndex + 1]
-            );
-
-            velocitiesBuffer[positionIndex] = velocity[0];
-            velocitiesBuffer[positionIndex + 1] = velocity[1];
-
-            typeIndex += 1;
-            positionIndex += 2;
+        // every particle regards every other particle
+        if (allIndices == null || allIndices.length != types.length) {
+            allIndices = new int[types.length];
+            for (int i = 0; i < allIndices.length; i++) {
+                allIndices[i] = i;
+            }
+            allRange[1] = allIndices.length;
         }
 
+        updaterLogic.updateVelocities(
+                s, types, positions, velocities,
+                allIndices, 0, allIndices.length,
+                allRange, 1,
+                velocitiesBuffer
+        );
+
         // swap buffer
         float[] h = velocities;
         velocities = velocitiesBuffer;
@@ -83,51 +85,11 @@ class SimpleUpdater implements Updater {
             positionsBuffer = new float[positions.length];
         }
 
-        int positionIndex = 0;
-
-        while (positionIndex < positions.length) {
-
-            float[] position = updaterLogic.updatePosition(
-                    s,
-                    positions[positionIndex], positions[positionIndex + 1],
-                    velocities[positionIndex], velocities[positionIndex + 1]
-            );
-
-            positionsBuffer[positionIndex] = position[0];
-            positionsBuffer[positionIndex + 1] = position[1];
-
-            positionIndex += 2;
-        }
+        updaterLogic.updatePositions(s, positions, velocities, 0, types.length, positionsBuffer);
 
         // swap buffer
         float[] h = positions;
         positions = positionsBuffer;
         positionsBuffer = h;
     }
-
-    @Override
-    public int[] getRelevant(float x, float y, float radius, boolean wrap) {
-        ArrayList<Integer> indices = new ArrayList<>();
-
-        int typeIndex = 0;
-        int positionsIndex = 0;
-
-        while (positionsIndex < positions.length) {
-
-            indices.add(typeIndex);
-
-            typeIndex += 1;
-            positionsIndex += 2;
-        }
-
-        // make array
-        int n = indices.size();
-        int[] arr = new int[n];
-        int i = 0;
-        for (int integer : indices) {
-            arr[i] = integer;
-            i++;
-        }
-        return arr;
-    }
 }
@@ -0,0 +1,88 @@
+package engine;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Passes snapshots of the particles from the simulation thread (the writer) to the drawing thread (the reader)
+ * without locks, as a triple buffer:
+ * the writer fills the back snapshot and publishes it, the reader takes the latest published snapshot.
+ * Neither of them ever waits for the other.
+ * <p>
+ * There are three snapshots: one that belongs to the writer, one that belongs to the reader,
+ * and one in between that is exchanged atomically. A published snapshot isn't changed until the reader
+ * has taken a newer one, so it can be read as if it was immutable.
+ * If the writer publishes more often than the reader takes snapshots, the snapshots in between are skipped.
+ * <p>
+ * There must be only one reader thread, and only one writer at a time
+ * (different threads may write one after another, if they synchronize with each other).
+ */
+final class SnapshotBuffer {
+
+    /**
+     * The types and positions of the particles, in the order of their stable ids (see {@link logic.Updater#getIndex(int)}).
+     */
+    static final class Snapshot {
+
+        int[] types = new int[0];
+
+        /**
+         * Interleaved x and y.
+         */
+        float[] positions = new float[0];
+
+        /**
+         * The size of the matrix when the snapshot was taken, i.e. all types are below this value.
+         */
+        int nTypes = 0;
+
+        /**
+         * Counts the published snapshots.
+         */
+        long step = 0;
+
+        int size() {
+            return types.length;
+        }
+    }
+
+    /**
+     * Set in {@link #exchange} if the snapshot there was published, but not taken yet.
+     */
+    private static final int FRESH = 4;
+
+    private final Snapshot[] snapshots = {new Snapshot(), new Snapshot(), new Snapshot()};
+
+    /**
+     * Index of the snapshot in between, and possibly {@link #FRESH}.
+     */
+    private final AtomicInteger exchange = new AtomicInteger(0);
+
+    private int back = 1;  // only used by the writer
+    private int front = 2;  // only used by the reader
+    private long step = 0;  // only used by the writer
+
+    /**
+     * @return the snapshot that the writer can fill. It is only visible to the reader after {@link #publish()}.
+     */
+    Snapshot getBack() {
+        return snapshots[back];
+    }
+
+    /**
+     * Makes the back snapshot the latest snapshot. The writer gets another snapshot to fill.
+     */
+    void publish() {
+        snapshots[back].step = ++step;
+        back = exchange.getAndSet(back | FRESH) & ~FRESH;
+    }
+
+    /**
+     * @return the latest published snapshot. It stays valid until the next call of this method.
+     */
+    Snapshot acquire() {
+        if ((exchange.get() & FRESH) != 0) {
+            front = exchange.getAndSet(front) & ~FRESH;
+        }
+        return snapshots[front];
+    }
+}
@@ -0,0 +1,189 @@
+package engine;
+
+import java.util.Arrays;
+
+/**
+ * Optionally keeps the particle arrays of an updater sorted by cell,
+ * so that particles that are close in space are also close in memory.
+ * <p>
+ * Every particle has a stable id that doesn't change when it is moved to another array index.
+ * The ids are the array indices at the time the particles were set via {@link #reset(int)}.
+ */
+final class SpatialOrder {
+
+    enum Mode {
+        /**
+         * Never reorder the particles.
+         */
+        NONE,
+        /**
+         * Sort the particles by cell, with the cells in row-major order.
+         */
+        CELLS,
+        /**
+         * Sort the particles by cell, with the cells along a Morton (Z-order) curve.
+         * This keeps vertically neighboring cells closer in memory than {@link #CELLS}.
+         */
+        MORTON,
+    }
+
+    private Mode mode = Mode.NONE;
+    private int interval = 10;
+    private int stepsSinceSort = 0;
+
+    /**
+     * Id of the particle at each index.
+     */
+    private int[] ids = new int[0];
+    private int[] idsBuffer = new int[0];
+
+    /**
+     * Index of the particle with each id.
+     */
+    private int[] indices = new int[0];
+
+    private int[] mortonCells = new int[0];
+    private int mortonNx;
+    private int mortonNy;
+
+    /**
+     * @param interval every how many steps the particles should be reordered.
+     */
+    void setMode(Mode mode, int interval) {
+        this.mode = mode;
+        this.interval = Math.max(1, interval);
+        stepsSinceSort = 0;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Assigns the ids 0 to n - 1 to the particles in their current order.
+     */
+    void reset(int n) {
+        if (ids.length != n) {
+            ids = new int[n];
+            idsBuffer = new int[n];
+            indices = new int[n];
+        }
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+            indices[i] = i;
+        }
+        stepsSinceSort = 0;
+    }
+
+    int getIndex(int id) {
+        return indices[id];
+    }
+
+    int getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * Must be called once per step.
+     * @return whether the particles should be reordered in this step.
+     */
+    boolean isDue() {
+        if (mode == Mode.NONE) {
+            return false;
+        }
+        stepsSinceSort++;
+        if (stepsSinceSort >= interval) {
+            stepsSinceSort = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the particles to the output arrays in the order of the cells of the given cell list.
+     * The cell list must be up-to-date with the input arrays (and becomes invalid afterwards).
+     */
+    void sort(CellList cellList, int[] types, float[] positions, float[] velocities,
+              int[] typesOut, float[] positionsOut, float[] velocitiesOut) {
+
+        if (mode == Mode.MORTON) {
+            lazyCalcMortonCells(cellList);
+        }
+
+        int[] cellStart = cellList.cellStart;
+        int[] cellParticles = cellList.cellParticles;
+        int nCells = cellList.getCellCount();
+
+        int newIndex = 0;
+        for (int i = 0; i < nCells; i++) {
+
+            int cell = mode == Mode.MORTON ? mortonCells[i] : i;
+
+            int end = cellStart[cell + 1];
+            for (int k = cellStart[cell]; k < end; k++) {
+
+                int index = cellParticles[k];
+
+                typesOut[newIndex] = types[index];
+                positionsOut[newIndex * 2] = positions[index * 2];
+                positionsOut[newIndex * 2 + 1] = positions[index * 2 + 1];
+                velocitiesOut[newIndex * 2] = velocities[index * 2];
+                velocitiesOut[newIndex * 2 + 1] = velocities[index * 2 + 1];
+
+                int id = ids[index];
+                idsBuffer[newIndex] = id;
+                indices[id] = newIndex;
+
+                newIndex++;
+            }
+        }
+
+        // swap buffer
+        int[] h = ids;
+        ids = idsBuffer;
+        idsBuffer = h;
+    }
+
+    /**
+     * Calculate the order of the cells along the Morton curve if the grid size changed since last calculation.
+     */
+    private void lazyCalcMortonCells(CellList cellList) {
+
+        if (mortonNx == cellList.nx && mortonNy == cellList.ny) {
+            return;
+        }
+
+        mortonNx = cellList.nx;
+        mortonNy = cellList.ny;
+
+        long[] keys = new long[mortonNx * mortonNy];
+        for (int cellY = 0; cellY < mortonNy; cellY++) {
+            for (int cellX = 0; cellX < mortonNx; cellX++) {
+                int cell = cellList.getCellIndex(cellX, cellY);
+                keys[cell] = (interleaveBits(cellX) | (interleaveBits(cellY) << 1)) << 32 | cell;
+            }
+        }
+        Arrays.sort(keys);
+
+        mortonCells = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            mortonCells[i] = (int) keys[i];
+        }
+    }
+
+    /**
+     * Spreads the lower 16 bits of the given value to the even bits of the result.
+     */
+    private static long interleaveBits(int value) {
+        long x = value & 0xffff;
+        x = (x | (x << 8)) & 0x00ff00ffL;
+        x = (x | (x << 4)) & 0x0f0f0f0fL;
+        x = (x | (x << 2)) & 0x33333333L;
+        x = (x | (x << 1)) & 0x55555555L;
+        return x;
+    }
+}
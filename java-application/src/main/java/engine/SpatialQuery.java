@@ -0,0 +1,322 @@
+package engine;
+
+import logic.Settings;
+
+/**
+ * Finds the particles in a circle, a rectangle, or closest to a point, using its own uniform grid.
+ * <p>
+ * The grid is only rebuilt (without allocating, unless the number of particles grows)
+ * when {@link #update(float[], Settings)} is called after {@link #invalidate()},
+ * or with other positions or settings than before.
+ * The queries don't allocate either: the results are passed to a {@link Visitor} or written to buffers of the caller.
+ * <p>
+ * If the world wraps, the queries regard the nearest image of every particle.
+ */
+final class SpatialQuery {
+
+    /**
+     * Receives the particles found by a query.
+     */
+    interface Visitor {
+        /**
+         * @param index the array index of the particle.
+         * @param dx    x-offset of the particle (of its nearest image, if the world wraps) from the query origin.
+         * @param dy    y-offset of the particle (of its nearest image, if the world wraps) from the query origin.
+         */
+        void visit(int index, float dx, float dy);
+    }
+
+    /**
+     * The grid is chosen so that a cell contains about this many particles on average.
+     */
+    private static final float PARTICLES_PER_CELL = 4;
+
+    private final CellList cellList = new CellList();
+
+    private float[] positions;
+    private float rangeX;
+    private float rangeY;
+    private boolean wrap;
+    private boolean valid = false;
+
+    /**
+     * The cells that are searched by the current query, see {@link #setCellBounds}.
+     */
+    private int minCellX;
+    private int maxCellX;
+    private int minCellY;
+    private int maxCellY;
+
+    /**
+     * Must be called after the positions were modified in place.
+     */
+    void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Rebuilds the grid if necessary. Must be called before querying.
+     */
+    void update(float[] positions, Settings settings) {
+
+        if (valid && positions == this.positions
+                && rangeX == settings.getRangeX() && rangeY == settings.getRangeY() && wrap == settings.isWrap()) {
+            return;
+        }
+
+        this.positions = positions;
+        rangeX = settings.getRangeX();
+        rangeY = settings.getRangeY();
+        wrap = settings.isWrap();
+
+        int n = positions.length / 2;
+        float cellSize = (float) Math.sqrt(rangeX * rangeY * PARTICLES_PER_CELL / Math.max(1, n));
+        cellList.resize(rangeX, rangeY, cellSize, n, 1);
+        cellList.build(positions);
+
+        valid = true;
+    }
+
+    /**
+     * Visits every particle that is closer than <code>radius</code> to (x, y).
+     * The offsets are relative to (x, y).
+     */
+    void forEachInCircle(float x, float y, float radius, Visitor visitor) {
+
+        float radiusSquared = radius * radius;
+
+        setCellBounds(x - radius, y - radius, x + radius, y + radius);
+
+        for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+            for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+
+                int cell = getCellIndex(cellX, cellY);
+
+                for (int i = cellList.cellStart[cell]; i < cellList.cellStart[cell + 1]; i++) {
+
+                    int index = cellList.cellParticles[i];
+                    float dx = getOffsetX(index, x);
+                    float dy = getOffsetY(index, y);
+
+                    if (dx * dx + dy * dy < radiusSquared) {
+                        visitor.visit(index, dx, dy);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Visits every particle inside the rectangle from (x, y) (inclusive) to (x + width, y + height) (exclusive).
+     * If the world wraps, the rectangle wraps as well.
+     * The offsets are relative to (x, y), i.e. between 0 and width / height.
+     */
+    void forEachInRect(float x, float y, float width, float height, Visitor visitor) {
+
+        setCellBounds(x, y, x + width, y + height);
+
+        for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+            for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+
+                int cell = getCellIndex(cellX, cellY);
+
+                for (int i = cellList.cellStart[cell]; i < cellList.cellStart[cell + 1]; i++) {
+
+                    int index = cellList.cellParticles[i];
+                    float dx = positions[index * 2] - x;
+                    float dy = positions[index * 2 + 1] - y;
+                    if (wrap) {
+                        dx = modulo(dx, rangeX);
+                        dy = modulo(dy, rangeY);
+                    }
+
+                    if (dx >= 0 && dx < width && dy >= 0 && dy < height) {
+                        visitor.visit(index, dx, dy);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the k particles that are closest to (x, y), by searching rings of cells around (x, y)
+     * until no unvisited cell can contain a closer particle.
+     * @param indices           receives the indices of the particles, closest first. Its length is k.
+     * @param distancesSquared  receives the squared distances of the particles, must be at least as long as <code>indices</code>.
+     * @return the number of particles found, i.e. k, or less if there are fewer particles.
+     */
+    int findNearest(float x, float y, int[] indices, float[] distancesSquared) {
+
+        int k = indices.length;
+        if (k == 0) {
+            return 0;
+        }
+
+        if (wrap) {
+            x = modulo(x, rangeX);
+            y = modulo(y, rangeY);
+        }
+
+        int nx = cellList.nx;
+        int ny = cellList.ny;
+        int centerX = getCellX(x);
+        int centerY = getCellY(y);
+        int maxRing = Math.max(Math.max(centerX, nx - 1 - centerX), Math.max(centerY, ny - 1 - centerY));
+
+        int count = 0;
+
+        for (int ring = 0; ring <= maxRing; ring++) {
+
+            if (wrap && 2 * ring + 1 > Math.min(nx, ny)) {
+                // the ring would overlap itself, just check everything
+                return findNearestBruteForce(x, y, indices, distancesSquared);
+            }
+
+            for (int cellY = centerY - ring; cellY <= centerY + ring; cellY++) {
+
+                // only the first and last row are complete, the other rows only consist of the outermost cells
+                int step = (cellY == centerY - ring || cellY == centerY + ring) ? 1 : Math.max(1, 2 * ring);
+
+                for (int cellX = centerX - ring; cellX <= centerX + ring; cellX += step) {
+
+                    int cell;
+                    if (wrap) {
+                        cell = getCellIndex(cellX, cellY);
+                    } else if (cellX < 0 || cellX >= nx || cellY < 0 || cellY >= ny) {
+                        continue;
+                    } else {
+                        cell = cellList.getCellIndex(cellX, cellY);
+                    }
+
+                    for (int i = cellList.cellStart[cell]; i < cellList.cellStart[cell + 1]; i++) {
+                        int index = cellList.cellParticles[i];
+                        float dx = getOffsetX(index, x);
+                        float dy = getOffsetY(index, y);
+                        count = insert(index, dx * dx + dy * dy, indices, distancesSquared, count);
+                    }
+                }
+            }
+
+            if (count == k) {
+                // distance from (x, y) to the closest cell outside the rings searched so far
+                float covered = Math.min(
+                        Math.min(x - (centerX - ring) * cellList.cellSizeX, (centerX + ring + 1) * cellList.cellSizeX - x),
+                        Math.min(y - (centerY - ring) * cellList.cellSizeY, (centerY + ring + 1) * cellList.cellSizeY - y)
+                );
+                if (covered > 0 && distancesSquared[k - 1] <= covered * covered) {
+                    break;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    private int findNearestBruteForce(float x, float y, int[] indices, float[] distancesSquared) {
+        int count = 0;
+        int n = positions.length / 2;
+        for (int index = 0; index < n; index++) {
+            float dx = getOffsetX(index, x);
+            float dy = getOffsetY(index, y);
+            count = insert(index, dx * dx + dy * dy, indices, distancesSquared, count);
+        }
+        return count;
+    }
+
+    /**
+     * Inserts a particle into the sorted result buffers, dropping the farthest particle if they are full.
+     * @return the new number of particles in the buffers.
+     */
+    private static int insert(int index, float distanceSquared, int[] indices, float[] distancesSquared, int count) {
+
+        int k = indices.length;
+        if (count == k && distanceSquared >= distancesSquared[k - 1]) {
+            return count;
+        }
+
+        int i = Math.min(count, k - 1);
+        while (i > 0 && distancesSquared[i - 1] > distanceSquared) {
+            indices[i] = indices[i - 1];
+            distancesSquared[i] = distancesSquared[i - 1];
+            i--;
+        }
+        indices[i] = index;
+        distancesSquared[i] = distanceSquared;
+
+        return Math.min(count + 1, k);
+    }
+
+    /**
+     * Sets {@link #minCellX} etc. to the cells that cover the given box.
+     * If the world wraps, the cells may lie outside the grid (see {@link #getCellIndex(int, int)}),
+     * but no cell is covered twice. Otherwise, they are clipped to the grid.
+     */
+    private void setCellBounds(float minX, float minY, float maxX, float maxY) {
+
+        minCellX = getCellX(minX);
+        maxCellX = getCellX(maxX);
+        minCellY = getCellY(minY);
+        maxCellY = getCellY(maxY);
+
+        if (wrap) {
+            if (maxCellX - minCellX + 1 >= cellList.nx) {
+                minCellX = 0;
+                maxCellX = cellList.nx - 1;
+            }
+            if (maxCellY - minCellY + 1 >= cellList.ny) {
+                minCellY = 0;
+                maxCellY = cellList.ny - 1;
+            }
+        } else {
+            minCellX = Math.max(0, minCellX);
+            maxCellX = Math.min(cellList.nx - 1, maxCellX);
+            minCellY = Math.max(0, minCellY);
+            maxCellY = Math.min(cellList.ny - 1, maxCellY);
+        }
+    }
+
+    /**
+     * Unlike {@link CellList#getCellX(float)}, this doesn't clip the cell coordinate.
+     */
+    private int getCellX(float x) {
+        return (int) Math.floor(x / cellList.cellSizeX);
+    }
+
+    private int getCellY(float y) {
+        return (int) Math.floor(y / cellList.cellSizeY);
+    }
+
+    /**
+     * @return the index of the given cell, wrapped into the grid.
+     */
+    private int getCellIndex(int cellX, int cellY) {
+        return cellList.getCellIndex(modulo(cellX, cellList.nx), modulo(cellY, cellList.ny));
+    }
+
+    private float getOffsetX(int index, float x) {
+        float dx = positions[index * 2] - x;
+        return wrap ? nearestImage(dx, rangeX) : dx;
+    }
+
+    private float getOffsetY(int index, float y) {
+        float dy = positions[index * 2 + 1] - y;
+        return wrap ? nearestImage(dy, rangeY) : dy;
+    }
+
+    /**
+     * @return the shortest difference that is equivalent to d in a wrapped world of the given range.
+     */
+    private static float nearestImage(float d, float range) {
+        d = modulo(d, range);
+        return d > range / 2 ? d - range : d;
+    }
+
+    private static int modulo(int a, int b) {
+        return ((a % b) + b) % b;
+    }
+
+    private static float modulo(float a, float b) {
+        a %= b;
+        return a < 0 ? a + b : a;
+    }
+}
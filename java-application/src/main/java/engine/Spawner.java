@@ -0,0 +1,95 @@
+package engine;
+
+import java.util.SplittableRandom;
+
+/**
+ * Creates particles with random types at random positions, in one of several patterns.
+ */
+final class Spawner {
+
+    private Spawner() {
+    }
+
+    /**
+     * @param mode 0: uniform, 1: centered uniform, 2: sphere, 3: centered sphere, 4: circle, 5: spiral,
+     *             6: line, 7: two spheres. Other values spawn uniformly.
+     * @return n particles with zero velocity.
+     */
+    static Particles spawn(int n, int nTypes, int mode, float rangeX, float rangeY, SplittableRandom random) {
+
+        int[] types = new int[n];
+        float[] positions = new float[n * 2];
+        float[] velocities = new float[n * 2];
+
+        int typeIndex = 0;
+        int positionIndex = 0;
+
+        while (positionIndex < positions.length) {
+
+            float randomX;
+            float randomY;
+
+            final float radius = Math.min(rangeX, rangeY) / 4;
+            switch (mode) {
+
+                default -> {  // uniform
+                    randomX = rangeX * (float) random.nextDouble();
+                    randomY = rangeY * (float) random.nextDouble();
+                }
+                case 1 -> {  // centered uniform
+                    double angle = 2 * Math.PI * random.nextDouble();
+                    float r = radius * (float) random.nextGaussian();
+                    randomX = rangeX / 2 + r * (float) Math.cos(angle);
+                    randomY = rangeY / 2 + r * (float) Math.sin(angle);
+                }
+                case 2 -> {  // sphere
+                    double angle = 2 * Math.PI * random.nextDouble();
+                    float r = radius * (float) Math.sqrt(random.nextDouble());
+                    randomX = rangeX / 2 + r * (float) Math.cos(angle);
+                    randomY = rangeY / 2 + r * (float) Math.sin(angle);
+                }
+                case 3 -> {  // centered sphere
+                    double angle = 2 * Math.PI * random.nextDouble();
+                    float r = radius * (float) random.nextDouble();
+                    randomX = rangeX / 2 + r * (float) Math.cos(angle);
+                    randomY = rangeY / 2 + r * (float) Math.sin(angle);
+                }
+                case 4 -> {  // circle
+                    double angle = 2 * Math.PI * random.nextDouble();
+                    float r = radius * (1 + 0.05f * (float) (1 - 2 * random.nextDouble()));
+                    randomX = rangeX / 2 + r * (float) Math.cos(angle);
+                    randomY = rangeY / 2 + r * (float) Math.sin(angle);
+                }
+                case 5 -> {  // spiral
+                    double f = random.nextDouble();
+                    double angle = 2 * Math.PI * f;
+                    float r = radius * (float) Math.sqrt(f) + radius * 0.1f * (float) random.nextDouble();
+                    randomX = rangeX / 2 + r * (float) Math.cos(angle);
+                    randomY = rangeY / 2 + r * (float) Math.sin(angle);
+                }
+                case 6 -> {  // line
+                    randomX = rangeX * (float) random.nextDouble();
+                    randomY = rangeY / 2 * (1 + 0.05f * (float) (1 - 2 * random.nextDouble()));
+                }
+                case 7 -> {  // two spheres
+                    double angle = 2 * Math.PI * random.nextDouble();
+                    float r = 1 / (float) Math.sqrt(2) * radius * (float) Math.sqrt(random.nextDouble());
+                    float cx = rangeX * (random.nextBoolean() ? 0.25f : 0.75f);
+                    randomX = cx + r * (float) Math.cos(angle);
+                    randomY = rangeY / 2 + r * (float) Math.sin(angle);
+                }
+            }
+
+            types[typeIndex] = random.nextInt(nTypes);
+            positions[positionIndex] = randomX;
+            positions[positionIndex + 1] = randomY;
+            velocities[positionIndex] = 0;
+            velocities[positionIndex + 1] = 0;
+
+            typeIndex += 1;
+            positionIndex += 2;
+        }
+
+        return new Particles(nTypes, types, positions, velocities);
+    }
+}
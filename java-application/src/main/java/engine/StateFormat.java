@@ -0,0 +1,116 @@
+package engine;
+
+import logic.Settings;
+import processing.data.JSONArray;
+import processing.data.JSONObject;
+
+/**
+ * Converts particles and settings to and from JSON, for saved states.
+ * This is shared by the GUI and the {@link HeadlessRunner}, so that both can read the states of the other.
+ */
+public final class StateFormat {
+
+    private StateFormat() {
+    }
+
+    public static JSONObject createParticlesJson(Particles particles) {
+
+        JSONArray types = new JSONArray();
+        for (int type : particles.types) {
+            types.append(type);
+        }
+
+        JSONObject data = new JSONObject();
+
+        data.put("ntypes", particles.nTypes);
+        data.put("types", types);
+        data.put("positions", toJson(particles.positions));
+        data.put("velocities", toJson(particles.velocities));
+
+        return data;
+    }
+
+    /**
+     * Requires all values to be present.
+     */
+    public static Particles readParticlesJson(JSONObject data) {
+        return new Particles(
+                data.getInt("ntypes"),
+                toIntArray(data.get("types")),
+                toFloatArray(data.get("positions")),
+                toFloatArray(data.get("velocities"))
+        );
+    }
+
+    public static JSONObject createSettingsJson(Settings settings) {
+
+        JSONObject data = new JSONObject();
+
+        data.put("matrix", MatrixParser.matrixToString(settings.getMatrix()));
+        data.put("force", settings.getForceFactor());
+        data.put("friction", settings.getFriction());
+        data.put("rmin", settings.getRMin());
+        data.put("rmax", settings.getRMax());
+        data.put("wrap", settings.isWrap());
+        data.put("dt", settings.getDt());
+        data.put("heat", settings.getHeat());
+        data.put("seed", settings.getSeed());
+        data.put("step", settings.getStep());
+        data.put("rangex", settings.getRangeX());
+        data.put("rangey", settings.getRangeY());
+
+        return data;
+    }
+
+    /**
+     * If a value is not present, the current value will be kept.
+     */
+    public static void readSettingsJson(JSONObject data, Settings settings) {
+        if (data.hasKey("matrix")) settings.setMatrix(MatrixParser.parseMatrix(data.getString("matrix")));
+        settings.setForceFactor(data.getFloat("force", settings.getForceFactor()));
+        settings.setFriction(data.getFloat("friction", settings.getFriction()));
+        settings.setRMin(data.getFloat("rmin", settings.getRMin()));
+        settings.setRMax(data.getFloat("rmax", settings.getRMax()));
+        settings.setWrap(data.getBoolean("wrap", settings.isWrap()));
+        settings.setDt(data.getFloat("dt", settings.getDt()));
+        settings.setHeat(data.getFloat("heat", settings.getHeat()));
+        settings.setSeed(data.getLong("seed", settings.getSeed()));
+        settings.setStep(data.getLong("step", settings.getStep()));
+        settings.setRange(data.getFloat("rangex", settings.getRangeX()), data.getFloat("rangey", settings.getRangeY()));
+    }
+
+    private static JSONArray toJson(float[] values) {
+        JSONArray array = new JSONArray();
+        for (float value : values) {
+            array.append(value);
+        }
+        return array;
+    }
+
+    /**
+     * @param value a JSON array, or an int array (states that were never converted to a string contain the arrays as they were put).
+     */
+    private static int[] toIntArray(Object value) {
+        if (value instanceof int[]) {
+            return (int[]) value;
+        }
+        JSONArray array = (JSONArray) value;
+        int[] values = new int[array.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.getInt(i);
+        }
+        return values;
+    }
+
+    private static float[] toFloatArray(Object value) {
+        if (value instanceof float[]) {
+            return (float[]) value;
+        }
+        JSONArray array = (JSONArray) value;
+        float[] values = new float[array.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.getFloat(i);
+        }
+        return values;
+    }
+}
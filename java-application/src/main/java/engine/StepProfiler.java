@@ -0,0 +1,213 @@
+package engine;
+
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Measures how long each phase of the simulation and of the drawing takes (see {@link Phase}),
+ * as histograms of the durations (see {@link LatencyHistogram}), so that the slow phase and the tail latency can be seen,
+ * and not only the mean.
+ * <p>
+ * It also measures the threads of the parallel loops (see {@link Parallel}):
+ * how long each thread ran tasks (busy) and how long it waited while a loop was running (idle),
+ * and a histogram of the time each thread spent on the forces in a step.
+ * Idle time of a thread means that the work wasn't split evenly, e.g. because the particles are clustered.
+ * <p>
+ * Recording doesn't allocate (except once for each new thread) and takes two calls of {@link System#nanoTime()} per phase,
+ * so the profiler is always on.
+ * Each phase must only be recorded by one thread (the simulation thread or the drawing thread).
+ * The report can be read by any thread.
+ */
+final class StepProfiler {
+
+    enum Phase {
+        /**
+         * Handling the requests of the GUI, only recorded if there were any.
+         */
+        REQUESTS("requests", false),
+        /**
+         * Filling the cells of the grid, or building the neighbor lists.
+         */
+        CELLS("cells", true),
+        /**
+         * Computing the forces, i.e. updating the velocities.
+         */
+        FORCES("forces", true),
+        /**
+         * Updating the positions.
+         */
+        INTEGRATION("integration", true),
+        CAMERA("camera", false),
+        /**
+         * Drawing the particles onto the canvas.
+         */
+        PARTICLES("particles", false),
+        /**
+         * The rest of the frame: the other widgets, and composing them into the window.
+         */
+        GUI("gui", false);
+
+        final String label;
+
+        /**
+         * Whether the phase runs parallel loops, and is recorded by the thread that runs them.
+         */
+        final boolean parallel;
+
+        Phase(String label, boolean parallel) {
+            this.label = label;
+            this.parallel = parallel;
+        }
+    }
+
+    /**
+     * Times of a thread that ran tasks of a parallel loop.
+     */
+    private static final class ThreadTimes {
+
+        final Thread thread;
+
+        /**
+         * The loop time of the profiler when this thread ran its first task,
+         * since the thread didn't wait for the loops before.
+         */
+        final long loopNanosBefore;
+
+        // only written by the thread itself while a loop is running
+        volatile long busyNanos = 0;
+
+        /**
+         * Busy time since the last parallel phase was recorded, reset by the thread that records the phase.
+         */
+        volatile long phaseBusyNanos = 0;
+
+        /**
+         * The busy time of this thread in each step, only for {@link Phase#FORCES}.
+         */
+        final LatencyHistogram forces = new LatencyHistogram();
+
+        ThreadTimes(Thread thread, long loopNanosBefore) {
+            this.thread = thread;
+            this.loopNanosBefore = loopNanosBefore;
+        }
+    }
+
+    private final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+
+    /**
+     * All threads that ran tasks, in the order in which they ran their first task.
+     */
+    private final CopyOnWriteArrayList<ThreadTimes> threads = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<ThreadTimes> threadTimes = ThreadLocal.withInitial(this::addThread);
+
+    /**
+     * Sum of the durations of the parallel loops, only written by the thread that runs the loops.
+     */
+    private volatile long loopNanos = 0;
+
+    StepProfiler() {
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records the duration of a phase that started at <code>startNanos</code> and ends now.
+     * If the phase runs parallel loops, the busy times of the threads since the last parallel phase are assigned to it.
+     * @param startNanos from {@link System#nanoTime()}
+     * @return now, i.e. the start of the next phase.
+     */
+    long record(Phase phase, long startNanos) {
+
+        long now = System.nanoTime();
+        phases[phase.ordinal()].record(now - startNanos);
+
+        if (!phase.parallel) {
+            return now;
+        }
+
+        for (int i = 0; i < threads.size(); i++) {
+            ThreadTimes t = threads.get(i);
+            long busy = t.phaseBusyNanos;
+            if (busy > 0) {
+                if (phase == Phase.FORCES) {
+                    t.forces.record(busy);
+                }
+                t.phaseBusyNanos = 0;
+            }
+        }
+
+        return now;
+    }
+
+    /**
+     * Records a phase with a duration that was measured elsewhere.
+     */
+    void recordNanos(Phase phase, long nanos) {
+        phases[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * Called by a thread after it ran a task of a parallel loop.
+     */
+    void addBusyTime(long nanos) {
+        ThreadTimes t = threadTimes.get();
+        t.busyNanos = t.busyNanos + nanos;
+        t.phaseBusyNanos = t.phaseBusyNanos + nanos;
+    }
+
+    /**
+     * Called by the thread that ran a parallel loop, after all of its tasks were finished.
+     */
+    void addLoopTime(long nanos) {
+        loopNanos = loopNanos + nanos;
+    }
+
+    private ThreadTimes addThread() {
+        // forget the threads that the pool has retired
+        threads.removeIf(t -> !t.thread.isAlive());
+        ThreadTimes t = new ThreadTimes(Thread.currentThread(), loopNanos);
+        threads.add(t);
+        return t;
+    }
+
+    /**
+     * @return one line per phase with the p50, p99 and the maximum of its durations,
+     *         and one line per thread with its busy and idle time during the parallel loops,
+     *         and the p50, p99 and maximum of its time for the forces per step.
+     */
+    String getReport() {
+
+        StringBuilder report = new StringBuilder(String.format(Locale.ROOT, "%-12s %7s %7s %7s (ms)%n", "phase", "p50", "p99", "max"));
+
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram h = phases[phase.ordinal()];
+            report.append(String.format(Locale.ROOT, "%-12s %s%n", phase.label, formatPercentiles(h)));
+        }
+
+        long totalLoopNanos = loopNanos;
+        report.append(String.format(Locale.ROOT, "%-12s %7s %7s %7s %7s %7s (s, forces in ms)%n", "thread", "busy", "idle", "p50", "p99", "max"));
+
+        int index = 0;
+        for (ThreadTimes t : threads) {
+            index++;
+            if (!t.thread.isAlive()) {
+                continue;
+            }
+            long loops = totalLoopNanos - t.loopNanosBefore;
+            long busy = Math.min(t.busyNanos, loops);
+            report.append(String.format(Locale.ROOT, "%-12s %7.2f %7.2f %s%n", "worker " + index,
+                    busy / 1e9, (loops - busy) / 1e9, formatPercentiles(t.forces)));
+        }
+
+        return report.toString();
+    }
+
+    private static String formatPercentiles(LatencyHistogram h) {
+        if (h.getCount() == 0) {
+            return String.format(Locale.ROOT, "%7s %7s %7s", "-", "-", "-");
+        }
+        return String.format(Locale.ROOT, "%7.2f %7.2f %7.2f",
+                h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(99) / 1e6, h.getMax() / 1e6);
+    }
+}
@@ -0,0 +1,314 @@
+package engine;
+
+import logic.Settings;
+import logic.Updater;
+import logic.UpdaterLogic;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Works like {@link MultithreadedUpdater} (without spatial sorting and half stencil),
+ * but stores the coordinates of the particles in separate arrays (x, y, vx, vy)
+ * instead of interleaved arrays.
+ * <p>
+ * The updates only work on the separate arrays. The interleaved arrays returned by {@link #getPositions()}
+ * and {@link #getVelocities()} are only assembled on demand, at most once per update.
+ * The setters split the interleaved arrays again.
+ * The snapshots and the maximum speed, which are needed after every step, are read from the separate arrays directly.
+ */
+class StructureOfArraysUpdater implements Updater {
+
+    private final Parallel parallel;
+    private final StepProfiler profiler;
+
+    /**
+     * @param pool the threads that are used for updating. The caller is responsible for shutting it down.
+     */
+    StructureOfArraysUpdater(ForkJoinPool pool) {
+        this(pool, new StepProfiler());
+    }
+
+    /**
+     * @param pool the threads that are used for updating. The caller is responsible for shutting it down.
+     * @param profiler gets the durations of the phases of the steps.
+     */
+    StructureOfArraysUpdater(ForkJoinPool pool, StepProfiler profiler) {
+        this.parallel = new Parallel(pool, profiler);
+        this.profiler = profiler;
+    }
+
+    /**
+     * Uses the common pool.
+     */
+    StructureOfArraysUpdater() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    private int[] types;
+
+    private float[] xs = new float[0];
+    private float[] ys = new float[0];
+    private float[] vxs = new float[0];
+    private float[] vys = new float[0];
+
+    private float[] xsBuffer = new float[0];
+    private float[] ysBuffer = new float[0];
+    private float[] vxsBuffer = new float[0];
+    private float[] vysBuffer = new float[0];
+
+    /**
+     * Interleaved copies for the getters.
+     */
+    private float[] positions = new float[0];
+    private float[] velocities = new float[0];
+    private boolean positionsValid = false;
+    private boolean velocitiesValid = false;
+
+    private final CellList cellList = new CellList();
+
+    /**
+     * Whether the count phase of the cell list is up-to-date with the current positions.
+     * @see MultithreadedUpdater
+     */
+    private boolean cellsCounted = false;
+
+    // The arguments of the current step, for the parallel tasks below.
+    // The tasks are only created once, so that a step doesn't allocate (see Parallel).
+
+    private final Settings s = new Settings();  // copy, the UI thread could change the settings
+    private UpdaterLogic updaterLogic;
+
+    private final Parallel.IndexTask countTask = chunk -> cellList.count(xs, ys, chunk);
+    private final Parallel.IndexTask scatterTask = chunk -> cellList.scatter(chunk);
+    private final Parallel.IndexTask sortBlockTask = block -> cellList.sortBlock(block);
+
+    private final Parallel.RangeTask updateVelocitiesTask = (from, to, scratch) -> {
+
+        int[] neighborRanges = scratch.getInts(cellList.getMaxNeighborRanges() * 2);
+        int[] cellStart = cellList.cellStart;
+
+        for (int cell = from; cell < to; cell++) {
+
+            int cellX = cell % cellList.nx;
+            int cellY = cell / cellList.nx;
+
+            int nRanges = cellList.getNeighborRanges(cellX, cellY, s.isWrap(), neighborRanges);
+
+            updaterLogic.updateVelocities(
+                    s, types, xs, ys, vxs, vys,
+                    cellList.cellParticles, cellStart[cell], cellStart[cell + 1],
+                    neighborRanges, nRanges,
+                    vxsBuffer, vysBuffer
+            );
+        }
+    };
+
+    // moves the particles from xs, ys to xsBuffer, ysBuffer
+    private final Parallel.IndexTask updatePositionsTask = chunk -> {
+        updaterLogic.updatePositions(
+                s, xs, ys, vxs, vys,
+                cellList.getChunkStart(chunk), cellList.getChunkEnd(chunk),
+                xsBuffer, ysBuffer
+        );
+        cellList.count(xsBuffer, ysBuffer, chunk);
+    };
+
+    @Override
+    public void setTypes(int[] types) {
+        if (types != this.types) {
+            cellsCounted = false;
+        }
+        this.types = types;
+    }
+
+    @Override
+    public void setPositions(float[] positions) {
+
+        int n = positions.length / 2;
+
+        // create buffers if necessary
+        if (xs.length != n) {
+            xs = new float[n];
+            ys = new float[n];
+            xsBuffer = new float[n];
+            ysBuffer = new float[n];
+        }
+
+        for (int i = 0; i < n; i++) {
+            xs[i] = positions[i * 2];
+            ys[i] = positions[i * 2 + 1];
+        }
+
+        this.positions = positions;
+        positionsValid = true;
+        cellsCounted = false;
+    }
+
+    @Override
+    public void setVelocities(float[] velocities) {
+
+        int n = velocities.length / 2;
+
+        // create buffers if necessary
+        if (vxs.length != n) {
+            vxs = new float[n];
+            vys = new float[n];
+            vxsBuffer = new float[n];
+            vysBuffer = new float[n];
+        }
+
+        for (int i = 0; i < n; i++) {
+            vxs[i] = velocities[i * 2];
+            vys[i] = velocities[i * 2 + 1];
+        }
+
+        this.velocities = velocities;
+        velocitiesValid = true;
+    }
+
+    @Override
+    public int[] getTypes() {
+        return types;
+    }
+
+    @Override
+    public float[] getPositions() {
+        if (!positionsValid) {
+            positions = interleave(xs, ys, positions);
+            positionsValid = true;
+        }
+        return positions;
+    }
+
+    @Override
+    public float[] getVelocities() {
+        if (!velocitiesValid) {
+            velocities = interleave(vxs, vys, velocities);
+            velocitiesValid = true;
+        }
+        return velocities;
+    }
+
+    /**
+     * Copies from the separate arrays, without assembling the interleaved positions.
+     * The particles are never moved to other indices, so the ids are the indices.
+     */
+    @Override
+    public void copySnapshot(int[] typesOut, float[] positionsOut) {
+        System.arraycopy(types, 0, typesOut, 0, types.length);
+        for (int i = 0; i < xs.length; i++) {
+            positionsOut[i * 2] = xs[i];
+            positionsOut[i * 2 + 1] = ys[i];
+        }
+    }
+
+    /**
+     * Reads the separate arrays directly, without assembling the interleaved velocities.
+     */
+    @Override
+    public float getMaxSpeed() {
+        float maxSpeedSquared = 0;
+        for (int i = 0; i < vxs.length; i++) {
+            float vx = vxs[i];
+            float vy = vys[i];
+            maxSpeedSquared = Math.max(maxSpeedSquared, vx * vx + vy * vy);
+        }
+        return (float) Math.sqrt(maxSpeedSquared);
+    }
+
+    /**
+     * @param interleaved is reused if it has the right size.
+     */
+    private static float[] interleave(float[] xs, float[] ys, float[] interleaved) {
+
+        // create buffer if necessary
+        if (interleaved.length != xs.length * 2) {
+            interleaved = new float[xs.length * 2];
+        }
+
+        for (int i = 0; i < xs.length; i++) {
+            interleaved[i * 2] = xs[i];
+            interleaved[i * 2 + 1] = ys[i];
+        }
+        return interleaved;
+    }
+
+    private void resizeCellList(Settings s) {
+        if (cellList.resize(s.getRangeX(), s.getRangeY(), s.getRMax(), types.length, parallel.getParallelism())) {
+            cellsCounted = false;
+        }
+    }
+
+    private void buildCellList(Settings s) {
+
+        resizeCellList(s);
+
+        if (!cellsCounted) {
+            parallel.runEach(cellList.getChunkCount(), countTask);
+        }
+        cellsCounted = false;
+
+        cellList.scanBlocks();
+        parallel.runEach(cellList.getChunkCount(), scatterTask);
+        parallel.runEach(cellList.getBlockCount(), sortBlockTask);
+    }
+
+    @Override
+    public void updateVelocities(Settings settings, UpdaterLogic updaterLogic) {
+
+        s.copyFrom(settings);  // UI thread could change settings
+        this.updaterLogic = updaterLogic;
+
+        long start = System.nanoTime();
+
+        buildCellList(s);
+
+        start = profiler.record(StepProfiler.Phase.CELLS, start);
+
+        parallel.run(cellList.getCellCount(), updateVelocitiesTask);
+
+        // swap buffers
+        float[] h = vxs;
+        vxs = vxsBuffer;
+        vxsBuffer = h;
+
+        h = vys;
+        vys = vysBuffer;
+        vysBuffer = h;
+
+        velocitiesValid = false;
+
+        profiler.record(StepProfiler.Phase.FORCES, start);
+    }
+
+    /**
+     * Moves the particles and finds their new cells in the same parallel pass.
+     * @see MultithreadedUpdater#updatePositions(Settings, UpdaterLogic)
+     */
+    @Override
+    public void updatePositions(Settings settings, UpdaterLogic updaterLogic) {
+
+        s.copyFrom(settings);  // UI thread could change settings
+        this.updaterLogic = updaterLogic;
+
+        long start = System.nanoTime();
+
+        resizeCellList(s);
+
+        parallel.runEach(cellList.getChunkCount(), updatePositionsTask);
+
+        // swap buffers
+        float[] h = xs;
+        xs = xsBuffer;
+        xsBuffer = h;
+
+        h = ys;
+        ys = ysBuffer;
+        ysBuffer = h;
+
+        positionsValid = false;
+        cellsCounted = true;
+
+        profiler.record(StepProfiler.Phase.INTEGRATION, start);
+    }
+}
@@ -0,0 +1,141 @@
+package engine;
+
+import logic.Updater;
+
+import java.util.Locale;
+
+/**
+ * Optional features of the grid updaters ({@link MultithreadedUpdater} and {@link RMaxUpdater}), all off by default:
+ * spatial ordering of the particle arrays, the half stencil, ghost cells and subdivided cells.
+ * The other updaters ignore them (see {@link #applyTo(Updater)}).
+ * <p>
+ * The options can be written as colon-separated tokens (see {@link #parse(String)}),
+ * e.g. <code>half:sort=morton/5:subdivisions=2</code>, which is how the benchmarks take them.
+ */
+final class UpdaterOptions {
+
+    SpatialOrder.Mode spatialOrder = SpatialOrder.Mode.NONE;
+
+    /**
+     * Every how many steps the particles are reordered, if {@link #spatialOrder} isn't NONE.
+     */
+    int spatialOrderInterval = 10;
+
+    boolean halfStencil = false;
+
+    /**
+     * Only used by {@link MultithreadedUpdater}.
+     */
+    boolean ghostCells = false;
+
+    /**
+     * Only used by {@link MultithreadedUpdater}.
+     */
+    int subdivisions = 1;
+
+    /**
+     * Parses the tokens of {@link #toString()}, separated by colons:
+     * <code>half</code>, <code>ghost</code>, <code>sort=&lt;mode&gt;</code> or <code>sort=&lt;mode&gt;/&lt;interval&gt;</code>
+     * (modes as in {@link SpatialOrder.Mode}, in any case) and <code>subdivisions=&lt;n&gt;</code>.
+     * An empty string or <code>default</code> are the defaults.
+     * @throws IllegalArgumentException if a token is unknown.
+     */
+    static UpdaterOptions parse(String s) {
+
+        UpdaterOptions options = new UpdaterOptions();
+
+        for (String token : s.split(":")) {
+
+            String name = token.trim().toLowerCase(Locale.ROOT);
+            String value = null;
+            int equals = name.indexOf('=');
+            if (equals >= 0) {
+                value = name.substring(equals + 1);
+                name = name.substring(0, equals);
+            }
+
+            switch (name) {
+                case "":
+                case "default":
+                    break;
+                case "half":
+                    options.halfStencil = true;
+                    break;
+                case "ghost":
+                    options.ghostCells = true;
+                    break;
+                case "sort":
+                    if (value == null) {
+                        throw new IllegalArgumentException("Missing spatial order in '" + token + "'");
+                    }
+                    options.setSpatialOrder(value);
+                    break;
+                case "subdivisions":
+                    if (value == null) {
+                        throw new IllegalArgumentException("Missing number of subdivisions in '" + token + "'");
+                    }
+                    options.subdivisions = Math.max(1, Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown updater option '" + token + "'");
+            }
+        }
+
+        return options;
+    }
+
+    /**
+     * @param value <code>&lt;mode&gt;</code> or <code>&lt;mode&gt;/&lt;interval&gt;</code>, the mode in any case.
+     * @throws IllegalArgumentException if the mode is unknown.
+     */
+    void setSpatialOrder(String value) {
+        int slash = value.indexOf('/');
+        if (slash >= 0) {
+            spatialOrderInterval = Math.max(1, Integer.parseInt(value.substring(slash + 1).trim()));
+            value = value.substring(0, slash);
+        }
+        spatialOrder = SpatialOrder.Mode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Configures the updater, if it is a grid updater that supports the options.
+     */
+    void applyTo(Updater updater) {
+        if (updater instanceof MultithreadedUpdater) {
+            MultithreadedUpdater u = (MultithreadedUpdater) updater;
+            u.setSpatialOrder(spatialOrder, spatialOrderInterval);
+            u.setHalfStencil(halfStencil);
+            u.setGhostCells(ghostCells);
+            u.setSubdivisions(subdivisions);
+        } else if (updater instanceof RMaxUpdater) {
+            RMaxUpdater u = (RMaxUpdater) updater;
+            u.setSpatialOrder(spatialOrder, spatialOrderInterval);
+            u.setHalfStencil(halfStencil);
+        }
+    }
+
+    /**
+     * @return the options that differ from the defaults, in the format of {@link #parse(String)},
+     *         or <code>default</code> if there are none.
+     */
+    @Override
+    public String toString() {
+
+        StringBuilder s = new StringBuilder();
+
+        if (halfStencil) {
+            s.append(":half");
+        }
+        if (ghostCells) {
+            s.append(":ghost");
+        }
+        if (spatialOrder != SpatialOrder.Mode.NONE) {
+            s.append(":sort=").append(spatialOrder.name().toLowerCase(Locale.ROOT)).append('/').append(spatialOrderInterval);
+        }
+        if (subdivisions != 1) {
+            s.append(":subdivisions=").append(subdivisions);
+        }
+
+        return s.length() > 0 ? s.substring(1) : "default";
+    }
+}
@@ -0,0 +1,111 @@
+package engine;
+
+import logic.Updater;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Creates the updaters that can be chosen by index (see {@link engine.requests.RequestUpdater#updater}).
+ */
+final class Updaters {
+
+    private Updaters() {
+    }
+
+    /**
+     * @return the index of the updater that {@link #create(int, ForkJoinPool)} actually creates:
+     *         unknown indices and unavailable updaters fall back to 0.
+     */
+    static int resolve(int index) {
+        switch (index) {
+            case 1:
+            case 2:
+            case 4:
+                return index;
+            case 3:
+                return OffHeapParticles.isAvailable() ? 3 : 0;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @param pool the threads that are used for updating. The caller is responsible for shutting it down.
+     */
+    static Updater create(int index, ForkJoinPool pool) {
+        return create(index, pool, new StepProfiler());
+    }
+
+    /**
+     * @param pool the threads that are used for updating. The caller is responsible for shutting it down.
+     * @param profiler gets the durations of the phases of the steps.
+     */
+    static Updater create(int index, ForkJoinPool pool, StepProfiler profiler) {
+        return create(index, pool, profiler, new UpdaterOptions());
+    }
+
+    /**
+     * @param pool the threads that are used for updating. The caller is responsible for shutting it down.
+     * @param profiler gets the durations of the phases of the steps.
+     * @param options the optional features of the grid updater (0), which the other updaters ignore.
+     */
+    static Updater create(int index, ForkJoinPool pool, StepProfiler profiler, UpdaterOptions options) {
+        Updater updater = createUpdater(index, pool, profiler);
+        options.applyTo(updater);
+        return updater;
+    }
+
+    private static Updater createUpdater(int index, ForkJoinPool pool, StepProfiler profiler) {
+        switch (resolve(index)) {
+            case 1:
+                return new StructureOfArraysUpdater(pool, profiler);
+            case 2:
+                return new NeighborListUpdater(pool, profiler);
+            case 3:
+                return new OffHeapUpdater(pool, profiler);
+            case 4:
+                return new CompactUpdater(pool, profiler);
+            default:
+                return new MultithreadedUpdater(pool, profiler);
+        }
+    }
+
+    /**
+     * @return a copy of the particles of the updater, in the order of the stable ids,
+     *         so that the particles can be identified across saved states.
+     */
+    static Particles copyParticles(Updater updater, int nTypes) {
+
+        int[] types = updater.getTypes();
+        float[] positions = updater.getPositions();
+        float[] velocities = updater.getVelocities();
+
+        int[] typesCopy = new int[types.length];
+        float[] positionsCopy = new float[positions.length];
+        float[] velocitiesCopy = new float[velocities.length];
+
+        for (int id = 0; id < types.length; id++) {
+            int index = updater.getIndex(id);
+            typesCopy[id] = types[index];
+            positionsCopy[id * 2] = positions[index * 2];
+            positionsCopy[id * 2 + 1] = positions[index * 2 + 1];
+            velocitiesCopy[id * 2] = velocities[index * 2];
+            velocitiesCopy[id * 2 + 1] = velocities[index * 2 + 1];
+        }
+
+        return new Particles(nTypes, typesCopy, positionsCopy, velocitiesCopy);
+    }
+
+    /**
+     * Frees the resources of the updater (e.g. native memory), if it has any.
+     */
+    static void close(Updater updater) {
+        if (updater instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) updater).close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
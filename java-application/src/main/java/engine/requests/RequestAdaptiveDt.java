@@ -0,0 +1,14 @@
+package engine.requests;
+
+public final class RequestAdaptiveDt extends Request {
+
+    /**
+     * Whether the time step should follow the speed of the fastest particle.
+     * This takes precedence over the fixed time step.
+     */
+    public final boolean adaptive;
+
+    public RequestAdaptiveDt(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+}
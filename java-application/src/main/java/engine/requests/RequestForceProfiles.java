@@ -0,0 +1,12 @@
+package engine.requests;
+
+import logic.ForceProfiles;
+
+public final class RequestForceProfiles extends Request {
+
+    public final ForceProfiles forceProfiles;
+
+    public RequestForceProfiles(ForceProfiles forceProfiles) {
+        this.forceProfiles = forceProfiles;
+    }
+}
@@ -0,0 +1,14 @@
+package engine.requests;
+
+public final class RequestPhysicsTimeBudget extends Request {
+
+    /**
+     * How long one update may step the physics with the fixed time step, in ms.
+     * If the steps that are due take longer, the physics run slower than real time.
+     */
+    public final float millis;
+
+    public RequestPhysicsTimeBudget(float millis) {
+        this.millis = millis;
+    }
+}
@@ -0,0 +1,25 @@
+package engine.requests;
+
+public final class RequestSeed extends Request {
+
+    /**
+     * Seeds the random numbers of the heat and of spawning particles.
+     * @see logic.Settings#setSeed(long)
+     */
+    public final long seed;
+
+    /**
+     * The step at which the random numbers of the heat continue.
+     * @see logic.Settings#setStep(long)
+     */
+    public final long step;
+
+    public RequestSeed(long seed, long step) {
+        this.seed = seed;
+        this.step = step;
+    }
+
+    public RequestSeed(long seed) {
+        this(seed, 0);
+    }
+}
@@ -0,0 +1,15 @@
+package engine.requests;
+
+public final class RequestUpdater extends Request {
+
+    /**
+     * 0: grid, 1: grid with structure-of-arrays layout, 2: neighbor lists,
+     * 3: grid with off-heap storage (falls back to 0 if <code>jdk.incubator.foreign</code> isn't available),
+     * 4: grid with compact (quantized) storage.
+     */
+    public final int updater;
+
+    public RequestUpdater(int updater) {
+        this.updater = updater;
+    }
+}
@@ -0,0 +1,10 @@
+package engine.requests;
+
+public final class RequestVectorizedKernel extends Request {
+
+    public final boolean vectorized;
+
+    public RequestVectorizedKernel(boolean vectorized) {
+        this.vectorized = vectorized;
+    }
+}
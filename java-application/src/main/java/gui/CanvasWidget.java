@@ -87,10 +87,13 @@ public class CanvasWidget extends Widget {
             onLoadListener = null;
         }
 
+        if (!renderer.isSimulationThreadRunning()) {
+            // the physics run in their own thread, so that slow steps don't slow down the drawing
+            renderer.startSimulationThread();
+        }
+
         clear(context);
 
-        renderer.update();
-        renderer.handleRequests();
         renderer.updateCamera();
         renderer.draw(context);
 
@@ -32,12 +32,23 @@ public class Main implements App<MyAppState> {
     private Toggle togglePause;
     private Toggle keepDensityToggle;
     private Label statsLabel;
+
+    /**
+     * The timing report of the renderer is only formatted once per interval, not in every frame.
+     */
+    private static final long TIMING_REPORT_INTERVAL_NANOS = 1_000_000_000L;
+    private String timingReport = null;
+    private long timingReportNanos;
     private Selector initializerSelector;
     private Selector spawnSelector;
     private FloatSlider frictionSlider;
     private Toggle dtToggle;
     private Toggle wrapToggle;
+    private Toggle simdToggle;
+    private Selector updaterSelector;
     private FloatSlider dtSlider;
+    private Toggle adaptiveDtToggle;
+    private FloatSlider budgetSlider;
     private FloatSlider forceSlider;
     private FloatSlider rMinSlider;
     private FloatSlider rMaxSlider;
@@ -99,10 +110,14 @@ public class Main implements App<MyAppState> {
         frictionSlider = (FloatSlider) widgets.get("friction-slider");
         dtToggle = (Toggle) widgets.get("dt-toggle");
         dtSlider = (FloatSlider) widgets.get("dt-slider");
+        adaptiveDtToggle = (Toggle) widgets.get("adaptive-dt-toggle");
+        budgetSlider = (FloatSlider) widgets.get("budget-slider");
         forceSlider = (FloatSlider) widgets.get("force-slider");
         rMinSlider = (FloatSlider) widgets.get("rmin-slider");
         rMaxSlider = (FloatSlider) widgets.get("rmax-slider");
         wrapToggle = (Toggle) widgets.get("wrap-toggle");
+        simdToggle = (Toggle) widgets.get("simd-toggle");
+        updaterSelector = (Selector) widgets.get("updater-selector");
         particleSizeSlider = (FloatSlider) widgets.get("particle-size-slider");
         camZoomSlider = (FloatSlider) widgets.get("cam-zoom-slider");
     }
@@ -131,10 +146,14 @@ public class Main implements App<MyAppState> {
         frictionSlider.setValue(renderer.getSettings().getFriction());
         dtToggle.setState(renderer.isFixedTimeStepEnabled());
         dtSlider.setValue(renderer.getFixedTimeStepValueMillis());
+        adaptiveDtToggle.setState(renderer.isAdaptiveTimeStepEnabled());
+        budgetSlider.setValue(renderer.getPhysicsTimeBudgetMillis());
         forceSlider.setValue(renderer.getSettings().getForceFactor());
         rMinSlider.setValue(renderer.getSettings().getRMin());
         rMaxSlider.setValue(renderer.getSettings().getRMax());
         wrapToggle.setState(renderer.getSettings().isWrap());
+        simdToggle.setState(renderer.isVectorizedKernelEnabled());
+        updaterSelector.setSelectedIndex(renderer.getUpdaterIndex());
         particleSizeSlider.setValue(renderer.getParticleSize());
         camZoomSlider.setValue(renderer.getCameraFollowZoomFactor());
         darkModeToggle.setState(Theme.getTheme().darkMode);
@@ -147,12 +166,22 @@ public class Main implements App<MyAppState> {
         });
         renderer.addParticleDensityListener((n, density) -> densityPerCentSlider.setValue(density * 100));
         renderer.addFrameListener(() -> {
+            long now = System.nanoTime();
+            if (timingReport == null || now - timingReportNanos >= TIMING_REPORT_INTERVAL_NANOS) {
+                timingReport = renderer.getTimingReport();
+                timingReportNanos = now;
+            }
             statsLabel.setText(String.format(
                     "fps: %.0f%n" +
-                    "update: %.1f ms%n" +
+                    "update: %.1f ms (%d steps)%n" +
+                    "dt: %.1f ms%n" +
                     "draw: %.1f ms%n" +
-                    "n: %d",
-                    renderer.getFps(), renderer.getAvgPhysicsCalcTime(), renderer.getAvgRenderingTime(), renderer.getParticleCount()));
+                    "n: %d%n%n" +
+                    "%s",
+                    renderer.getFps(), renderer.getAvgPhysicsCalcTime(), renderer.getLastSubstepCount(),
+                    renderer.getSettings().getDt() * 1000,
+                    renderer.getAvgRenderingTime(), renderer.getParticleCount(),
+                    timingReport));
         });
         renderer.addScreenshotListener(this::saveScreenshot);
         renderer.addPauseChangeListener(paused -> togglePause.setState(paused));
@@ -188,17 +217,23 @@ public class Main implements App<MyAppState> {
         frictionSlider.addChangeListener(value -> canvas.getRenderer().request(new RequestFriction((float) value)));
         dtToggle.setChangeListener(state -> canvas.getRenderer().request(new RequestDtEnabled(state)));
         dtSlider.addChangeListener(value -> canvas.getRenderer().request(new RequestDt((float) value)));
+        adaptiveDtToggle.setChangeListener(state -> canvas.getRenderer().request(new RequestAdaptiveDt(state)));
+        budgetSlider.addChangeListener(value -> canvas.getRenderer().request(new RequestPhysicsTimeBudget((float) value)));
         forceSlider.addChangeListener(value -> canvas.getRenderer().request(new RequestForce((float) value)));
         rMinSlider.addChangeListener(value -> canvas.getRenderer().request(new RequestRMin((float) value)));
         rMaxSlider.addChangeListener(value -> canvas.getRenderer().request(new RequestRMax((float) value)));
         particleSizeSlider.addChangeListener(value -> canvas.getRenderer().request(new RequestParticleSize((float) value)));
         camZoomSlider.addChangeListener(value -> canvas.getRenderer().request(new RequestCameraFollowZoomFactor((float) value)));
         wrapToggle.setChangeListener(state -> canvas.getRenderer().request(new RequestWrap(state)));
+        simdToggle.setChangeListener(state -> canvas.getRenderer().request(new RequestVectorizedKernel(state)));
+        updaterSelector.addSelectionChangeListener((index, entry) -> canvas.getRenderer().request(new RequestUpdater(index)));
 
         darkModeToggle.setChangeListener(darkMode -> {
             Theme.setDarkMode(darkMode);
             g.requestRenderForAll();
         });
+
+        g.setRenderListener(nanos -> canvas.getRenderer().recordFrameTime(nanos));
     }
 
     private void saveScreenshot(PImage image) {
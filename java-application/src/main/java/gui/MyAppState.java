@@ -1,8 +1,8 @@
 package gui;
 
-import engine.MatrixParser;
 import engine.Particles;
 import engine.RendererSettings;
+import engine.StateFormat;
 import guilib.AppState;
 import logic.Settings;
 import processing.data.JSONObject;
@@ -48,55 +48,19 @@ public class MyAppState implements AppState {
     }
 
     private JSONObject createParticlesJson() {
-
-        JSONObject data = new JSONObject();
-
-        data.put("ntypes", particles.nTypes);
-        data.put("types", particles.types);
-        data.put("positions", particles.positions);
-        data.put("velocities", particles.velocities);
-
-        return data;
+        return StateFormat.createParticlesJson(particles);
     }
 
     private void readParticlesJson(JSONObject particlesData) {
-
-        // requires all values to be present
-
-        particles.nTypes = (int) particlesData.get("ntypes");
-        particles.types = (int[]) particlesData.get("types");
-        particles.positions = (float[]) particlesData.get("positions");
-        particles.velocities = (float[]) particlesData.get("velocities");
+        particles = StateFormat.readParticlesJson(particlesData);
     }
 
     private JSONObject createSettingsJson() {
-
-        JSONObject data = new JSONObject();
-
-        data.put("matrix", MatrixParser.matrixToString(settings.getMatrix()));
-        data.put("force", settings.getForceFactor());
-        data.put("friction", settings.getFriction());
-        data.put("rmin", settings.getRMin());
-        data.put("rmax", settings.getRMax());
-        data.put("wrap", settings.isWrap());
-        data.put("dt", settings.getDt());
-        data.put("heat", settings.getHeat());
-
-        return data;
+        return StateFormat.createSettingsJson(settings);
     }
 
     private void readSettingsJson(JSONObject data) {
-
-        // if a value is not present, the current value will be kept.
-
-        if (data.hasKey("matrix")) settings.setMatrix(MatrixParser.parseMatrix(data.getString("matrix")));
-        settings.setForceFactor(data.getFloat("force", settings.getForceFactor()));
-        settings.setFriction(data.getFloat("friction", settings.getFriction()));
-        settings.setRMin(data.getFloat("rmin", settings.getRMin()));
-        settings.setRMax(data.getFloat("rmax", settings.getRMax()));
-        settings.setWrap(data.getBoolean("wrap", settings.isWrap()));
-        settings.setDt(data.getFloat("dt", settings.getDt()));
-        settings.setHeat(data.getFloat("heat", settings.getHeat()));
+        StateFormat.readSettingsJson(data, settings);
     }
 
     private JSONObject createRendererSettingsJson() {
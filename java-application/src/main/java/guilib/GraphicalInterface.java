@@ -16,6 +16,13 @@ import java.util.Map;
 
 public class GraphicalInterface {
 
+    public interface RenderListener {
+        /**
+         * @param nanos how long the frame took to render, including all widgets.
+         */
+        void onRendered(long nanos);
+    }
+
     private class WidgetAndPos {
         public Widget widget;
         public int x;
@@ -32,6 +39,7 @@ public class GraphicalInterface {
     private final Widget rootWidget;
     private WidgetAndPos activeWidpos;
     private Map<String, Widget> widgetMap;
+    private RenderListener renderListener = null;
 
     public GraphicalInterface(String layoutFilePath, String rootWidgetId, GraphicsProvider graphicsProvider) {
 
@@ -64,6 +72,13 @@ public class GraphicalInterface {
         return widgetMap;
     }
 
+    /**
+     * The listener is called after each frame, in the thread that renders the widgets.
+     */
+    public void setRenderListener(RenderListener renderListener) {
+        this.renderListener = renderListener;
+    }
+
     private void setActiveWidpos(WidgetAndPos widpos) {
         if (activeWidpos != null) {
             activeWidpos.widget.setActive(false);
@@ -76,11 +91,17 @@ public class GraphicalInterface {
 
     void render(PGraphics context, int left, int top, int width, int height) {
 
+        long start = System.nanoTime();
+
         rootWidget.updateSize(0, 0, width, height);
 
         context.beginDraw();
         context.image(renderWidgetRecursively(rootWidget), left, top, width, height);
         context.endDraw();
+
+        if (renderListener != null) {
+            renderListener.onRendered(System.nanoTime() - start);
+        }
     }
 
     private PGraphics renderWidgetRecursively(Widget widget) {
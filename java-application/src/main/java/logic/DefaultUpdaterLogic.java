@@ -3,146 +3,475 @@ package logic;
 public class DefaultUpdaterLogic implements UpdaterLogic {
 
     @Override
-    public float[] updateVelocity(Settings s, float[] positions, int[] types, int index, float vx, float vy) {
+    public void updateVelocities(Settings s, int[] types, float[] positions, float[] velocities,
+                                 int[] indices, int from, int to,
+                                 int[] neighborRanges, int nNeighborRanges,
+                                 float[] velocitiesOut) {
 
-        int type = types[index];
-        float x = positions[index * 2];
-        float y = positions[index * 2 + 1];
+        ForceTable forceTable = lazyForceTable(s);
+        float forceFactorDt = s.forceFactor * s.dt;
+        boolean minimumImage = s.wrap && s.minimumImage;
 
-        int typeIndex = 0;
-        int positionIndex = 0;
+        for (int i = from; i < to; i++) {
 
-        while (positionIndex < positions.length) {
+            int index = indices[i];
+            int type = types[index];
+            float x = positions[index * 2];
+            float y = positions[index * 2 + 1];
+            float vx = velocities[index * 2];
+            float vy = velocities[index * 2 + 1];
 
-            if (typeIndex != index) {
+            for (int range = 0; range < nNeighborRanges; range++) {
 
-                float x2 = positions[positionIndex];
-                float y2 = positions[positionIndex + 1];
+                int rangeEnd = neighborRanges[range * 2 + 1];
 
-                if (s.wrap && (x2 < s.rMax || x2 > s.rangeX - s.rMax || y2 < s.rMax || y2 > s.rangeY - s.rMax)) {
-                    if (x2 > x) {
-                        float wrappedX2 = x2 - s.rangeX;
-                        if (x - wrappedX2 < x2 - x) {
-                            x2 = wrappedX2;
+                for (int j = neighborRanges[range * 2]; j < rangeEnd; j++) {
+
+                    int index2 = indices[j];
+
+                    if (index2 == index) {
+                        continue;
+                    }
+
+                    float x2 = positions[index2 * 2];
+                    float y2 = positions[index2 * 2 + 1];
+
+                    if (minimumImage && (x2 < s.rMax || x2 > s.rangeX - s.rMax || y2 < s.rMax || y2 > s.rangeY - s.rMax)) {
+                        x2 = nearestImage(x, x2, s.rangeX);
+                        y2 = nearestImage(y, y2, s.rangeY);
+                    }
+
+                    float dx = x2 - x;
+                    float dy = y2 - y;
+                    float distanceSquared = dx * dx + dy * dy;
+                    if (distanceSquared < s.rMaxSquared) {
+                        float factor = forceTable.get(type, types[index2], distanceSquared) * forceFactorDt;
+                        vx += dx * factor;
+                        vy += dy * factor;
+                    }
+                }
+            }
+
+            finishVelocity(s, x, y, vx, vy, velocitiesOut, index * 2, velocitiesOut, index * 2 + 1);
+        }
+    }
+
+    @Override
+    public void updateVelocities(Settings s, int[] types, float[] xs, float[] ys, float[] vxs, float[] vys,
+                                 int[] indices, int from, int to,
+                                 int[] neighborRanges, int nNeighborRanges,
+                                 float[] vxsOut, float[] vysOut) {
+
+        ForceTable forceTable = lazyForceTable(s);
+        float forceFactorDt = s.forceFactor * s.dt;
+        boolean minimumImage = s.wrap && s.minimumImage;
+
+        for (int i = from; i < to; i++) {
+
+            int index = indices[i];
+            int type = types[index];
+            float x = xs[index];
+            float y = ys[index];
+            float vx = vxs[index];
+            float vy = vys[index];
+
+            for (int range = 0; range < nNeighborRanges; range++) {
+
+                int rangeEnd = neighborRanges[range * 2 + 1];
+
+                for (int j = neighborRanges[range * 2]; j < rangeEnd; j++) {
+
+                    int index2 = indices[j];
+
+                    if (index2 == index) {
+                        continue;
+                    }
+
+                    float x2 = xs[index2];
+                    float y2 = ys[index2];
+
+                    if (minimumImage && (x2 < s.rMax || x2 > s.rangeX - s.rMax || y2 < s.rMax || y2 > s.rangeY - s.rMax)) {
+                        x2 = nearestImage(x, x2, s.rangeX);
+                        y2 = nearestImage(y, y2, s.rangeY);
+                    }
+
+                    float dx = x2 - x;
+                    float dy = y2 - y;
+                    float distanceSquared = dx * dx + dy * dy;
+                    if (distanceSquared < s.rMaxSquared) {
+                        float factor = forceTable.get(type, types[index2], distanceSquared) * forceFactorDt;
+                        vx += dx * factor;
+                        vy += dy * factor;
+                    }
+                }
+            }
+
+            finishVelocity(s, x, y, vx, vy, vxsOut, index, vysOut, index);
+        }
+    }
+
+    @Override
+    public void updateVelocities(Settings s, CompactParticles particles, int cellX, int cellY, short[] velocitiesOut) {
+
+        ForceTable forceTable = lazyForceTable(s);
+        float forceFactorDt = s.forceFactor * s.dt;
+
+        int nx = particles.nx;
+        int ny = particles.ny;
+        int[] cellStart = particles.cellStart;
+        short[] positions = particles.positions;
+
+        // With less than 3 cells in a direction, the 3x3 cells around a cell would contain some cells twice.
+        // Then every cell is visited once, and the nearest image is found the usual way.
+        boolean allColumns = s.wrap && nx < 3;
+        boolean allRows = s.wrap && ny < 3;
+        int minOffsetX = allColumns ? 0 : -1;
+        int maxOffsetX = allColumns ? nx - 1 : 1;
+        int minOffsetY = allRows ? 0 : -1;
+        int maxOffsetY = allRows ? ny - 1 : 1;
+
+        int cell = particles.nx * cellY + cellX;
+
+        for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+
+            int type = particles.getType(i);
+            float x = particles.getX(i, cellX);
+            float y = particles.getY(i, cellY);
+            float vx = CompactParticles.fromHalf(particles.velocities[i * 2]);
+            float vy = CompactParticles.fromHalf(particles.velocities[i * 2 + 1]);
+
+            for (int offsetY = minOffsetY; offsetY <= maxOffsetY; offsetY++) {
+
+                // the unwrapped row, so that the decoded coordinates are already at the nearest image
+                int cy = cellY + offsetY;
+                if (!s.wrap && (cy < 0 || cy >= ny)) {
+                    continue;
+                }
+                float baseY = cy * particles.cellSizeY;
+
+                for (int offsetX = minOffsetX; offsetX <= maxOffsetX; offsetX++) {
+
+                    int cx = cellX + offsetX;
+                    if (!s.wrap && (cx < 0 || cx >= nx)) {
+                        continue;
+                    }
+                    float baseX = cx * particles.cellSizeX;
+
+                    int cell2 = nx * modulo(cy, ny) + modulo(cx, nx);
+                    int end = cellStart[cell2 + 1];
+
+                    for (int j = cellStart[cell2]; j < end; j++) {
+
+                        if (j == i) {
+                            continue;
                         }
-                    } else {
-                        float wrappedX2 = x2 + s.rangeX;
-                        if (wrappedX2 - x < x - x2) {
-                            x2 = wrappedX2;
+
+                        float dx = baseX + CompactParticles.decodeOffset(positions[j * 2]) * particles.cellSizeX - x;
+                        float dy = baseY + CompactParticles.decodeOffset(positions[j * 2 + 1]) * particles.cellSizeY - y;
+
+                        if (allColumns) {
+                            dx = nearestImage(0, dx, s.rangeX);
                         }
-                    }
-                    if (y2 > y) {
-                        float wrappedY2 = y2 - s.rangeY;
-                        if (y - wrappedY2 < y2 - y) {
-                            y2 = wrappedY2;
+                        if (allRows) {
+                            dy = nearestImage(0, dy, s.rangeY);
                         }
-                    } else {
-                        float wrappedY2 = y2 + s.rangeY;
-                        if (wrappedY2 - y < y - y2) {
-                            y2 = wrappedY2;
+
+                        float distanceSquared = dx * dx + dy * dy;
+                        if (distanceSquared < s.rMaxSquared) {
+                            float factor = forceTable.get(type, particles.getType(j), distanceSquared) * forceFactorDt;
+                            vx += dx * factor;
+                            vy += dy * factor;
                         }
                     }
                 }
+            }
+
+            velocitiesOut[i * 2] = CompactParticles.toHalf(finishVelocity(s, x, vx, s.rangeX));
+            velocitiesOut[i * 2 + 1] = CompactParticles.toHalf(finishVelocity(s, y, vy, s.rangeY));
+        }
+    }
+
+    /**
+     * Shared by all threads, the table itself is immutable.
+     */
+    private volatile ForceTable forceTable;
+
+    /**
+     * @return the force table for the given settings,
+     *         rebuilt if the matrix, the force profiles, rMin or rMax changed since the last call.
+     */
+    protected ForceTable lazyForceTable(Settings s) {
+        ForceTable table = forceTable;
+        if (table == null || !table.matches(s)) {
+            table = new ForceTable(s);
+            forceTable = table;
+        }
+        return table;
+    }
+
+    @Override
+    public void accumulatePairs(Settings s, int[] types, float[] positions,
+                                int[] indices, int from, int to,
+                                int[] neighborRanges, int nNeighborRanges,
+                                float[] deltaVelocities) {
 
-                float dx = x2 - x;
-                float dy = y2 - y;
-                float distanceSquared = dx * dx + dy * dy;
-                if (distanceSquared < s.rMaxSquared) {
-                    float distance = (float) Math.sqrt(distanceSquared);
+        ForceTable forceTable = lazyForceTable(s);
+        float forceFactorDt = s.forceFactor * s.dt;
+        boolean minimumImage = s.wrap && s.minimumImage;
 
-                    float force;
+        for (int i = from; i < to; i++) {
 
-                    if (distance < s.rMin) {
+            int index = indices[i];
+            int type = types[index];
+            float x = positions[index * 2];
+            float y = positions[index * 2 + 1];
+            float dvx = 0;
+            float dvy = 0;
 
-                        force = distance / s.rMin - 1;
+            // pairs inside the group: only the particles after this one,
+            // then all particles of the neighbor ranges
+            int range = -1;
+            int j = i + 1;
+            int rangeEnd = to;
 
-                    } else if (distance < s.rMax) {
+            while (true) {
 
-                        int type2 = types[typeIndex];
-                        float attraction = s.matrix.get(type, type2);
-                        force = attraction * (1 - Math.abs(2 * distance - s.rMin - s.rMax) / (s.rMax - s.rMin));
+                for (; j < rangeEnd; j++) {
 
-                    } else {
+                    int index2 = indices[j];
 
-                        force = 0;
+                    float x2 = positions[index2 * 2];
+                    float y2 = positions[index2 * 2 + 1];
 
+                    if (minimumImage && (x2 < s.rMax || x2 > s.rangeX - s.rMax || y2 < s.rMax || y2 > s.rangeY - s.rMax)) {
+                        x2 = nearestImage(x, x2, s.rangeX);
+                        y2 = nearestImage(y, y2, s.rangeY);
                     }
 
-                    float a = s.forceFactor * force;
-                    float factor = a / distance * s.dt;
-                    vx += dx * factor;
-                    vy += dy * factor;
+                    float dx = x2 - x;
+                    float dy = y2 - y;
+                    float distanceSquared = dx * dx + dy * dy;
+                    if (distanceSquared < s.rMaxSquared && distanceSquared > 0) {
+
+                        // both particles see the same distance, but in opposite directions
+                        int type2 = types[index2];
+                        float factor = forceTable.get(type, type2, distanceSquared) * forceFactorDt;
+                        float factor2 = forceTable.get(type2, type, distanceSquared) * forceFactorDt;
+                        dvx += dx * factor;
+                        dvy += dy * factor;
+                        deltaVelocities[index2 * 2] -= dx * factor2;
+                        deltaVelocities[index2 * 2 + 1] -= dy * factor2;
+                    }
                 }
 
+                range++;
+                if (range >= nNeighborRanges) {
+                    break;
+                }
+                j = neighborRanges[range * 2];
+                rangeEnd = neighborRanges[range * 2 + 1];
             }
 
-            positionIndex += 2;
-            typeIndex += 1;
+            deltaVelocities[index * 2] += dvx;
+            deltaVelocities[index * 2 + 1] += dvy;
         }
+    }
+
+    @Override
+    public void finishVelocities(Settings s, float[] positions, float[] velocities, float[] deltaVelocities,
+                                 int from, int to, float[] velocitiesOut) {
+
+        for (int index = from; index < to; index++) {
+
+            float vx = velocities[index * 2] + deltaVelocities[index * 2];
+            float vy = velocities[index * 2 + 1] + deltaVelocities[index * 2 + 1];
+
+            // reset for the next step
+            deltaVelocities[index * 2] = 0;
+            deltaVelocities[index * 2 + 1] = 0;
+
+            finishVelocity(s, positions[index * 2], positions[index * 2 + 1], vx, vy,
+                    velocitiesOut, index * 2, velocitiesOut, index * 2 + 1);
+        }
+    }
+
+    /**
+     * Applies the boundaries and friction to the velocity of a single particle
+     * and writes the result to <code>vxsOut[xIndex]</code> and <code>vysOut[yIndex]</code>
+     * (this works for interleaved as well as separate arrays).
+     */
+    protected static void finishVelocity(Settings s, float x, float y, float vx, float vy,
+                                         float[] vxsOut, int xIndex, float[] vysOut, int yIndex) {
+        vxsOut[xIndex] = finishVelocity(s, x, vx, s.rangeX);
+        vysOut[yIndex] = finishVelocity(s, y, vy, s.rangeY);
+    }
+
+    /**
+     * Applies the boundaries and friction to one component of the velocity of a single particle.
+     * @param a the coordinate of the particle along the same axis as <code>v</code>.
+     * @return the new component of the velocity.
+     */
+    protected static float finishVelocity(Settings s, float a, float v, float range) {
 
         if (!s.wrap) {
             // stop particles at the boundaries
 
             // this is where it would be:
-            x += vx * s.dt;
-            y += vy * s.dt;
+            float next = a + v * s.dt;
 
-            if (x < 0) {
-                vx = -vx;
-            } else if (x > s.rangeX) {
-                vx = -vx;
+            if (next < 0 || next > range) {
+                v = -v;
             }
+        }
 
-            if (y < 0) {
-                vy = -vy;
-            } else if (y > s.rangeY) {
-                vy = -vy;
+        // friction force = -v * friction
+        return v * s.oneMinusFrictionDt;
+    }
+
+    /**
+     * @return the coordinate b, moved by the range if that brings it closer to a.
+     */
+    static float nearestImage(float a, float b, float range) {
+        if (b > a) {
+            float wrappedB = b - range;
+            if (a - wrappedB < b - a) {
+                return wrappedB;
+            }
+        } else {
+            float wrappedB = b + range;
+            if (wrappedB - a < a - b) {
+                return wrappedB;
             }
         }
+        return b;
+    }
 
-        // friction force = -v * friction
-        vx *= s.oneMinusFrictionDt;
-        vy *= s.oneMinusFrictionDt;
+    @Override
+    public void updatePositions(Settings s, float[] positions, float[] velocities,
+                                int from, int to, float[] positionsOut) {
+
+        for (int index = from; index < to; index++) {
+
+            float x = positions[index * 2];
+            float y = positions[index * 2 + 1];
+            float vx = velocities[index * 2];
+            float vy = velocities[index * 2 + 1];
+
+            // add a little energy
+            if (s.heat > 0) {
+                vx += random(s, index, 0) * s.heat;
+                vy += random(s, index, 1) * s.heat;
+            }
 
-        return new float[] {vx, vy};
+            positionsOut[index * 2] = move(s, x, vx, s.rangeX);
+            positionsOut[index * 2 + 1] = move(s, y, vy, s.rangeY);
+        }
     }
 
     @Override
-    public float[] updatePosition(Settings s, float x, float y, float vx, float vy) {
+    public void updatePositions(Settings s, float[] xs, float[] ys, float[] vxs, float[] vys,
+                                int from, int to, float[] xsOut, float[] ysOut) {
+
+        for (int index = from; index < to; index++) {
+
+            float vx = vxs[index];
+            float vy = vys[index];
 
-        // add a little energy
-        if (s.heat > 0) {
-            vx += (2 * Math.random() - 1) * s.heat;
-            vy += (2 * Math.random() - 1) * s.heat;
+            // add a little energy
+            if (s.heat > 0) {
+                vx += random(s, index, 0) * s.heat;
+                vy += random(s, index, 1) * s.heat;
+            }
+
+            xsOut[index] = move(s, xs[index], vx, s.rangeX);
+            ysOut[index] = move(s, ys[index], vy, s.rangeY);
         }
+    }
 
-        x += vx * s.dt;
-        y += vy * s.dt;
+    @Override
+    public void updatePositions(Settings s, CompactParticles particles, int from, int to, float[] positionsOut) {
 
-        if (s.wrap) {
+        if (from >= to) {
+            return;
+        }
 
-            x = modulo(x, s.rangeX);
-            y = modulo(y, s.rangeY);
+        int cell = particles.findCell(from);
+        int cellX = cell % particles.nx;
+        int cellY = cell / particles.nx;
 
-        } else {
-            // stop particles at the boundaries
+        for (int index = from; index < to; index++) {
 
-            if (x < 0) {
-                x = 0;
-            } else if (x > s.rangeX) {
-                x = s.rangeX;
+            // the particles are sorted by cell
+            while (index >= particles.cellStart[cell + 1]) {
+                cell++;
+                cellX++;
+                if (cellX == particles.nx) {
+                    cellX = 0;
+                    cellY++;
+                }
             }
-            if (y < 0) {
-                y = 0;
-            } else if (y > s.rangeY) {
-                y = s.rangeY;
+
+            float vx = CompactParticles.fromHalf(particles.velocities[index * 2]);
+            float vy = CompactParticles.fromHalf(particles.velocities[index * 2 + 1]);
+
+            // add a little energy
+            if (s.heat > 0) {
+                vx += random(s, index, 0) * s.heat;
+                vy += random(s, index, 1) * s.heat;
             }
+
+            positionsOut[index * 2] = move(s, particles.getX(index, cellX), vx, s.rangeX);
+            positionsOut[index * 2 + 1] = move(s, particles.getY(index, cellY), vy, s.rangeY);
         }
+    }
+
+    /**
+     * Counter-based random numbers for the heat: a hash of the seed and step (see {@link Settings#setSeed(long)})
+     * and the index of the particle. There is no shared state, so threads don't contend,
+     * and the numbers don't depend on how the particles are split among threads.
+     * @param component 0 for x, 1 for y.
+     * @return a uniformly distributed number in [-1, 1).
+     */
+    static float random(Settings s, long index, int component) {
+        long z = mix(s.randomKey + (index * 2 + component) * 0x9E3779B97F4A7C15L);
+        return (z >>> 40) * 0x1p-23f - 1;
+    }
+
+    /**
+     * The finalizer of SplitMix64: scrambles the bits so that consecutive inputs give independent-looking outputs.
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return the coordinate after moving with the given velocity for one time step,
+     *         wrapped or clamped to [0, range].
+     */
+    static float move(Settings s, float a, float v, float range) {
+
+        a += v * s.dt;
 
-        return new float[] {x, y};
+        if (s.wrap) {
+            return modulo(a, range);
+        }
+
+        // stop particles at the boundaries
+        if (a < 0) {
+            return 0;
+        } else if (a > range) {
+            return range;
+        }
+        return a;
+    }
+
+    private static float modulo(float a, float b) {
+        return ((a % b) + b) % b;
     }
 
-    private float modulo(float a, float b) {
+    private static int modulo(int a, int b) {
         return ((a % b) + b) % b;
     }
 }
@@ -0,0 +1,49 @@
+package logic;
+
+/**
+ * The force that a particle exerts on another particle, depending on their distance.
+ * Positive values attract, negative values repel.
+ * <p>
+ * Profiles are not evaluated during the update, but sampled into a {@link ForceTable}
+ * whenever the matrix, rMin or rMax change.
+ */
+public interface ForceProfile {
+
+    /**
+     * @param distance   the distance of the two particles, between 0 and rMax.
+     * @param attraction the value of the matrix for the two types.
+     */
+    float getForce(float distance, float rMin, float rMax, float attraction);
+
+    /**
+     * Linear repulsion below rMin and a triangle between rMin and rMax, scaled by the attraction.
+     * This is the force described in <code>docs/force.md</code>.
+     */
+    ForceProfile TRIANGLE = (distance, rMin, rMax, attraction) -> {
+        if (distance < rMin) {
+            return distance / rMin - 1;
+        }
+        return attraction * (1 - Math.abs(2 * distance - rMin - rMax) / (rMax - rMin));
+    };
+
+    /**
+     * Like {@link #TRIANGLE}, but with a sine arc between rMin and rMax,
+     * so that the force doesn't have a kink at its maximum.
+     */
+    ForceProfile SMOOTH = (distance, rMin, rMax, attraction) -> {
+        if (distance < rMin) {
+            return distance / rMin - 1;
+        }
+        return attraction * (float) Math.sin(Math.PI * (distance - rMin) / (rMax - rMin));
+    };
+
+    /**
+     * Like {@link #TRIANGLE}, but with a constant attraction between rMin and rMax.
+     */
+    ForceProfile STEP = (distance, rMin, rMax, attraction) -> {
+        if (distance < rMin) {
+            return distance / rMin - 1;
+        }
+        return attraction;
+    };
+}
@@ -0,0 +1,26 @@
+package logic;
+
+/**
+ * Assigns a {@link ForceProfile} to every pair of types.
+ * Like {@link Matrix}, implementations should be immutable - a changed assignment must be a new object,
+ * otherwise the {@link ForceTable} isn't rebuilt.
+ */
+public interface ForceProfiles {
+
+    /**
+     * The default: {@link ForceProfile#TRIANGLE} for all pairs of types.
+     */
+    ForceProfiles DEFAULT = uniform(ForceProfile.TRIANGLE);
+
+    /**
+     * @return the profile of the force that a particle of type j exerts on a particle of type i.
+     */
+    ForceProfile get(int i, int j);
+
+    /**
+     * @return the same profile for all pairs of types.
+     */
+    static ForceProfiles uniform(ForceProfile profile) {
+        return (i, j) -> profile;
+    }
+}
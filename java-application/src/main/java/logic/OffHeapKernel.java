@@ -0,0 +1,114 @@
+package logic;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * Off-heap versions of the scalar kernel of {@link DefaultUpdaterLogic}:
+ * The particles are stored in native memory segments, with the same layout as the arrays
+ * (one int per type, interleaved x and y for positions and velocities).
+ * The results are the same as those of the array versions.
+ * <p>
+ * This is kept apart from {@link UpdaterLogic}, so that only the off-heap updater depends on the incubating
+ * foreign memory API, i.e. the JVM must be started with <code>--add-modules jdk.incubator.foreign</code>
+ * before this class is used.
+ */
+public final class OffHeapKernel {
+
+    /**
+     * Built on demand from the settings (see {@link #lazyForceTable(Settings)}), shared by all threads.
+     */
+    private volatile ForceTable forceTable;
+
+    private ForceTable lazyForceTable(Settings s) {
+        ForceTable table = forceTable;
+        if (table == null || !table.matches(s)) {
+            table = new ForceTable(s);
+            forceTable = table;
+        }
+        return table;
+    }
+
+    /**
+     * Off-heap version of {@link UpdaterLogic#updateVelocities(Settings, int[], float[], float[], int[], int, int, int[], int, float[])}.
+     */
+    public void updateVelocities(Settings s, MemorySegment types, MemorySegment positions, MemorySegment velocities,
+                                 int[] indices, int from, int to,
+                                 int[] neighborRanges, int nNeighborRanges,
+                                 MemorySegment velocitiesOut) {
+
+        ForceTable forceTable = lazyForceTable(s);
+        float forceFactorDt = s.forceFactor * s.dt;
+        boolean minimumImage = s.wrap && s.minimumImage;
+
+        for (int i = from; i < to; i++) {
+
+            long index = indices[i];
+            int type = MemoryAccess.getIntAtIndex(types, index);
+            float x = MemoryAccess.getFloatAtIndex(positions, index * 2);
+            float y = MemoryAccess.getFloatAtIndex(positions, index * 2 + 1);
+            float vx = MemoryAccess.getFloatAtIndex(velocities, index * 2);
+            float vy = MemoryAccess.getFloatAtIndex(velocities, index * 2 + 1);
+
+            for (int range = 0; range < nNeighborRanges; range++) {
+
+                int rangeEnd = neighborRanges[range * 2 + 1];
+
+                for (int j = neighborRanges[range * 2]; j < rangeEnd; j++) {
+
+                    long index2 = indices[j];
+
+                    if (index2 == index) {
+                        continue;
+                    }
+
+                    float x2 = MemoryAccess.getFloatAtIndex(positions, index2 * 2);
+                    float y2 = MemoryAccess.getFloatAtIndex(positions, index2 * 2 + 1);
+
+                    if (minimumImage && (x2 < s.rMax || x2 > s.rangeX - s.rMax || y2 < s.rMax || y2 > s.rangeY - s.rMax)) {
+                        x2 = DefaultUpdaterLogic.nearestImage(x, x2, s.rangeX);
+                        y2 = DefaultUpdaterLogic.nearestImage(y, y2, s.rangeY);
+                    }
+
+                    float dx = x2 - x;
+                    float dy = y2 - y;
+                    float distanceSquared = dx * dx + dy * dy;
+                    if (distanceSquared < s.rMaxSquared) {
+                        int type2 = MemoryAccess.getIntAtIndex(types, index2);
+                        float factor = forceTable.get(type, type2, distanceSquared) * forceFactorDt;
+                        vx += dx * factor;
+                        vy += dy * factor;
+                    }
+                }
+            }
+
+            MemoryAccess.setFloatAtIndex(velocitiesOut, index * 2, DefaultUpdaterLogic.finishVelocity(s, x, vx, s.rangeX));
+            MemoryAccess.setFloatAtIndex(velocitiesOut, index * 2 + 1, DefaultUpdaterLogic.finishVelocity(s, y, vy, s.rangeY));
+        }
+    }
+
+    /**
+     * Off-heap version of {@link UpdaterLogic#updatePositions(Settings, float[], float[], int, int, float[])}.
+     */
+    public void updatePositions(Settings s, MemorySegment positions, MemorySegment velocities,
+                                long from, long to, MemorySegment positionsOut) {
+
+        for (long index = from; index < to; index++) {
+
+            float vx = MemoryAccess.getFloatAtIndex(velocities, index * 2);
+            float vy = MemoryAccess.getFloatAtIndex(velocities, index * 2 + 1);
+
+            // add a little energy
+            if (s.heat > 0) {
+                vx += DefaultUpdaterLogic.random(s, index, 0) * s.heat;
+                vy += DefaultUpdaterLogic.random(s, index, 1) * s.heat;
+            }
+
+            float x = MemoryAccess.getFloatAtIndex(positions, index * 2);
+            float y = MemoryAccess.getFloatAtIndex(positions, index * 2 + 1);
+
+            MemoryAccess.setFloatAtIndex(positionsOut, index * 2, DefaultUpdaterLogic.move(s, x, vx, s.rangeX));
+            MemoryAccess.setFloatAtIndex(positionsOut, index * 2 + 1, DefaultUpdaterLogic.move(s, y, vy, s.rangeY));
+        }
+    }
+}
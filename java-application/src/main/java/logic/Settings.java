@@ -1,5 +1,7 @@
 package logic;
 
+import java.util.SplittableRandom;
+
 public final class Settings {
 
     float rangeX = 400;
@@ -10,17 +12,23 @@ public final class Settings {
     float rMax = 40;
     float forceFactor = 950;
     boolean wrap = true;
+    boolean minimumImage = true;
     float dt = 0.02f;
     Matrix matrix;
+    ForceProfiles forceProfiles = ForceProfiles.DEFAULT;
+    long seed = new SplittableRandom().nextLong();
+    long step = 0;
 
     // variables for optimization:
     float rMaxSquared;
     float oneMinusFrictionDt;
+    long randomKey;
 
     public Settings() {
         // calculate variables for optimization
         calcOneMinusFrictionDt();
         calcRMaxSquared();
+        calcRandomKey();
     }
 
     private void calcOneMinusFrictionDt() {
@@ -31,6 +39,10 @@ public final class Settings {
         this.rMaxSquared = this.rMax * this.rMax;
     }
 
+    private void calcRandomKey() {
+        this.randomKey = DefaultUpdaterLogic.mix(seed + step * 0x9E3779B97F4A7C15L);
+    }
+
     public void setRange(float rangeX, float rangeY) {
         this.rangeX = rangeX;
         this.rangeY = rangeY;
@@ -62,15 +74,48 @@ public final class Settings {
         this.wrap = wrap;
     }
 
+    /**
+     * Whether the force kernel has to find the nearest image of every neighbor if wrap is enabled.
+     * Updaters that pass pre-shifted copies of the particles near the borders (ghosts) disable this
+     * on their own copy of the settings.
+     * The boundaries of the world are still handled according to {@link #isWrap()}.
+     */
+    public void setMinimumImage(boolean minimumImage) {
+        this.minimumImage = minimumImage;
+    }
+
     public void setDt(float dt) {
         this.dt = dt;
         calcOneMinusFrictionDt();
     }
 
+    /**
+     * The random numbers of the heat only depend on the seed, the step (see {@link #setStep(long)})
+     * and the index of the particle, so a heated run can be replayed exactly from the same state and seed.
+     * By default, every instance gets a different seed.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        calcRandomKey();
+    }
+
+    /**
+     * Selects the random numbers of the heat for the next step.
+     * Whoever runs the steps should increase this after each step, otherwise the same numbers are used again.
+     */
+    public void setStep(long step) {
+        this.step = step;
+        calcRandomKey();
+    }
+
     public void setMatrix(Matrix matrix) {
         this.matrix = matrix;
     }
 
+    public void setForceProfiles(ForceProfiles forceProfiles) {
+        this.forceProfiles = forceProfiles;
+    }
+
     public float getRangeX() {
         return rangeX;
     }
@@ -103,31 +148,58 @@ public final class Settings {
         return wrap;
     }
 
+    public boolean isMinimumImage() {
+        return minimumImage;
+    }
+
     public float getDt() {
         return dt;
     }
     
+    public long getSeed() {
+        return seed;
+    }
+
+    public long getStep() {
+        return step;
+    }
+
     public Matrix getMatrix() {
         return matrix;
     }
 
+    public ForceProfiles getForceProfiles() {
+        return forceProfiles;
+    }
+
     @Override
     public Settings clone() {
         Settings s = new Settings();
-
-        s.rangeX = rangeX;
-        s.rangeY = rangeY;
-        s.friction = friction;
-        s.heat = heat;
-        s.rMin = rMin;
-        s.rMax = rMax;
-        s.forceFactor = forceFactor;
-        s.wrap = wrap;
-        s.dt = dt;
-        s.matrix = matrix;
-        s.rMaxSquared = rMaxSquared;
-        s.oneMinusFrictionDt = oneMinusFrictionDt;
-
+        s.copyFrom(this);
         return s;
     }
+
+    /**
+     * Makes this a copy of <code>other</code>, like {@link #clone()}, but without allocating.
+     * The matrix and the force profiles are shared, as with {@link #clone()}.
+     */
+    public void copyFrom(Settings other) {
+        rangeX = other.rangeX;
+        rangeY = other.rangeY;
+        friction = other.friction;
+        heat = other.heat;
+        rMin = other.rMin;
+        rMax = other.rMax;
+        forceFactor = other.forceFactor;
+        wrap = other.wrap;
+        minimumImage = other.minimumImage;
+        dt = other.dt;
+        matrix = other.matrix;
+        forceProfiles = other.forceProfiles;
+        seed = other.seed;
+        step = other.step;
+        rMaxSquared = other.rMaxSquared;
+        oneMinusFrictionDt = other.oneMinusFrictionDt;
+        randomKey = other.randomKey;
+    }
 }
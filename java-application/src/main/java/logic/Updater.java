@@ -1,5 +1,8 @@
 package logic;
 
+/**
+ * The setters must also be called after the arrays returned by the getters were modified in place.
+ */
 public interface Updater {
 
     void setTypes(int[] types);
@@ -11,12 +14,54 @@ public interface Updater {
     float[] getVelocities();
 
     /**
-     * The returned array must at least contain all particles that lie inside the specified circle.
-     * It may contain more (or even all) particles.
-     * If wrap==true, wrapping must be considered.
-     * @return array of relevant particle indices
+     * Updaters may move particles to other array indices (e.g. to keep neighbors close in memory).
+     * Each particle keeps a stable id though, which is its index in the arrays that were last set via {@link #setTypes(int[])}.
+     * @return the current array index of the particle with the given id.
      */
-    int[] getRelevant(float x, float y, float radius, boolean wrap);
+    default int getIndex(int id) {
+        return id;
+    }
+
+    /**
+     * @return the stable id of the particle that is currently stored at the given array index.
+     * @see #getIndex(int)
+     */
+    default int getId(int index) {
+        return index;
+    }
+
+    /**
+     * Copies the types and positions in the order of the stable ids (see {@link #getIndex(int)}),
+     * e.g. into a snapshot that is drawn while the next step runs.
+     * The default implementation goes through {@link #getTypes()} and {@link #getPositions()}.
+     * @param typesOut     must have the length of {@link #getTypes()}.
+     * @param positionsOut must have twice that length.
+     */
+    default void copySnapshot(int[] typesOut, float[] positionsOut) {
+        int[] types = getTypes();
+        float[] positions = getPositions();
+        for (int id = 0; id < types.length; id++) {
+            int index = getIndex(id);
+            typesOut[id] = types[index];
+            positionsOut[id * 2] = positions[index * 2];
+            positionsOut[id * 2 + 1] = positions[index * 2 + 1];
+        }
+    }
+
+    /**
+     * @return the largest speed (length of the velocity) of all particles.
+     * The default implementation goes through {@link #getVelocities()}.
+     */
+    default float getMaxSpeed() {
+        float[] velocities = getVelocities();
+        float maxSpeedSquared = 0;
+        for (int i = 0; i < velocities.length; i += 2) {
+            float vx = velocities[i];
+            float vy = velocities[i + 1];
+            maxSpeedSquared = Math.max(maxSpeedSquared, vx * vx + vy * vy);
+        }
+        return (float) Math.sqrt(maxSpeedSquared);
+    }
 
     void updateVelocities(Settings s, UpdaterLogic updaterLogic);
     void updatePositions(Settings s, UpdaterLogic updaterLogic);
@@ -2,7 +2,105 @@ package logic;
 
 public interface UpdaterLogic {
 
-    float[] updateVelocity(Settings s, float[] positions, int[] types, int index, float vx, float vy);
+    /**
+     * @param vectorized whether the SIMD kernel ({@link VectorUpdaterLogic}) should be used.
+     * @return the SIMD kernel if it is requested and available, otherwise the scalar {@link DefaultUpdaterLogic}.
+     */
+    static UpdaterLogic create(boolean vectorized) {
+        if (vectorized && isVectorApiAvailable()) {
+            return new VectorUpdaterLogic();
+        }
+        return new DefaultUpdaterLogic();
+    }
 
-    float[] updatePosition(Settings s, float x, float y, float vx, float vy);
+    /**
+     * @return whether the JVM was started with <code>--add-modules jdk.incubator.vector</code>.
+     */
+    static boolean isVectorApiAvailable() {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
+    /**
+     * Calculates the new velocities of a group of particles (usually all particles of one cell)
+     * and writes them directly to <code>velocitiesOut</code>.
+     * <p>
+     * The group consists of the particles <code>indices[from]</code> to <code>indices[to - 1]</code>.
+     * Their potential interaction partners are given as ranges of the same <code>indices</code> array:
+     * range k reaches from <code>indices[neighborRanges[2 * k]]</code> to <code>indices[neighborRanges[2 * k + 1] - 1]</code>.
+     * The ranges may contain the group itself, a particle never interacts with itself.
+     * <p>
+     * All other arrays are indexed by the particle indices taken from <code>indices</code>,
+     * i.e. no copies of the particle data are needed.
+     */
+    void updateVelocities(Settings s, int[] types, float[] positions, float[] velocities,
+                          int[] indices, int from, int to,
+                          int[] neighborRanges, int nNeighborRanges,
+                          float[] velocitiesOut);
+
+    /**
+     * Symmetric version of {@link #updateVelocities}:
+     * Every pair of particles is only evaluated once, and the velocity changes
+     * of <b>both</b> particles are added to <code>deltaVelocities</code>.
+     * <p>
+     * Each pair inside the group is evaluated once, as well as each pair of a particle in the group and
+     * a particle in one of the neighbor ranges. The neighbor ranges must not overlap with the group.
+     * The caller must make sure that no other thread writes to the affected entries of <code>deltaVelocities</code>.
+     * <p>
+     * After all pairs are evaluated, {@link #finishVelocities} must be called for all particles.
+     */
+    void accumulatePairs(Settings s, int[] types, float[] positions,
+                         int[] indices, int from, int to,
+                         int[] neighborRanges, int nNeighborRanges,
+                         float[] deltaVelocities);
+
+    /**
+     * Adds the accumulated velocity changes of the particles from <code>from</code> to <code>to - 1</code>
+     * (these are particle indices) to their velocities, applies boundaries and friction and writes the
+     * result to <code>velocitiesOut</code>.
+     * The entries of <code>deltaVelocities</code> are reset to 0.
+     * @see #accumulatePairs
+     */
+    void finishVelocities(Settings s, float[] positions, float[] velocities, float[] deltaVelocities,
+                          int from, int to, float[] velocitiesOut);
+
+    /**
+     * Moves the particles from <code>from</code> to <code>to - 1</code> (these are particle indices)
+     * according to their velocities and writes the new positions to <code>positionsOut</code>.
+     * The new positions are always inside the range (wrapped or clamped).
+     */
+    void updatePositions(Settings s, float[] positions, float[] velocities,
+                         int from, int to, float[] positionsOut);
+
+    /**
+     * Structure-of-arrays version of {@link #updateVelocities(Settings, int[], float[], float[], int[], int, int, int[], int, float[])}:
+     * The coordinates are stored in separate arrays (<code>xs[i]</code>, <code>ys[i]</code> instead of
+     * <code>positions[2 * i]</code>, <code>positions[2 * i + 1]</code>), the same goes for the velocities.
+     */
+    void updateVelocities(Settings s, int[] types, float[] xs, float[] ys, float[] vxs, float[] vys,
+                          int[] indices, int from, int to,
+                          int[] neighborRanges, int nNeighborRanges,
+                          float[] vxsOut, float[] vysOut);
+
+    /**
+     * Structure-of-arrays version of {@link #updatePositions(Settings, float[], float[], int, int, float[])}.
+     */
+    void updatePositions(Settings s, float[] xs, float[] ys, float[] vxs, float[] vys,
+                         int from, int to, float[] xsOut, float[] ysOut);
+
+    /**
+     * Compact version of {@link #updateVelocities(Settings, int[], float[], float[], int[], int, int, int[], int, float[])}:
+     * Calculates the new velocities of all particles of one cell of the {@link CompactParticles},
+     * decoding the particles on the fly. The potential interaction partners are the particles of the
+     * 3x3 cells around it, so the cells must be at least rMax wide and high.
+     * @param velocitiesOut receives the velocities as half-precision floats, at the same indices.
+     */
+    void updateVelocities(Settings s, CompactParticles particles, int cellX, int cellY, short[] velocitiesOut);
+
+    /**
+     * Compact version of {@link #updatePositions(Settings, float[], float[], int, int, float[])}:
+     * Decodes the particles from <code>from</code> to <code>to - 1</code>, moves them
+     * and writes the new positions to <code>positionsOut</code> as floats (interleaved),
+     * so that they can be sorted into their new cells and encoded again.
+     */
+    void updatePositions(Settings s, CompactParticles particles, int from, int to, float[] positionsOut);
 }
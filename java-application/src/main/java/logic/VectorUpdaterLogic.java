@@ -0,0 +1,264 @@
+package logic;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Computes the forces of {@link #updateVelocities} with SIMD instructions,
+ * i.e. several neighbors of a particle at once.
+ * The other methods use the scalar implementation of {@link DefaultUpdaterLogic}.
+ * <p>
+ * The neighbors of a group are first copied to contiguous scratch arrays (one per thread),
+ * so that the inner loop only consists of aligned loads, masks and arithmetic - no branches.
+ * The forces are gathered from the {@link ForceTable}.
+ * <p>
+ * This requires the incubating Vector API, i.e. the JVM must be started with
+ * <code>--add-modules jdk.incubator.vector</code>. Use {@link UpdaterLogic#create(boolean)}
+ * to fall back to the scalar implementation if it isn't available.
+ */
+public class VectorUpdaterLogic extends DefaultUpdaterLogic {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INT_SPECIES = SPECIES.withLanes(int.class);
+
+    private static final class Scratch {
+
+        float[] xs = new float[0];
+        float[] ys = new float[0];
+
+        /**
+         * Type of the neighbor, multiplied by {@link ForceTable#STRIDE}.
+         */
+        int[] typeOffsets = new int[0];
+
+        /**
+         * Indices of the force table entries of one vector.
+         */
+        final int[] tableIndices = new int[SPECIES.length()];
+
+        /**
+         * Result of {@link #sumForces}.
+         */
+        float sumX;
+        float sumY;
+
+        void ensureCapacity(int n) {
+            if (xs.length < n) {
+                xs = new float[n];
+                ys = new float[n];
+                typeOffsets = new int[n];
+            }
+        }
+    }
+
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    @Override
+    public void updateVelocities(Settings s, int[] types, float[] positions, float[] velocities,
+                                 int[] indices, int from, int to,
+                                 int[] neighborRanges, int nNeighborRanges,
+                                 float[] velocitiesOut) {
+
+        Scratch scratch = this.scratch.get();
+        ForceTable forceTable = lazyForceTable(s);
+
+        // gather the neighbors
+
+        int paddedLength = ensurePaddedCapacity(scratch, neighborRanges, nNeighborRanges);
+
+        float[] xs = scratch.xs;
+        float[] ys = scratch.ys;
+        int[] neighborTypeOffsets = scratch.typeOffsets;
+
+        int k = 0;
+        for (int range = 0; range < nNeighborRanges; range++) {
+            int rangeEnd = neighborRanges[range * 2 + 1];
+            for (int j = neighborRanges[range * 2]; j < rangeEnd; j++) {
+                int index2 = indices[j];
+                xs[k] = positions[index2 * 2];
+                ys[k] = positions[index2 * 2 + 1];
+                neighborTypeOffsets[k] = types[index2] * ForceTable.STRIDE;
+                k++;
+            }
+        }
+
+        pad(scratch, k, paddedLength);
+
+        for (int i = from; i < to; i++) {
+
+            int index = indices[i];
+            float x = positions[index * 2];
+            float y = positions[index * 2 + 1];
+
+            sumForces(s, forceTable, scratch, paddedLength, types[index], x, y);
+
+            float vx = velocities[index * 2] + scratch.sumX;
+            float vy = velocities[index * 2 + 1] + scratch.sumY;
+
+            finishVelocity(s, x, y, vx, vy, velocitiesOut, index * 2, velocitiesOut, index * 2 + 1);
+        }
+    }
+
+    @Override
+    public void updateVelocities(Settings s, int[] types, float[] xs, float[] ys, float[] vxs, float[] vys,
+                                 int[] indices, int from, int to,
+                                 int[] neighborRanges, int nNeighborRanges,
+                                 float[] vxsOut, float[] vysOut) {
+
+        Scratch scratch = this.scratch.get();
+        ForceTable forceTable = lazyForceTable(s);
+
+        // gather the neighbors
+
+        int paddedLength = ensurePaddedCapacity(scratch, neighborRanges, nNeighborRanges);
+
+        float[] neighborXs = scratch.xs;
+        float[] neighborYs = scratch.ys;
+        int[] neighborTypeOffsets = scratch.typeOffsets;
+
+        int k = 0;
+        for (int range = 0; range < nNeighborRanges; range++) {
+            int rangeEnd = neighborRanges[range * 2 + 1];
+            for (int j = neighborRanges[range * 2]; j < rangeEnd; j++) {
+                int index2 = indices[j];
+                neighborXs[k] = xs[index2];
+                neighborYs[k] = ys[index2];
+                neighborTypeOffsets[k] = types[index2] * ForceTable.STRIDE;
+                k++;
+            }
+        }
+
+        pad(scratch, k, paddedLength);
+
+        for (int i = from; i < to; i++) {
+
+            int index = indices[i];
+            float x = xs[index];
+            float y = ys[index];
+
+            sumForces(s, forceTable, scratch, paddedLength, types[index], x, y);
+
+            finishVelocity(s, x, y, vxs[index] + scratch.sumX, vys[index] + scratch.sumY,
+                    vxsOut, index, vysOut, index);
+        }
+    }
+
+    /**
+     * @return the number of neighbors, rounded up to a multiple of the vector length.
+     */
+    private static int ensurePaddedCapacity(Scratch scratch, int[] neighborRanges, int nNeighborRanges) {
+
+        int nNeighbors = 0;
+        for (int range = 0; range < nNeighborRanges; range++) {
+            nNeighbors += neighborRanges[range * 2 + 1] - neighborRanges[range * 2];
+        }
+        int paddedLength = SPECIES.loopBound(nNeighbors + SPECIES.length() - 1);
+        scratch.ensureCapacity(paddedLength);
+
+        return paddedLength;
+    }
+
+    /**
+     * Padding lanes are infinitely far away, so they never interact.
+     */
+    private static void pad(Scratch scratch, int from, int to) {
+        for (int k = from; k < to; k++) {
+            scratch.xs[k] = Float.POSITIVE_INFINITY;
+            scratch.ys[k] = Float.POSITIVE_INFINITY;
+            scratch.typeOffsets[k] = 0;
+        }
+    }
+
+    /**
+     * Sums up the velocity changes caused by all gathered neighbors on a particle at (x, y)
+     * and stores the result in <code>scratch.sumX</code> and <code>scratch.sumY</code>.
+     */
+    private static void sumForces(Settings s, ForceTable forceTable, Scratch scratch, int paddedLength,
+                                  int type, float x, float y) {
+
+        float[] xs = scratch.xs;
+        float[] ys = scratch.ys;
+        int[] neighborTypeOffsets = scratch.typeOffsets;
+        int[] tableIndices = scratch.tableIndices;
+
+        float[] table = forceTable.getValues();
+        int rowOffset = forceTable.getOffset(type, 0);
+        float binsPerDistanceSquared = forceTable.getBinsPerDistanceSquared();
+        float exactDistanceSquared = forceTable.getExactDistanceSquared();
+
+        float rangeX = s.rangeX;
+        float rangeY = s.rangeY;
+        float halfRangeX = rangeX / 2;
+        float halfRangeY = rangeY / 2;
+        float rMaxSquared = s.rMaxSquared;
+        float forceFactorDt = s.forceFactor * s.dt;
+        boolean minimumImage = s.wrap && s.minimumImage;
+
+        FloatVector sumX = FloatVector.zero(SPECIES);
+        FloatVector sumY = FloatVector.zero(SPECIES);
+
+        // neighbors that are too close for the table, summed up separately
+        float exactSumX = 0;
+        float exactSumY = 0;
+
+        for (int j = 0; j < paddedLength; j += SPECIES.length()) {
+
+            FloatVector dx = FloatVector.fromArray(SPECIES, xs, j).sub(x);
+            FloatVector dy = FloatVector.fromArray(SPECIES, ys, j).sub(y);
+
+            if (minimumImage) {
+                // minimum image: move by the range where that brings the neighbor closer
+                dx = dx.sub(rangeX, dx.compare(VectorOperators.GT, halfRangeX))
+                        .add(rangeX, dx.compare(VectorOperators.LT, -halfRangeX));
+                dy = dy.sub(rangeY, dy.compare(VectorOperators.GT, halfRangeY))
+                        .add(rangeY, dy.compare(VectorOperators.LT, -halfRangeY));
+            }
+
+            FloatVector distanceSquared = dx.mul(dx).add(dy.mul(dy));
+
+            // the particle itself has distance 0
+            VectorMask<Float> interacting = distanceSquared.compare(VectorOperators.LT, rMaxSquared)
+                    .and(distanceSquared.compare(VectorOperators.GT, 0f));
+
+            if (!interacting.anyTrue()) {
+                continue;
+            }
+
+            VectorMask<Float> close = distanceSquared.compare(VectorOperators.LT, exactDistanceSquared).and(interacting);
+            if (close.anyTrue()) {
+                // rare, since the particles repel each other at that distance
+                interacting = interacting.andNot(close);
+                for (int k = 0; k < SPECIES.length(); k++) {
+                    if (close.laneIsSet(k)) {
+                        float dxk = dx.lane(k);
+                        float dyk = dy.lane(k);
+                        float factor = forceTable.getExact(type, neighborTypeOffsets[j + k] / ForceTable.STRIDE,
+                                dxk * dxk + dyk * dyk) * forceFactorDt;
+                        exactSumX += dxk * factor;
+                        exactSumY += dyk * factor;
+                    }
+                }
+            }
+
+            // clamped to the last (zero) entry, far away neighbors and padding lanes are masked out anyway
+            IntVector bins = ((IntVector) distanceSquared.mul(binsPerDistanceSquared)
+                    .convert(VectorOperators.F2I, 0))
+                    .min(ForceTable.RESOLUTION);
+            IntVector.fromArray(INT_SPECIES, neighborTypeOffsets, j)
+                    .add(bins)
+                    .add(rowOffset)
+                    .intoArray(tableIndices, 0);
+
+            FloatVector factor = FloatVector.fromArray(SPECIES, table, 0, tableIndices, 0).mul(forceFactorDt);
+
+            sumX = sumX.add(dx.mul(factor), interacting);
+            sumY = sumY.add(dy.mul(factor), interacting);
+        }
+
+        scratch.sumX = sumX.reduceLanes(VectorOperators.ADD) + exactSumX;
+        scratch.sumY = sumY.reduceLanes(VectorOperators.ADD) + exactSumY;
+    }
+}
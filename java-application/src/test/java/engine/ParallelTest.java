@@ -0,0 +1,92 @@
+package engine;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ParallelTest {
+
+    private static final int N = 1000;
+
+    private ForkJoinPool pool;
+    private Parallel parallel;
+
+    @BeforeEach
+    void setUp() {
+        pool = new ForkJoinPool(4);
+        parallel = new Parallel(pool, new StepProfiler());
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    void runCoversRange() {
+        AtomicInteger covered = new AtomicInteger();
+        parallel.run(N, (from, to, scratch) -> covered.addAndGet(to - from));
+        assertEquals(N, covered.get());
+    }
+
+    /**
+     * The exception must only be thrown once the other leaves are finished,
+     * and the next loop must run normally.
+     */
+    @Test
+    void runWaitsForOtherLeavesIfOneThrows() {
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger covered = new AtomicInteger();
+
+        assertThrows(IllegalStateException.class, () -> parallel.run(N, (from, to, scratch) -> {
+            if (from == 0) {
+                covered.addAndGet(to - from);
+                throw new IllegalStateException("leaf failed");
+            }
+            running.incrementAndGet();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            covered.addAndGet(to - from);
+            running.decrementAndGet();
+        }));
+
+        assertEquals(0, running.get());
+        assertEquals(N, covered.get());
+
+        runCoversRange();
+    }
+
+    @Test
+    void runEachWaitsForOtherLeavesIfOneThrows() {
+
+        AtomicInteger covered = new AtomicInteger();
+
+        assertThrows(IllegalStateException.class, () -> parallel.runEach(64, index -> {
+            covered.incrementAndGet();
+            if (index == 0) {
+                throw new IllegalStateException("leaf failed");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+
+        assertEquals(64, covered.get());
+
+        AtomicInteger covered2 = new AtomicInteger();
+        parallel.runEach(64, index -> covered2.incrementAndGet());
+        assertEquals(64, covered2.get());
+    }
+}
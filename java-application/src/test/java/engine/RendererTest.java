@@ -0,0 +1,103 @@
+package engine;
+
+import engine.requests.RequestAddType;
+import engine.requests.RequestParticleDensity;
+import engine.requests.RequestRandomTypes;
+import engine.requests.RequestRemoveType;
+import engine.requests.RequestUpdater;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The requests that change the particles must keep the stable ids (see {@link logic.Updater#getIndex(int)}),
+ * even if the updater has moved the particles to other indices, so that the camera keeps following the same particles.
+ */
+class RendererTest {
+
+    /**
+     * {@link CompactUpdater}, which sorts the particles by cell in every step.
+     */
+    private static final int SORTING_UPDATER = 4;
+
+    /**
+     * The compact layout stores quantized positions.
+     */
+    private static final float TOLERANCE = 0.1f;
+
+    private Renderer renderer;
+
+    @BeforeEach
+    void setUp() {
+        renderer = new Renderer(800, 600, 2);
+        renderer.request(new RequestUpdater(SORTING_UPDATER));
+        renderer.handleRequests();
+        // the first step moves the particles to other indices
+        renderer.update();
+    }
+
+    @AfterEach
+    void tearDown() {
+        renderer.stop();
+    }
+
+    @Test
+    void addTypeKeepsIds() {
+        Particles before = renderer.getParticles();
+
+        renderer.request(new RequestAddType(before.nTypes, false));
+        renderer.handleRequests();
+
+        Particles after = renderer.getParticles();
+        assertEquals(before.types.length + before.types.length / (before.nTypes + 1), after.types.length);
+        assertSameParticles(before, after, before.types.length, true);
+    }
+
+    @Test
+    void increasingDensityKeepsIds() {
+        Particles before = renderer.getParticles();
+
+        renderer.request(new RequestParticleDensity(renderer.getParticleDensity() * 1.5f));
+        renderer.handleRequests();
+
+        Particles after = renderer.getParticles();
+        assertSameParticles(before, after, before.types.length, true);
+    }
+
+    @Test
+    void removeTypeKeepingCountKeepsIds() {
+        Particles before = renderer.getParticles();
+
+        renderer.request(new RequestRemoveType(before.nTypes - 1, true));
+        renderer.handleRequests();
+
+        Particles after = renderer.getParticles();
+        assertSameParticles(before, after, before.types.length, false);
+    }
+
+    @Test
+    void randomTypesKeepIds() {
+        Particles before = renderer.getParticles();
+
+        renderer.request(new RequestRandomTypes());
+        renderer.handleRequests();
+
+        Particles after = renderer.getParticles();
+        assertSameParticles(before, after, before.types.length, false);
+    }
+
+    /**
+     * Checks that the first n ids are at the same positions, and optionally have the same types.
+     */
+    private static void assertSameParticles(Particles before, Particles after, int n, boolean sameTypes) {
+        for (int id = 0; id < n; id++) {
+            if (sameTypes) {
+                assertEquals(before.types[id], after.types[id], "type of id " + id);
+            }
+            assertEquals(before.positions[id * 2], after.positions[id * 2], TOLERANCE, "x of id " + id);
+            assertEquals(before.positions[id * 2 + 1], after.positions[id * 2 + 1], TOLERANCE, "y of id " + id);
+        }
+    }
+}